@@ -20,7 +20,8 @@ import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.util.concurrent.DefaultPromise;
 
-import java.util.concurrent.ExecutionException;
+import java.time.Duration;
+import java.util.function.Function;
 
 abstract class AbstractRequest implements Request {
 
@@ -32,25 +33,60 @@ abstract class AbstractRequest implements Request {
 
 	@Override
 	public Result send() {
+		return send(null);
+	}
+
+	@Override
+	public Result send(Duration timeout) {
+		return send(timeout, this::createResult);
+	}
+
+	/**
+	 * Sends the request and blocks until the response has been turned into a result by {@code resultFactory}.
+	 * Failures are rethrown as they are, rather than through an {@code ExecutionException} that would only be
+	 * unwrapped again.
+	 */
+	protected Result send(Duration timeout, Function<FullHttpResponse, Result> resultFactory) {
+		final EtcdFuture future = sendAsyncWith(timeout, resultFactory);
 		try {
-			return sendAsync().get();
+			future.await();
 		} catch (InterruptedException e) {
 			throw new EtcdException(e);
-		} catch (ExecutionException e) {
-			if (e.getCause() instanceof EtcdException) {
-				throw (EtcdException)e.getCause();
-			}
-			throw new EtcdException(e.getCause());
 		}
+		if (future.isSuccess()) {
+			return future.getNow();
+		}
+		final Throwable cause = future.cause();
+		if (cause instanceof EtcdException) {
+			throw (EtcdException) cause;
+		}
+		throw new EtcdException(cause);
 	}
 
+	@Override
 	public EtcdFuture sendAsync(EtcdListener... listeners) {
+		return sendAsync(null, listeners);
+	}
+
+	@Override
+	public EtcdFuture sendAsync(Duration timeout, EtcdListener... listeners) {
+		final EtcdFuture future = sendAsyncWith(timeout, this::createResult);
+		future.addListeners(listeners);
+		return future;
+	}
+
+	private EtcdFuture sendAsyncWith(Duration timeout, Function<FullHttpResponse, Result> resultFactory) {
 		final EtcdPromise promise = new EtcdPromise();
-		promise.addListeners(listeners);
-		client.send(buildRequest(), response -> {
+		promise.cancelRequest = client.send(buildRequest(), isLongPoll(), timeout, response -> {
 			try {
-				final Result result = createResult(response.getHttpResponse());
-				promise.setSuccess(result);
+				final FullHttpResponse httpResponse = response.getHttpResponse();
+				try {
+					if (!promise.isDone()) {
+						promise.trySuccess(resultFactory.apply(httpResponse));
+					}
+				} finally {
+					httpResponse.release();
+				}
 			} catch (Exception e) {
 				final EtcdException ee;
 				if (e instanceof EtcdException) {
@@ -58,22 +94,50 @@ abstract class AbstractRequest implements Request {
 				} else {
 					ee = new EtcdException(e);
 				}
-				promise.setFailure(ee);
-			} finally {
-				response.getHttpResponse().release();
+				promise.tryFailure(ee);
 			}
 		});
+		if (promise.isCancelled()) {
+			// Cancelled before the request could be told about it
+			promise.cancelRequest.run();
+		}
 		return promise;
 	}
 
 	protected abstract FullHttpRequest buildRequest();
 
+	/**
+	 * Indicates if the server may hold this request open until something changes.
+	 *
+	 * @return {@code true} if the request is a long poll, {@code false} otherwise.
+	 */
+	protected boolean isLongPoll() {
+		return false;
+	}
+
 	protected abstract Result createResult(FullHttpResponse response);
 
 	private class EtcdPromise extends DefaultPromise<Result> implements EtcdFuture {
+		private volatile Runnable cancelRequest;
+
 		private EtcdPromise() {
 			super(client.getEventLoopGroup().next());
 		}
+
+		/**
+		 * Abandons the request along with the promise, closing the connection it is waiting on.
+		 */
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (!super.cancel(mayInterruptIfRunning)) {
+				return false;
+			}
+			final Runnable cancelRequest = this.cancelRequest;
+			if (cancelRequest != null) {
+				cancelRequest.run();
+			}
+			return true;
+		}
 	}
 
 }
@@ -0,0 +1,339 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of keep-alive connections to a single etcd server.
+ *
+ * <p>At most {@link Limits#getMaxConnections()} connections are open (or being opened) at any time. Callers that
+ * ask for a connection while the pool is exhausted are queued, up to {@link Limits#getMaxPendingAcquires()}, and
+ * handed the next connection that is released. Connections that sit idle in the pool longer than
+ * {@link Limits#getIdleTimeout()} are closed.
+ *
+ * <p>When {@link Limits#getPipeliningDepth()} is greater than one, a connection that already has requests in flight
+ * may be handed out again until it has that many outstanding requests. Idle connections and new connections are
+ * preferred over pipelining so that a slow response doesn't hold up requests that could have been sent elsewhere.
+ */
+class ChannelPool {
+
+	static final AttributeKey<ChannelPool> POOL_KEY = AttributeKey.valueOf(ChannelPool.class.getName() + "-pool");
+	private static final AttributeKey<Integer> IN_FLIGHT_KEY = AttributeKey.valueOf(ChannelPool.class.getName() + "-inFlight");
+
+	private final EventLoopGroup eventLoopGroup;
+	private final Bootstrap bootstrap;
+	private final InetSocketAddress address;
+	private final Limits limits;
+
+	private final Object lock = new Object();
+	private final Deque<Channel> idleChannels = new ArrayDeque<>();
+	private final Deque<Channel> pipelinableChannels = new ArrayDeque<>();
+	private final Queue<Promise<Channel>> pendingAcquires = new ArrayDeque<>();
+	// Every open channel, including those in use, so that closing the pool closes them all
+	private final Set<Channel> channels = new HashSet<>();
+	private int connectionCount;
+	private boolean closed;
+
+	ChannelPool(Bootstrap bootstrap, InetSocketAddress address, Limits limits) {
+		this.eventLoopGroup = bootstrap.group();
+		this.bootstrap = bootstrap.clone()
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) Math.min(Integer.MAX_VALUE, limits.connectTimeout.toMillis()));
+		this.address = address;
+		this.limits = limits;
+	}
+
+	/**
+	 * Acquires a connection from the pool, opening a new one if no idle connection is available and the pool is
+	 * under its connection limit. The returned channel must be given back with {@link #release(Channel)} once the
+	 * response has been read, or closed if it can't be reused.
+	 *
+	 * @return a future that completes with a connected channel, cancelling it gives up waiting for a connection.
+	 */
+	public Future<Channel> acquire() {
+		final Promise<Channel> promise = eventLoopGroup.next().newPromise();
+		boolean connect = false;
+		synchronized (lock) {
+			if (closed) {
+				return promise.setFailure(new EtcdException("Connection pool has been closed"));
+			}
+			Channel channel;
+			while ((channel = idleChannels.pollLast()) != null) {
+				if (channel.isActive()) {
+					return promise.setSuccess(reserve(channel));
+				}
+			}
+			if (connectionCount < limits.maxConnections) {
+				connectionCount++;
+				connect = true;
+			} else {
+				while ((channel = pipelinableChannels.pollFirst()) != null) {
+					if (channel.isActive()) {
+						return promise.setSuccess(reserve(channel));
+					}
+				}
+				if (pendingAcquires.size() < limits.maxPendingAcquires) {
+					pendingAcquires.add(promise);
+					// A waiter that gives up, because its request timed out for example, frees its place in the queue
+					promise.addListener(future -> {
+						if (future.isCancelled()) {
+							synchronized (lock) {
+								pendingAcquires.remove(promise);
+							}
+						}
+					});
+				} else {
+					return promise.setFailure(new EtcdException("Too many requests waiting for a connection to " + address));
+				}
+			}
+		}
+		if (connect) {
+			connect(promise);
+		}
+		return promise;
+	}
+
+	/**
+	 * Returns a connection to the pool so that it may be reused by another request. When pipelining, this must be
+	 * invoked once for each time the channel was acquired.
+	 *
+	 * @param channel the channel previously obtained from {@link #acquire()}.
+	 */
+	public void release(Channel channel) {
+		if (!channel.isActive()) {
+			// The close future listener takes care of the bookkeeping
+			return;
+		}
+		final Promise<Channel> waiter;
+		synchronized (lock) {
+			if (closed) {
+				channel.close();
+				return;
+			}
+			final int inFlight = channel.attr(IN_FLIGHT_KEY).get() - 1;
+			channel.attr(IN_FLIGHT_KEY).set(inFlight);
+			waiter = pendingAcquires.poll();
+			if (waiter == null) {
+				pipelinableChannels.remove(channel);
+				if (inFlight == 0) {
+					idleChannels.addLast(channel);
+				} else {
+					pipelinableChannels.addLast(channel);
+				}
+				return;
+			}
+			reserve(channel);
+		}
+		if (!waiter.trySuccess(channel)) {
+			release(channel);
+		}
+	}
+
+	/**
+	 * Records another request in flight on the channel, must be called while holding the lock.
+	 */
+	private Channel reserve(Channel channel) {
+		final Integer current = channel.attr(IN_FLIGHT_KEY).get();
+		final int inFlight = current == null ? 1 : current + 1;
+		channel.attr(IN_FLIGHT_KEY).set(inFlight);
+		if (inFlight < limits.pipeliningDepth) {
+			pipelinableChannels.remove(channel);
+			pipelinableChannels.addLast(channel);
+		}
+		return channel;
+	}
+
+	/**
+	 * Closes every connection, including those in use, and fails the requests waiting for one. Later acquires fail.
+	 */
+	public void close() {
+		final List<Channel> channels;
+		final List<Promise<Channel>> waiters;
+		synchronized (lock) {
+			closed = true;
+			channels = new ArrayList<>(this.channels);
+			idleChannels.clear();
+			pipelinableChannels.clear();
+			waiters = new ArrayList<>(pendingAcquires);
+			pendingAcquires.clear();
+		}
+		channels.forEach(Channel::close);
+		waiters.forEach(waiter -> waiter.tryFailure(new EtcdException("Connection pool has been closed")));
+	}
+
+	private void connect(Promise<Channel> promise) {
+		final ChannelFuture connectFuture = bootstrap.connect(address.getHostString(), address.getPort());
+		final Channel channel = connectFuture.channel();
+		channel.attr(POOL_KEY).set(this);
+		synchronized (lock) {
+			if (closed) {
+				channel.close();
+			} else {
+				channels.add(channel);
+			}
+		}
+		channel.closeFuture().addListener(future -> channelClosed(channel));
+		connectFuture.addListener(future -> {
+			if (future.isSuccess()) {
+				if (!limits.idleTimeout.isZero()) {
+					channel.pipeline().addFirst(
+							new IdleStateHandler(0, 0, limits.idleTimeout.toMillis(), TimeUnit.MILLISECONDS),
+							new IdleEvictionHandler());
+				}
+				synchronized (lock) {
+					reserve(channel);
+				}
+				if (!promise.trySuccess(channel)) {
+					release(channel);
+				}
+			} else {
+				promise.tryFailure(future.cause());
+			}
+		});
+	}
+
+	private void channelClosed(Channel channel) {
+		final Promise<Channel> waiter;
+		synchronized (lock) {
+			channels.remove(channel);
+			idleChannels.remove(channel);
+			pipelinableChannels.remove(channel);
+			connectionCount--;
+			if (closed || connectionCount >= limits.maxConnections) {
+				return;
+			}
+			waiter = pendingAcquires.poll();
+			if (waiter == null) {
+				return;
+			}
+			connectionCount++;
+		}
+		connect(waiter);
+	}
+
+	private boolean evict(Channel channel) {
+		synchronized (lock) {
+			return idleChannels.remove(channel);
+		}
+	}
+
+	private class IdleEvictionHandler extends ChannelInboundHandlerAdapter {
+		@Override
+		public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+			if (evt instanceof IdleStateEvent) {
+				// Only close the connection if it is sitting in the pool, a request may be waiting on a long poll
+				if (evict(ctx.channel())) {
+					ctx.close();
+				}
+			} else {
+				super.userEventTriggered(ctx, evt);
+			}
+		}
+	}
+
+	static class Limits {
+
+		public static final int DEFAULT_MAX_CONNECTIONS = 10;
+		public static final int DEFAULT_MAX_PENDING_ACQUIRES = 1000;
+		public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofSeconds(60);
+		public static final int DEFAULT_PIPELINING_DEPTH = 1;
+		public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(2);
+
+		public static final int DEFAULT_LONG_POLL_MAX_CONNECTIONS = 100;
+		public static final int DEFAULT_LONG_POLL_MAX_PENDING_ACQUIRES = 10000;
+		public static final Duration DEFAULT_LONG_POLL_IDLE_TIMEOUT = Duration.ofSeconds(10);
+
+		private final int maxConnections;
+		private final int maxPendingAcquires;
+		private final Duration idleTimeout;
+		private final int pipeliningDepth;
+		private final Duration connectTimeout;
+
+		Limits(int maxConnections, int maxPendingAcquires, Duration idleTimeout, int pipeliningDepth, Duration connectTimeout) {
+			if (maxConnections < 1) {
+				throw new IllegalArgumentException("maxConnections must be at least 1");
+			}
+			if (maxPendingAcquires < 0) {
+				throw new IllegalArgumentException("maxPendingAcquires can not be negative");
+			}
+			if (idleTimeout.isNegative()) {
+				throw new IllegalArgumentException("idleTimeout can not be negative");
+			}
+			if (pipeliningDepth < 1) {
+				throw new IllegalArgumentException("pipeliningDepth must be at least 1");
+			}
+			if (connectTimeout.isNegative()) {
+				throw new IllegalArgumentException("connectTimeout can not be negative");
+			}
+			this.maxConnections = maxConnections;
+			this.maxPendingAcquires = maxPendingAcquires;
+			this.idleTimeout = idleTimeout;
+			this.pipeliningDepth = pipeliningDepth;
+			this.connectTimeout = connectTimeout;
+		}
+
+		static Limits defaults() {
+			return new Limits(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_PENDING_ACQUIRES, DEFAULT_IDLE_TIMEOUT, DEFAULT_PIPELINING_DEPTH, DEFAULT_CONNECT_TIMEOUT);
+		}
+
+		static Limits longPollDefaults() {
+			return new Limits(DEFAULT_LONG_POLL_MAX_CONNECTIONS, DEFAULT_LONG_POLL_MAX_PENDING_ACQUIRES, DEFAULT_LONG_POLL_IDLE_TIMEOUT, 1, DEFAULT_CONNECT_TIMEOUT);
+		}
+
+		public int getMaxConnections() {
+			return maxConnections;
+		}
+
+		public int getMaxPendingAcquires() {
+			return maxPendingAcquires;
+		}
+
+		public Duration getIdleTimeout() {
+			return idleTimeout;
+		}
+
+		public int getPipeliningDepth() {
+			return pipeliningDepth;
+		}
+
+		public Duration getConnectTimeout() {
+			return connectTimeout;
+		}
+	}
+}
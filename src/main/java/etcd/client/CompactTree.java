@@ -0,0 +1,245 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.RandomAccess;
+
+/**
+ * A node tree stored column by column in primitive arrays, see {@link GetRequest#compact()}.
+ *
+ * <p>Nodes are numbered in the order they appear in the response, so the root is node {@code 0}. The strings of every
+ * node stay in the response body, which serves as the tree's byte arena, and each node only records where they
+ * start. The children of node {@code i} are {@code children[childStart[i]]} to
+ * {@code children[childStart[i] + childCount(i) - 1]}.
+ *
+ * <p>{@link Node} instances are lightweight views that are created as the tree is navigated.
+ */
+final class CompactTree {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final ByteBuffer body;
+
+	private int size;
+	private long[] createdIndexes = new long[INITIAL_CAPACITY];
+	private long[] modifiedIndexes = new long[INITIAL_CAPACITY];
+	private long[] timeToLives = new long[INITIAL_CAPACITY];
+	private int[] keyOffsets = new int[INITIAL_CAPACITY];
+	private int[] valueOffsets = new int[INITIAL_CAPACITY];
+	private int[] expirationOffsets = new int[INITIAL_CAPACITY];
+	private boolean[] directories = new boolean[INITIAL_CAPACITY];
+	private int[] parents = new int[INITIAL_CAPACITY];
+	private int[] childStart;
+	private int[] children;
+
+	CompactTree(ByteBuffer body) {
+		this.body = body;
+	}
+
+	ByteBuffer body() {
+		return body;
+	}
+
+	/**
+	 * Adds a node with no fields set.
+	 *
+	 * @param parent the index of the parent node, or {@code -1} for the root.
+	 * @return the index of the new node.
+	 */
+	int add(int parent) {
+		if (size == createdIndexes.length) {
+			resize(size * 2);
+		}
+		final int index = size++;
+		modifiedIndexes[index] = LazyNode.NO_NUMBER;
+		timeToLives[index] = LazyNode.NO_NUMBER;
+		keyOffsets[index] = LazyNode.ABSENT;
+		valueOffsets[index] = LazyNode.ABSENT;
+		expirationOffsets[index] = LazyNode.ABSENT;
+		parents[index] = parent;
+		return index;
+	}
+
+	void setCreatedIndex(int node, long createdIndex) {
+		createdIndexes[node] = createdIndex;
+	}
+
+	void setModifiedIndex(int node, long modifiedIndex) {
+		modifiedIndexes[node] = modifiedIndex;
+	}
+
+	void setTimeToLive(int node, long timeToLive) {
+		timeToLives[node] = timeToLive;
+	}
+
+	void setKeyOffset(int node, int offset) {
+		keyOffsets[node] = offset;
+	}
+
+	void setValueOffset(int node, int offset) {
+		valueOffsets[node] = offset;
+	}
+
+	void setExpirationOffset(int node, int offset) {
+		expirationOffsets[node] = offset;
+	}
+
+	void setDirectory(int node, boolean directory) {
+		directories[node] = directory;
+	}
+
+	/**
+	 * Trims the arrays to size and indexes the children of each node, must be called once every node has been added.
+	 *
+	 * @return the root node, or {@code null} if the tree is empty.
+	 */
+	Node complete() {
+		resize(size);
+		// Count the children of each node, then turn the counts into offsets and fill in the children in order
+		childStart = new int[size + 1];
+		for (int i = 1; i < size; i++) {
+			childStart[parents[i] + 1]++;
+		}
+		for (int i = 0; i < size; i++) {
+			childStart[i + 1] += childStart[i];
+		}
+		children = new int[Math.max(0, size - 1)];
+		final int[] next = Arrays.copyOf(childStart, size);
+		for (int i = 1; i < size; i++) {
+			children[next[parents[i]]++] = i;
+		}
+		return size == 0 ? null : new CompactNode(0);
+	}
+
+	private void resize(int capacity) {
+		createdIndexes = Arrays.copyOf(createdIndexes, capacity);
+		modifiedIndexes = Arrays.copyOf(modifiedIndexes, capacity);
+		timeToLives = Arrays.copyOf(timeToLives, capacity);
+		keyOffsets = Arrays.copyOf(keyOffsets, capacity);
+		valueOffsets = Arrays.copyOf(valueOffsets, capacity);
+		expirationOffsets = Arrays.copyOf(expirationOffsets, capacity);
+		directories = Arrays.copyOf(directories, capacity);
+		parents = Arrays.copyOf(parents, capacity);
+	}
+
+	private int childCount(int node) {
+		return childStart[node + 1] - childStart[node];
+	}
+
+	private class CompactNode implements Node {
+		private final int index;
+
+		private CompactNode(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public long getCreatedIndex() {
+			return createdIndexes[index];
+		}
+
+		@Override
+		public Optional<Long> getModifiedIndex() {
+			final long modifiedIndex = modifiedIndexes[index];
+			return modifiedIndex == LazyNode.NO_NUMBER ? Optional.empty() : Optional.of(modifiedIndex);
+		}
+
+		@Override
+		public String getKey() {
+			final int offset = keyOffsets[index];
+			return offset == LazyNode.ABSENT ? null : ResultDecoder.decodeString(body, offset);
+		}
+
+		@Override
+		public Optional<String> getValue() {
+			final int offset = valueOffsets[index];
+			return offset == LazyNode.ABSENT ? Optional.empty() : Optional.of(ResultDecoder.decodeString(body, offset));
+		}
+
+		@Override
+		public Optional<byte[]> getValueBytes() {
+			final int offset = valueOffsets[index];
+			return offset == LazyNode.ABSENT ? Optional.empty() : Optional.of(ResultDecoder.decodeBase64(body, offset));
+		}
+
+		@Override
+		public Optional<Instant> getExpiration() {
+			final int offset = expirationOffsets[index];
+			return offset == LazyNode.ABSENT ? Optional.empty()
+					: Optional.of(DateTimeFormatter.ISO_OFFSET_DATE_TIME.parse(ResultDecoder.decodeString(body, offset), Instant::from));
+		}
+
+		@Override
+		public Optional<Duration> getTimetoLive() {
+			final long timeToLive = timeToLives[index];
+			return timeToLive == LazyNode.NO_NUMBER ? Optional.empty() : Optional.of(Duration.ofSeconds(timeToLive));
+		}
+
+		@Override
+		public boolean isDirectory() {
+			return directories[index];
+		}
+
+		@Override
+		public List<? extends Node> getNodes() {
+			return new Children(index);
+		}
+
+		@Override
+		public String toString() {
+			return "CompactNode{" +
+					"createdIndex=" + getCreatedIndex() +
+					", modifiedIndex=" + getModifiedIndex().orElse(null) +
+					", key='" + getKey() + '\'' +
+					", value='" + getValue().orElse(null) + '\'' +
+					", expiration=" + getExpiration().orElse(null) +
+					", timeToLive=" + getTimetoLive().orElse(null) +
+					", directory=" + isDirectory() +
+					", nodes=" + getNodes() +
+					'}';
+		}
+	}
+
+	private class Children extends AbstractList<Node> implements RandomAccess {
+		private final int parent;
+
+		private Children(int parent) {
+			this.parent = parent;
+		}
+
+		@Override
+		public Node get(int i) {
+			if (i < 0 || i >= size()) {
+				throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+			}
+			return new CompactNode(children[childStart[parent] + i]);
+		}
+
+		@Override
+		public int size() {
+			return childCount(parent);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * The changes received by a watch, conflated so that only the latest change to each key is kept until it is drained,
+ * see {@link WatchRequest#conflate()}.
+ *
+ * <p>However often a key changes between two drains, the second drain returns a single change for it, so a consumer
+ * that only cares about the current value of each key does the same amount of work however fast the keys change. The
+ * changes are returned in the order their keys first changed since the previous drain.
+ */
+public interface ConflatedChanges extends AutoCloseable {
+
+	/**
+	 * Returns the latest change to each key that changed since the last drain, without waiting.
+	 *
+	 * @return the changes, or an empty list if no key has changed.
+	 * @throws EtcdException if the watch ended because of an error and every change has been drained.
+	 */
+	List<Result> drain();
+
+	/**
+	 * Returns the latest change to each key that changed since the last drain, waiting for a key to change if none
+	 * has.
+	 *
+	 * @param timeout the longest to wait for a change.
+	 * @return the changes, or an empty list if no key changed before the timeout expired or the watch has ended, which
+	 *         {@link #isClosed()} tells apart.
+	 * @throws EtcdException if the watch ended because of an error and every change has been drained, or if the
+	 *                       thread was interrupted.
+	 */
+	List<Result> drain(Duration timeout);
+
+	/**
+	 * Indicates if the watch has ended, because it was closed or because of an error. Changes received before it
+	 * ended can still be drained.
+	 *
+	 * @return {@code true} if no more changes will arrive.
+	 */
+	boolean isClosed();
+
+	/**
+	 * Stops the watch, changes that haven't been drained can still be drained.
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,124 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the latest change to each key until it is drained, see {@link ConflatedChanges}.
+ *
+ * <p>The latest change to each key is kept in a map, and each key is queued once when it goes from having no pending
+ * change to having one. A change to a key that already has a pending change just replaces it in the map, so a hot key
+ * costs one map update per change and never grows the queue or wakes the consumer. Draining takes keys off the queue
+ * and their changes out of the map.
+ */
+final class ConflatingBuffer implements ConflatedChanges {
+
+	private final Map<String, Result> pending = new ConcurrentHashMap<>();
+	private final Queue<String> ready = new ConcurrentLinkedQueue<>();
+	private final Object signal = new Object();
+	private final Runnable closeWatch;
+
+	private volatile boolean ended;
+	private volatile Throwable failure;
+
+	/**
+	 * @param closeWatch invoked to stop the watch when the buffer is closed.
+	 */
+	ConflatingBuffer(Runnable closeWatch) {
+		this.closeWatch = closeWatch;
+	}
+
+	/**
+	 * Adds a change, replacing the pending change to the same key.
+	 */
+	void offer(Result result) {
+		final Node node = result.getNode();
+		if (node == null || node.getKey() == null) {
+			return;
+		}
+		if (pending.put(node.getKey(), result) == null) {
+			ready.add(node.getKey());
+			synchronized (signal) {
+				signal.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Marks the end of the changes.
+	 *
+	 * @param cause why the watch ended, or {@code null} if it was closed.
+	 */
+	void terminate(Throwable cause) {
+		failure = cause;
+		ended = true;
+		synchronized (signal) {
+			signal.notifyAll();
+		}
+	}
+
+	@Override
+	public List<Result> drain() {
+		final List<Result> changes = new ArrayList<>(ready.size());
+		String key;
+		while ((key = ready.poll()) != null) {
+			final Result result = pending.remove(key);
+			if (result != null) {
+				changes.add(result);
+			}
+		}
+		if (changes.isEmpty() && ended && failure != null) {
+			throw failure instanceof EtcdException ? (EtcdException) failure : new EtcdException(failure);
+		}
+		return changes;
+	}
+
+	@Override
+	public List<Result> drain(Duration timeout) {
+		final long deadline = System.nanoTime() + timeout.toNanos();
+		synchronized (signal) {
+			long remaining;
+			while (ready.isEmpty() && !ended && (remaining = deadline - System.nanoTime()) > 0) {
+				try {
+					TimeUnit.NANOSECONDS.timedWait(signal, remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new EtcdException(e);
+				}
+			}
+		}
+		return drain();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return ended;
+	}
+
+	@Override
+	public void close() {
+		closeWatch.run();
+	}
+}
@@ -16,46 +16,139 @@
  */
 package etcd.client;
 
-import com.fasterxml.jackson.annotation.JsonCreator;
-import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.net.URLEncoder;
 import java.time.Duration;
-import java.time.Instant;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 class DefaultEtcdClient implements EtcdClient {
 
-	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final Logger LOGGER = LoggerFactory.getLogger(DefaultEtcdClient.class);
+
+	private static final String KEYS_PATH = "/v2/keys";
+
+	/**
+	 * How many changes a watch's stream holds before the watch stops polling until the stream is read.
+	 */
+	private static final int MAX_QUEUED_WATCH_RESULTS = 1024;
+	private static final Duration WATCH_RETRY_DELAY = Duration.ofSeconds(1);
+	/**
+	 * How far a conflated watch can fall behind etcd's index before it reads the current state of the key rather than
+	 * every change in between, see {@link WatchRequestImpl#canSkipAhead()}.
+	 */
+	private static final long MAX_CONFLATED_LAG = 100;
+	/**
+	 * The error etcd returns when a watch asks for a change that has dropped out of its history.
+	 */
+	private static final int EVENT_INDEX_CLEARED = 401;
+	private static final Object END_OF_WATCH = new Object();
+	/**
+	 * The longest a resynchronizing watch that fell behind waits, at random, before reloading its keys. The wait doubles
+	 * with each failure to load a snapshot in a row, up to {@link #MAX_RESYNC_DELAY}.
+	 */
+	private static final Duration RESYNC_JITTER = Duration.ofSeconds(1);
+	private static final Duration MAX_RESYNC_DELAY = Duration.ofMinutes(1);
+	/**
+	 * The longest a resynchronizing watch waits for the server to start sending a snapshot of its keys.
+	 */
+	private static final Duration RESYNC_TIMEOUT = Duration.ofSeconds(30);
+	private static final String FORM_CONTENT_TYPE = HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED + ";charset=utf-8";
 
 	private final HttpClient client;
 	private final EventLoopGroup eventLoopGroup;
+	private final boolean stacklessExceptions;
+	private final Map<String, WatchHubImpl> watchHubs = new ConcurrentHashMap<>();
+	// The watches that have been started and not closed yet, so closing the client can close them
+	private final Set<WatchRequestImpl> watches = ConcurrentHashMap.newKeySet();
+	private final Resynchronizer resynchronizer = new Resynchronizer();
+
+	private volatile boolean closed;
 
 	DefaultEtcdClient(EtcdClientBuilder builder) {
 		EventLoopGroup eventLoopGroup = builder.eventLoopGroup;
 		if (eventLoopGroup == null) {
-			this.eventLoopGroup = eventLoopGroup = new NioEventLoopGroup();
+			this.eventLoopGroup = eventLoopGroup = createEventLoopGroup(builder.nativeTransport);
 		} else {
 			this.eventLoopGroup = null;
 		}
-		client = new HttpClient(eventLoopGroup, builder.executor, builder.servers, builder.retryOnConnectFailure);
+		final ChannelPool.Limits poolLimits = new ChannelPool.Limits(
+				builder.maxConnectionsPerServer,
+				builder.maxPendingConnectionRequests,
+				builder.connectionIdleTimeout,
+				builder.pipeliningDepth,
+				builder.connectTimeout);
+		final ChannelPool.Limits longPollPoolLimits = new ChannelPool.Limits(
+				builder.maxLongPollConnectionsPerServer,
+				builder.maxPendingLongPollRequests,
+				builder.longPollIdleTimeout,
+				1,
+				builder.connectTimeout);
+		// The builder's list is only a template, the breakers and the probes belong to this client
+		client = new HttpClient(eventLoopGroup, builder.executor, builder.servers.copy(), builder.retryOnConnectFailure,
+				poolLimits, longPollPoolLimits, builder.compression, builder.maxResponseSize, builder.spillThreshold,
+				builder.spillDirectory);
+		stacklessExceptions = builder.stacklessExceptions;
+	}
+
+	private static EventLoopGroup createEventLoopGroup(boolean nativeTransport) {
+		if (nativeTransport && !PlatformDependent.hasUnsafe()) {
+			// The epoll transport writes from the memory addresses of direct buffers, which it can't get without Unsafe
+			LOGGER.warn("Unable to use the native epoll transport without sun.misc.Unsafe, falling back to NIO");
+		} else if (nativeTransport) {
+			try {
+				return new EpollEventLoopGroup();
+			} catch (Throwable t) {
+				// Loading the native library fails with a LinkageError on platforms it doesn't support
+				LOGGER.warn("Unable to use the native epoll transport, falling back to NIO", t);
+			}
+		}
+		return new NioEventLoopGroup();
 	}
 
 	@Override
@@ -74,12 +167,28 @@ class DefaultEtcdClient implements EtcdClient {
 	}
 
 	@Override
-	public WatchRequest watch(String Key) {
-		throw new UnsupportedOperationException("The watch API isn't supported yet.");
+	public WatchRequest watch(String key) {
+		return new WatchRequestImpl(client, key);
+	}
+
+	@Override
+	public WatchHub watchHub(String directory) {
+		directory = validateKey(directory);
+		// Trailing slashes don't make it a different directory
+		int end = directory.length();
+		while (end > 1 && directory.charAt(end - 1) == '/') {
+			end--;
+		}
+		return watchHubs.computeIfAbsent(directory.substring(0, end), WatchHubImpl::new);
 	}
 
 	@Override
 	public void close() {
+		closed = true;
+		resynchronizer.close();
+		watchHubs.values().forEach(WatchHubImpl::close);
+		watches.forEach(WatchRequestImpl::close);
+		client.close();
 		if (eventLoopGroup != null) {
 			eventLoopGroup.shutdownGracefully();
 		}
@@ -92,6 +201,7 @@ class DefaultEtcdClient implements EtcdClient {
 		private boolean consistent = false;
 		private boolean recursive = false;
 		private boolean sorted = false;
+		private boolean compact = false;
 		private boolean wait = false;
 		private Long waitIndex = null;
 
@@ -103,31 +213,29 @@ class DefaultEtcdClient implements EtcdClient {
 
 		@Override
 		protected FullHttpRequest buildRequest() {
-			final StringBuilder uriBuilder = new StringBuilder();
-			uriBuilder.append("/v2/keys").append(key);
-			final StringBuilder queryBuilder = new StringBuilder();
+			final StringBuilder uriBuilder = newUriBuilder(key);
+			final int pathLength = uriBuilder.length();
 			if (consistent) {
-				appendQueryStringSeparator(queryBuilder);
-				queryBuilder.append("consistent=true");
+				appendQueryStringSeparator(uriBuilder, pathLength);
+				uriBuilder.append("consistent=true");
 			}
 			if (recursive) {
-				appendQueryStringSeparator(queryBuilder);
-				queryBuilder.append("recursive=true");
+				appendQueryStringSeparator(uriBuilder, pathLength);
+				uriBuilder.append("recursive=true");
 			}
 			if (sorted) {
-				appendQueryStringSeparator(queryBuilder);
-				queryBuilder.append("sorted=true");
+				appendQueryStringSeparator(uriBuilder, pathLength);
+				uriBuilder.append("sorted=true");
 			}
 			if (wait) {
-				appendQueryStringSeparator(queryBuilder);
-				queryBuilder.append("wait=true");
+				appendQueryStringSeparator(uriBuilder, pathLength);
+				uriBuilder.append("wait=true");
 			}
 			if (waitIndex != null) {
-				appendQueryStringSeparator(queryBuilder);
-				queryBuilder.append("waitIndex=").append(waitIndex);
+				appendQueryStringSeparator(uriBuilder, pathLength);
+				uriBuilder.append("waitIndex=").append(waitIndex.longValue());
 			}
-			uriBuilder.append(queryBuilder);
-			return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uriBuilder.toString());
+			return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uriBuilder.toString(), Unpooled.EMPTY_BUFFER);
 		}
 
 		@Override
@@ -135,7 +243,84 @@ class DefaultEtcdClient implements EtcdClient {
 			if (!response.getStatus().equals(HttpResponseStatus.OK)) {
 				throwException(response);
 			}
-			return marshalResult(response);
+			return marshalResult(response, compact);
+		}
+
+		@Override
+		protected boolean isLongPoll() {
+			return wait;
+		}
+
+		@Override
+		public Optional<Result> sendIfPresent() {
+			return sendIfPresent(null);
+		}
+
+		@Override
+		public Optional<Result> sendIfPresent(Duration timeout) {
+			return Optional.ofNullable(send(timeout, response -> {
+				if (response.getStatus().equals(HttpResponseStatus.NOT_FOUND)) {
+					// Don't bother decoding the error, the status says it all
+					return null;
+				}
+				return createResult(response);
+			}));
+		}
+
+		@Override
+		public Stream<Node> streamNodes() {
+			return streamNodes(null);
+		}
+
+		@Override
+		public Stream<Node> streamNodes(Duration timeout) {
+			return streamNodes(timeout, meta -> {
+			});
+		}
+
+		/**
+		 * Streams the nodes like {@link #streamNodes(Duration)}, passing the meta-data of the response to
+		 * {@code metaListener} before any node is read.
+		 */
+		private Stream<Node> streamNodes(Duration timeout, Consumer<? super EtcdMeta> metaListener) {
+			if (wait) {
+				throw new EtcdException("Can not stream the nodes of a request that waits for a change");
+			}
+			final boolean recursive = this.recursive;
+			this.recursive = true;
+			final FullHttpRequest request;
+			try {
+				request = buildRequest();
+			} finally {
+				this.recursive = recursive;
+			}
+			final ResponseStream responseStream = client.openStream(request, timeout);
+			try {
+				final HttpResponse response = responseStream.awaitResponse();
+				if (!response.getStatus().equals(HttpResponseStatus.OK)) {
+					// Error bodies are small, read the whole thing so it can be decoded as usual
+					final ByteBuf content = Unpooled.buffer();
+					try {
+						while (content.writeBytes(responseStream, 4096) >= 0) {
+							// Keep reading
+						}
+						final FullHttpResponse errorResponse = new DefaultFullHttpResponse(response.getProtocolVersion(), response.getStatus(), content);
+						errorResponse.headers().set(response.headers());
+						throwException(errorResponse);
+					} finally {
+						content.release();
+					}
+				}
+				metaListener.accept(responseMeta(response));
+				return StreamSupport.stream(ResultDecoder.streamNodes(responseStream), false)
+						.onClose(responseStream::close);
+			} catch (IOException e) {
+				responseStream.close();
+				throw new EtcdException(e);
+			} catch (RuntimeException e) {
+				responseStream.close();
+				throw e;
+			}
 		}
 
 		@Override
@@ -156,6 +341,12 @@ class DefaultEtcdClient implements EtcdClient {
 			return this;
 		}
 
+		@Override
+		public GetRequest compact() {
+			compact = true;
+			return this;
+		}
+
 		@Override
 		public GetRequest waitForChange() {
 			wait = true;
@@ -169,15 +360,885 @@ class DefaultEtcdClient implements EtcdClient {
 		}
 	}
 
+	private class WatchRequestImpl extends GetRequestImpl implements WatchRequest {
+
+		private final Object lock = new Object();
+		private final List<Consumer<? super Result>> listeners = new CopyOnWriteArrayList<>();
+		// Results waiting to be read from the stream, followed by END or the exception that ended the watch
+		private final BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+
+		private volatile long currentIndex;
+		private EtcdFuture poll;
+		private boolean started;
+		private boolean streaming;
+		private WatchPublisher publisher;
+		private ConflatingBuffer conflatingBuffer;
+		// Catch up from a snapshot rather than end when etcd ends the watch, see resync
+		private boolean resynchronize;
+		// The keys the watch has told of, to find the ones deleted while skipping ahead or resynchronizing
+		private WatchState state;
+		// Set when polling stopped because the stream's buffer is full or the publisher's subscribers are satisfied
+		private boolean paused;
+		private boolean closed;
+		// Invoked when a snapshot to resynchronize from can't be loaded
+		private Consumer<? super EtcdException> resyncFailureListener;
+
+		public WatchRequestImpl(HttpClient client, String key) {
+			super(client, key);
+			super.waitForChange();
+		}
+
+		@Override
+		public long getCurrentIndex() {
+			return currentIndex;
+		}
+
+		@Override
+		public WatchRequest addListener(Consumer<? super Result> listener) {
+			listeners.add(listener);
+			return this;
+		}
+
+		@Override
+		public WatchRequest resynchronize() {
+			synchronized (lock) {
+				if (started) {
+					throw new IllegalStateException("The watch has already started");
+				}
+				if (!resynchronize) {
+					resynchronize = true;
+					state = new WatchState();
+				}
+			}
+			return this;
+		}
+
+		@Override
+		public WatchRequest start() {
+			boolean closeLater = false;
+			synchronized (lock) {
+				if (!started && !closed) {
+					started = true;
+					watches.add(this);
+					if (DefaultEtcdClient.this.closed) {
+						// Raced with closing the client, which may have missed this watch
+						watches.remove(this);
+						closeLater = true;
+					} else if (resynchronize) {
+						// Polling starts once the snapshot has told which keys there are
+						resynchronizer.request(this, false);
+					} else if (canPoll()) {
+						poll();
+					} else {
+						paused = true;
+					}
+				}
+			}
+			if (closeLater) {
+				close();
+			}
+			return this;
+		}
+
+		@Override
+		public Stream<Result> stream() {
+			synchronized (lock) {
+				if (streaming) {
+					throw new IllegalStateException("The watch is already being streamed");
+				}
+				streaming = true;
+			}
+			start();
+			return StreamSupport.stream(new ResultSpliterator(), false).onClose(this::close);
+		}
+
+		@Override
+		public Publisher<Result> publisher(int bufferSize, OverflowPolicy overflowPolicy) {
+			final WatchPublisher publisher = new WatchPublisher(bufferSize, overflowPolicy, this::resume);
+			synchronized (lock) {
+				if (this.publisher != null) {
+					throw new IllegalStateException("The watch is already being published");
+				}
+				this.publisher = publisher;
+				if (closed) {
+					publisher.terminate(null);
+				}
+			}
+			start();
+			return publisher;
+		}
+
+		@Override
+		public ConflatedChanges conflate() {
+			final ConflatingBuffer buffer = new ConflatingBuffer(this::close);
+			synchronized (lock) {
+				if (conflatingBuffer != null) {
+					throw new IllegalStateException("The watch is already being conflated");
+				}
+				conflatingBuffer = buffer;
+				if (state == null) {
+					state = new WatchState();
+					// The consumer only knows about the keys it is told of from here on
+					state.seed(currentIndex > 0 ? currentIndex : (super.waitIndex == null ? 0 : super.waitIndex - 1));
+				}
+				if (closed) {
+					buffer.terminate(null);
+				}
+			}
+			listeners.add(buffer::offer);
+			start();
+			return buffer;
+		}
+
+		/**
+		 * Sends the next long poll, must be called while holding the lock.
+		 */
+		private void poll() {
+			poll = sendAsync();
+			poll.addListener((EtcdListener) this::pollCompleted);
+		}
+
+		private void pollCompleted(EtcdFuture future) {
+			if (future.isCancelled()) {
+				return;
+			}
+			if (!future.isSuccess()) {
+				pollFailed(future.cause());
+				return;
+			}
+			final Result result = future.getNow();
+			final Node node = result.getNode();
+			final long index = node != null && node.getModifiedIndex().isPresent()
+					? node.getModifiedIndex().get() : result.getResponseMeta().getEtcdIndex();
+			currentIndex = index;
+			deliver(result);
+			synchronized (lock) {
+				super.waitIndex(index + 1);
+				if (closed) {
+					return;
+				}
+				if (state != null) {
+					state.update(result);
+				}
+				if (result.getResponseMeta().getEtcdIndex() - index > MAX_CONFLATED_LAG && canSkipAhead()) {
+					skipAhead();
+				} else if (canPoll()) {
+					poll();
+				} else {
+					paused = true;
+				}
+			}
+		}
+
+		/**
+		 * Passes a change to the listeners, the publisher and the stream.
+		 */
+		private void deliver(Result result) {
+			for (Consumer<? super Result> listener : listeners) {
+				try {
+					listener.accept(result);
+				} catch (RuntimeException e) {
+					LOGGER.error("Watch listener failed", e);
+				}
+			}
+			final WatchPublisher publisher;
+			synchronized (lock) {
+				publisher = this.publisher;
+			}
+			if (publisher != null) {
+				try {
+					publisher.offer(result);
+				} catch (RuntimeException e) {
+					// A subscriber that throws is cancelled, the watch goes on for the others
+					LOGGER.error("Watch subscriber failed", e);
+				}
+			}
+			synchronized (lock) {
+				if (streaming && !closed) {
+					results.add(result);
+				}
+			}
+		}
+
+		/**
+		 * Indicates if the watch may skip changes to catch up, which is only the case when all it does is conflate
+		 * them. Must be called while holding the lock.
+		 */
+		private boolean canSkipAhead() {
+			return conflatingBuffer != null && listeners.size() == 1 && !streaming && publisher == null;
+		}
+
+		/**
+		 * Reads the current state of the watched key and passes the difference from what the conflated changes have
+		 * told of, rather than polling for every change in between. Must be called while holding the lock.
+		 */
+		private void skipAhead() {
+			final GetRequestImpl get = new GetRequestImpl(client, super.key);
+			get.recursive = super.recursive;
+			poll = get.sendAsync();
+			poll.addListener((EtcdListener) this::skippedAhead);
+		}
+
+		private void skippedAhead(EtcdFuture future) {
+			if (future.isCancelled()) {
+				return;
+			}
+			final WatchState.Snapshot snapshot;
+			synchronized (lock) {
+				snapshot = state.newSnapshot();
+			}
+			final EtcdMeta meta;
+			if (future.isSuccess()) {
+				final Result current = future.getNow();
+				if (current.getNode() != null) {
+					new TreeSpliterator(current.getNode()).forEachRemaining(snapshot::add);
+				}
+				meta = current.getResponseMeta();
+			} else if (future.cause() instanceof KeyNotFoundException) {
+				meta = new EtcdMeta(((KeyNotFoundException) future.cause()).getIndex().orElse(0), -1, -1);
+			} else {
+				// Retried as a poll, which skips ahead again if it is still behind
+				pollFailed(future.cause());
+				return;
+			}
+			final List<Result> changes;
+			final ConflatingBuffer buffer;
+			synchronized (lock) {
+				if (closed) {
+					return;
+				}
+				changes = state.resync(snapshot, meta);
+				buffer = conflatingBuffer;
+			}
+			changes.forEach(buffer::offer);
+			synchronized (lock) {
+				currentIndex = meta.getEtcdIndex();
+				super.waitIndex(meta.getEtcdIndex() + 1);
+				if (closed) {
+					return;
+				}
+				if (canPoll()) {
+					poll();
+				} else {
+					paused = true;
+				}
+			}
+		}
+
+		private void pollFailed(Throwable cause) {
+			if (cause instanceof EtcdRequestException && ((EtcdRequestException) cause).getErrorCode() == EVENT_INDEX_CLEARED) {
+				synchronized (lock) {
+					if (!closed && canSkipAhead()) {
+						LOGGER.debug("Conflated watch of {} fell out of etcd's history, skipping ahead", super.key);
+						skipAhead();
+						return;
+					}
+				}
+			}
+			if (cause instanceof EtcdRequestException && resynchronize) {
+				LOGGER.warn("Watch of {} ended with error {}, resynchronizing", super.key,
+						((EtcdRequestException) cause).getErrorCode());
+				resynchronizer.request(this, true);
+				return;
+			}
+			if (cause instanceof EtcdRequestException) {
+				// etcd won't answer differently next time
+				LOGGER.warn("Watch of {} ended", super.key, cause);
+				fail(cause);
+				return;
+			}
+			if (DefaultEtcdClient.this.closed) {
+				close();
+				return;
+			}
+			final EventLoopGroup eventLoopGroup = client.getEventLoopGroup();
+			if (eventLoopGroup.isShuttingDown()) {
+				// A retry scheduled now would be dropped when the group terminates
+				fail(new EtcdException("Unable to retry the watch, the event loop group is shutting down"));
+				return;
+			}
+			LOGGER.debug("Watch of {} failed, retrying in {}ms", super.key, WATCH_RETRY_DELAY.toMillis(), cause);
+			try {
+				eventLoopGroup.schedule(() -> {
+					synchronized (lock) {
+						if (!closed) {
+							poll();
+						}
+					}
+				}, WATCH_RETRY_DELAY.toMillis(), TimeUnit.MILLISECONDS).addListener(retry -> {
+					// Shutting the group down cancels the retries it hasn't run yet
+					if (retry.isCancelled()) {
+						fail(new EtcdException("Unable to retry the watch, the event loop group has been shut down"));
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// The event loop group was shut down under the client, nothing would ever retry
+				fail(new EtcdException("Unable to retry the watch, the event loop group has been shut down"));
+			}
+		}
+
+		private String getKey() {
+			return super.key;
+		}
+
+		/**
+		 * Indicates if a node is one of the keys watched.
+		 */
+		private boolean covers(String nodeKey) {
+			return super.recursive ? contains(super.key, nodeKey) : super.key.equals(nodeKey);
+		}
+
+		private WatchState.Snapshot newSnapshot() {
+			synchronized (lock) {
+				return state.newSnapshot();
+			}
+		}
+
+		/**
+		 * Passes on the difference between a snapshot of the watched key and what the watch has told of, then polls for
+		 * the changes that follow the snapshot. The first snapshot only tells the watch which keys there are.
+		 *
+		 * @param snapshot the keys the watch covers.
+		 * @param meta the meta-data of the response the snapshot came from.
+		 */
+		private void resync(WatchState.Snapshot snapshot, EtcdMeta meta) {
+			final List<Result> changes;
+			synchronized (lock) {
+				if (closed) {
+					return;
+				}
+				if (!state.isSeeded() && super.waitIndex != null) {
+					// The changes since the wait index are replayed, anything they don't cover came before it
+					state.resync(snapshot, new EtcdMeta(super.waitIndex - 1, -1, -1));
+					changes = Collections.emptyList();
+				} else {
+					changes = state.resync(snapshot, meta);
+					currentIndex = meta.getEtcdIndex();
+					super.waitIndex(meta.getEtcdIndex() + 1);
+				}
+			}
+			// Passed on without the lock, like the changes received from polls
+			changes.forEach(this::deliver);
+			synchronized (lock) {
+				if (closed) {
+					return;
+				}
+				if (canPoll()) {
+					poll();
+				} else {
+					paused = true;
+				}
+			}
+		}
+
+		/**
+		 * Tells the failure listener that a snapshot couldn't be loaded, and asks for another.
+		 */
+		private void resyncFailed(EtcdException cause) {
+			final boolean closed;
+			synchronized (lock) {
+				closed = this.closed;
+			}
+			if (closed) {
+				return;
+			}
+			if (resyncFailureListener != null) {
+				resyncFailureListener.accept(cause);
+			}
+			resynchronizer.request(this, true);
+		}
+
+		/**
+		 * Ends the watch with an error that the stream, the publisher and the conflating buffer all report.
+		 */
+		private void fail(Throwable cause) {
+			synchronized (lock) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+			}
+			watches.remove(this);
+			results.add(cause);
+			watchEnded(cause);
+		}
+
+		/**
+		 * Indicates if the stream has room for another change and the publisher's subscribers want one, must be called
+		 * while holding the lock.
+		 */
+		private boolean canPoll() {
+			return (!streaming || results.size() < MAX_QUEUED_WATCH_RESULTS) && (publisher == null || publisher.hasDemand());
+		}
+
+		/**
+		 * Polls again if polling stopped for the stream or the publisher, and they are ready for more.
+		 */
+		private void resume() {
+			synchronized (lock) {
+				if (paused && !closed && canPoll()) {
+					paused = false;
+					poll();
+				}
+			}
+		}
+
+		/**
+		 * Lets the publisher and the conflating buffer know there will be no more changes.
+		 *
+		 * @param cause why the watch ended, or {@code null} if it was closed.
+		 */
+		private void watchEnded(Throwable cause) {
+			final WatchPublisher publisher;
+			final ConflatingBuffer conflatingBuffer;
+			synchronized (lock) {
+				publisher = this.publisher;
+				conflatingBuffer = this.conflatingBuffer;
+			}
+			if (publisher != null) {
+				publisher.terminate(cause);
+			}
+			if (conflatingBuffer != null) {
+				conflatingBuffer.terminate(cause);
+			}
+		}
+
+		@Override
+		public void close() {
+			final EtcdFuture poll;
+			synchronized (lock) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				poll = this.poll;
+			}
+			watches.remove(this);
+			if (poll != null) {
+				poll.cancel(false);
+			}
+			results.add(END_OF_WATCH);
+			watchEnded(null);
+		}
+
+		@Override
+		public WatchRequest consistent() {
+			super.consistent();
+			return this;
+		}
+
+		@Override
+		public WatchRequest recursive() {
+			super.recursive();
+			return this;
+		}
+
+		@Override
+		public WatchRequest sorted() {
+			super.sorted();
+			return this;
+		}
+
+		@Override
+		public WatchRequest compact() {
+			super.compact();
+			return this;
+		}
+
+		@Override
+		public WatchRequest waitForChange() {
+			return this;
+		}
+
+		@Override
+		public WatchRequest waitIndex(long index) {
+			synchronized (lock) {
+				super.waitIndex(index);
+			}
+			return this;
+		}
+
+		private class ResultSpliterator implements Spliterator<Result> {
+			@Override
+			public boolean tryAdvance(Consumer<? super Result> action) {
+				final Object next;
+				try {
+					next = results.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new EtcdException(e);
+				}
+				if (next == END_OF_WATCH || next instanceof Throwable) {
+					// Leave it for the next call
+					results.add(next);
+					if (next == END_OF_WATCH) {
+						return false;
+					}
+					throw next instanceof EtcdException ? (EtcdException) next : new EtcdException((Throwable) next);
+				}
+				resume();
+				action.accept((Result) next);
+				return true;
+			}
+
+			@Override
+			public Spliterator<Result> trySplit() {
+				return null;
+			}
+
+			@Override
+			public long estimateSize() {
+				return Long.MAX_VALUE;
+			}
+
+			@Override
+			public int characteristics() {
+				return ORDERED | NONNULL;
+			}
+		}
+	}
+
+	private class WatchHubImpl implements WatchHub {
+
+		private final String directory;
+		private final SubscriptionTrie<SubscriptionImpl> subscriptions = new SubscriptionTrie<>();
+		private final Object lock = new Object();
+		private final List<Consumer<? super EtcdException>> failureListeners = new CopyOnWriteArrayList<>();
+
+		private volatile WatchRequestImpl watch;
+		// The index of the watch that was last closed, while no watch is running
+		private volatile long currentIndex;
+		private int subscriptionCount;
+		private boolean closed;
+
+		private WatchHubImpl(String directory) {
+			this.directory = directory;
+		}
+
+		@Override
+		public String getDirectory() {
+			return directory;
+		}
+
+		@Override
+		public long getCurrentIndex() {
+			final WatchRequestImpl watch = this.watch;
+			return watch == null ? currentIndex : watch.getCurrentIndex();
+		}
+
+		@Override
+		public Subscription subscribe(String key, Consumer<? super Result> listener) {
+			return addSubscription(key, false, listener);
+		}
+
+		@Override
+		public WatchHub addFailureListener(Consumer<? super EtcdException> listener) {
+			failureListeners.add(listener);
+			return this;
+		}
+
+		@Override
+		public Subscription subscribeRecursive(String key, Consumer<? super Result> listener) {
+			return addSubscription(key, true, listener);
+		}
+
+		private Subscription addSubscription(String key, boolean recursive, Consumer<? super Result> listener) {
+			key = validateKey(key);
+			if (!contains(directory, key)) {
+				throw new IllegalArgumentException("Key " + key + " is not in " + directory);
+			}
+			final SubscriptionImpl subscription = new SubscriptionImpl(key, recursive, listener);
+			synchronized (lock) {
+				if (closed) {
+					throw new IllegalStateException("The client is closed");
+				}
+				subscriptions.add(key, recursive, subscription);
+				if (subscriptionCount++ == 0) {
+					startWatch();
+				}
+			}
+			return subscription;
+		}
+
+		/**
+		 * Starts watching the directory from a fresh snapshot, the new subscribers don't care what changed before they
+		 * came. Must be called while holding the lock.
+		 */
+		private void startWatch() {
+			final WatchRequestImpl watch = new WatchRequestImpl(client, directory);
+			watch.recursive().resynchronize();
+			watch.addListener(result -> dispatch(watch, result));
+			watch.resyncFailureListener = this::resyncFailed;
+			this.watch = watch;
+			watch.start();
+		}
+
+		private void dispatch(WatchRequestImpl source, Result result) {
+			if (source == watch) {
+				// Otherwise it arrived as the watch was being closed
+				route(result);
+			}
+		}
+
+		private void route(Result result) {
+			final Node node = result.getNode();
+			if (node == null || node.getKey() == null) {
+				return;
+			}
+			final Action action = result.getAction();
+			final boolean removesChildren = node.isDirectory()
+					&& (action == Action.DELETE || action == Action.EXPIRE || action == Action.COMPAREANDDELETE);
+			subscriptions.forEachSubscriber(node.getKey(), removesChildren, subscription -> subscription.deliver(result));
+		}
+
+		/**
+		 * Tells the failure listeners that the directory couldn't be loaded.
+		 */
+		private void resyncFailed(EtcdException cause) {
+			for (Consumer<? super EtcdException> listener : failureListeners) {
+				try {
+					listener.accept(cause);
+				} catch (RuntimeException e) {
+					LOGGER.error("Failure listener of the hub for {} failed", directory, e);
+				}
+			}
+		}
+
+		private void close() {
+			final WatchRequestImpl watch;
+			synchronized (lock) {
+				closed = true;
+				watch = this.watch;
+				stopWatch();
+			}
+			if (watch != null) {
+				watch.close();
+			}
+		}
+
+		/**
+		 * Forgets the running watch, which the caller closes, must be called while holding the lock.
+		 */
+		private void stopWatch() {
+			if (watch != null) {
+				currentIndex = watch.getCurrentIndex();
+				watch = null;
+			}
+		}
+
+		private class SubscriptionImpl implements Subscription {
+			private final String key;
+			private final boolean recursive;
+			private final Consumer<? super Result> listener;
+			private volatile boolean subscribed = true;
+
+			private SubscriptionImpl(String key, boolean recursive, Consumer<? super Result> listener) {
+				this.key = key;
+				this.recursive = recursive;
+				this.listener = listener;
+			}
+
+			private void deliver(Result result) {
+				if (subscribed) {
+					try {
+						listener.accept(result);
+					} catch (RuntimeException e) {
+						LOGGER.error("Subscriber to {} failed", key, e);
+					}
+				}
+			}
+
+			@Override
+			public void close() {
+				WatchRequestImpl idleWatch = null;
+				synchronized (lock) {
+					if (!subscribed) {
+						return;
+					}
+					subscribed = false;
+					subscriptions.remove(key, recursive, this);
+					if (--subscriptionCount == 0) {
+						idleWatch = watch;
+						stopWatch();
+					}
+				}
+				if (idleWatch != null) {
+					idleWatch.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Loads the snapshots that resynchronizing watches start and catch up from, see {@link WatchRequest#resynchronize()}
+	 * and {@link WatchState#resync(WatchState.Snapshot, EtcdMeta)}.
+	 *
+	 * <p>When a cluster hiccups every watch on it falls behind at once. So that they don't all reload their keys at the
+	 * same moment, the watches that need to catch up are collected for a random delay of up to {@link #RESYNC_JITTER},
+	 * which also spreads the load from other clients over time. The collected watches are then caught up one snapshot
+	 * at a time, and watches of keys inside another recursive watch's directory share its snapshot. Watches that are
+	 * starting are served straight away.
+	 *
+	 * <p>Snapshots are streamed, see {@link GetRequest#streamNodes()}, so a directory of any size can be loaded and only
+	 * its keys are held. Reading a stream blocks, so the snapshots are loaded on a thread of their own, which is started
+	 * with the first watch and stopped when the client is closed.
+	 */
+	private class Resynchronizer {
+
+		// Guarded by this
+		private final Set<WatchRequestImpl> pending = new HashSet<>();
+		private ScheduledExecutorService executor;
+		// The run waiting to start, null while none is scheduled or a run is loading snapshots
+		private ScheduledFuture<?> next;
+		// Counts the runs scheduled, so that a run that was replaced doesn't go ahead if it was already starting
+		private long runs;
+		private boolean running;
+		// Set when a watch that just started waits in pending
+		private boolean starting;
+		// How many times in a row a snapshot failed to load
+		private int failures;
+		private boolean closed;
+
+		/**
+		 * @param watch the watch to catch up.
+		 * @param jitter {@code false} if the watch is starting rather than catching up, and should be served right away.
+		 */
+		synchronized void request(WatchRequestImpl watch, boolean jitter) {
+			if (closed) {
+				return;
+			}
+			pending.add(watch);
+			starting |= !jitter;
+			if (running) {
+				// The run picks it up when it's done
+				return;
+			}
+			if (next == null) {
+				schedule();
+			} else if (!jitter && next.cancel(false)) {
+				// Don't keep a starting watch waiting for the jitter of the watches that are catching up
+				schedule();
+			}
+		}
+
+		// Must be called while holding the lock
+		private void schedule() {
+			if (executor == null) {
+				executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("etcd-resync", true));
+			}
+			long delay = 0;
+			if (!starting) {
+				final long maxDelay = RESYNC_JITTER.toMillis() << Math.min(failures, 16);
+				delay = ThreadLocalRandom.current().nextLong(Math.min(maxDelay, MAX_RESYNC_DELAY.toMillis()) + 1);
+			}
+			final long run = ++runs;
+			next = executor.schedule(() -> run(run), delay, TimeUnit.MILLISECONDS);
+		}
+
+		private void run(long run) {
+			final List<WatchRequestImpl> watches;
+			synchronized (this) {
+				if (run != runs || closed) {
+					return;
+				}
+				next = null;
+				running = true;
+				watches = new ArrayList<>(pending);
+				pending.clear();
+				starting = false;
+			}
+			try {
+				// With a slash on the end, keys sort directly before the keys inside them
+				watches.sort(Comparator.comparing(watch -> watch.getKey() + "/"));
+				final Deque<List<WatchRequestImpl>> groups = new ArrayDeque<>();
+				for (WatchRequestImpl watch : watches) {
+					final List<WatchRequestImpl> group = groups.peekLast();
+					if (group != null && group.get(0).covers(watch.getKey())) {
+						group.add(watch);
+					} else {
+						final List<WatchRequestImpl> newGroup = new ArrayList<>();
+						newGroup.add(watch);
+						groups.add(newGroup);
+					}
+				}
+				for (List<WatchRequestImpl> group : groups) {
+					load(group);
+				}
+			} finally {
+				synchronized (this) {
+					running = false;
+					if (!pending.isEmpty() && !closed) {
+						schedule();
+					}
+				}
+			}
+		}
+
+		private void load(List<WatchRequestImpl> group) {
+			final String key = group.get(0).getKey();
+			final List<WatchState.Snapshot> snapshots = new ArrayList<>(group.size());
+			group.forEach(watch -> snapshots.add(watch.newSnapshot()));
+			final EtcdMeta[] meta = new EtcdMeta[1];
+			try (Stream<Node> nodes = new GetRequestImpl(client, key).streamNodes(RESYNC_TIMEOUT, m -> meta[0] = m)) {
+				nodes.forEach(node -> {
+					if (node.getKey() != null) {
+						for (int i = 0; i < group.size(); i++) {
+							if (group.get(i).covers(node.getKey())) {
+								snapshots.get(i).add(node);
+							}
+						}
+					}
+				});
+			} catch (KeyNotFoundException e) {
+				// Nothing to load, the key is gone
+				meta[0] = new EtcdMeta(e.getIndex().orElse(0), -1, -1);
+				snapshots.clear();
+				group.forEach(watch -> snapshots.add(watch.newSnapshot()));
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					if (closed) {
+						return;
+					}
+					failures++;
+				}
+				LOGGER.warn("Unable to load {} to resynchronize its watch, trying again", key, e);
+				final EtcdException cause = e instanceof EtcdException ? (EtcdException) e : new EtcdException(e);
+				group.forEach(watch -> watch.resyncFailed(cause));
+				return;
+			}
+			synchronized (this) {
+				failures = 0;
+			}
+			for (int i = 0; i < group.size(); i++) {
+				group.get(i).resync(snapshots.get(i), meta[0]);
+			}
+		}
+
+		/**
+		 * Stops loading snapshots, interrupting the one being loaded.
+		 */
+		synchronized void close() {
+			closed = true;
+			pending.clear();
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	private static boolean contains(String directory, String key) {
+		return directory.equals("/") || key.equals(directory) || key.startsWith(directory + "/");
+	}
+
 	private void throwException(FullHttpResponse response) {
 		try {
-			final ErrorBody errorBody = MAPPER.readValue(new ByteBufInputStream(response.content()), ErrorBody.class);
+			final ResultDecoder.ErrorBody errorBody = ResultDecoder.decodeError(response.content());
 			final String message = errorBody.message == null ? "Error executing request" : errorBody.message;
 			if (response.getStatus().code() == HttpResponseStatus.NOT_FOUND.code()) {
-				throw new KeyNotFoundException(message, errorBody.errorCode, errorBody.index, errorBody.cause);
+				throw new KeyNotFoundException(message, errorBody.errorCode, errorBody.index, errorBody.cause, !stacklessExceptions);
 			}
-			final Long etcdIndex = Long.valueOf(response.headers().get("X-Etcd-Index"));
-			throw new EtcdRequestException(message, errorBody.errorCode, etcdIndex, errorBody.cause);
+			final long etcdIndex = convertLong(response.headers().get("X-Etcd-Index"));
+			throw new EtcdRequestException(message, errorBody.errorCode, etcdIndex < 0 ? null : etcdIndex, errorBody.cause, !stacklessExceptions);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -198,27 +1259,25 @@ class DefaultEtcdClient implements EtcdClient {
 
 		@Override
 		protected FullHttpRequest buildRequest() {
-			final StringBuilder uriBuilder = new StringBuilder();
-			uriBuilder.append("/v2/keys").append(key);
-			final StringBuilder queryBuilder = new StringBuilder();
+			final StringBuilder uriBuilder = newUriBuilder(key);
+			final int pathLength = uriBuilder.length();
 			if (previousValue != null) {
-				appendQueryStringSeparator(queryBuilder);
-				queryBuilder.append("prevValue=").append(urlEncode(previousValue));
+				appendQueryStringSeparator(uriBuilder, pathLength);
+				uriBuilder.append("prevValue=").append(urlEncode(previousValue));
 			}
 			if (previousIndex != null) {
-				appendQueryStringSeparator(queryBuilder);
-				queryBuilder.append("prevIndex=").append(previousIndex);
+				appendQueryStringSeparator(uriBuilder, pathLength);
+				uriBuilder.append("prevIndex=").append(previousIndex.longValue());
 			}
 			if (directory) {
-				appendQueryStringSeparator(queryBuilder);
-				queryBuilder.append("dir=true");
+				appendQueryStringSeparator(uriBuilder, pathLength);
+				uriBuilder.append("dir=true");
 			}
 			if (recursive) {
-				appendQueryStringSeparator(queryBuilder);
-				queryBuilder.append("recursive=true");
+				appendQueryStringSeparator(uriBuilder, pathLength);
+				uriBuilder.append("recursive=true");
 			}
-			uriBuilder.append(queryBuilder);
-			return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.DELETE, uriBuilder.toString());
+			return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.DELETE, uriBuilder.toString(), Unpooled.EMPTY_BUFFER);
 		}
 
 		@Override
@@ -261,6 +1320,7 @@ class DefaultEtcdClient implements EtcdClient {
 		private boolean directory = false;
 		private Duration timeToLive;
 		private String value;
+		private ByteBuffer binaryValue;
 		private boolean mustExist;
 		private boolean mustNotExist;
 		private String previousValue;
@@ -274,43 +1334,46 @@ class DefaultEtcdClient implements EtcdClient {
 
 		@Override
 		protected FullHttpRequest buildRequest() {
-			final HttpMethod method = inOrder ? HttpMethod.POST : HttpMethod.PUT;
-			final DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, "/v2/keys" + key);
-			final StringBuilder body = new StringBuilder();
-			if (value != null) {
-				body.append("value=").append(urlEncode(value));
-			}
-			if (timeToLive != null) {
-				appendFieldSeparator(body);
-				body.append("ttl=").append(timeToLive.getSeconds());
-			}
-			if (directory) {
-				appendFieldSeparator(body);
-				body.append("dir=true");
-			}
 			if (mustExist && mustNotExist) {
 				throw new EtcdException("In what universe does it even makes sense for something to be required to both exist and not exist?");
 			}
-			if (mustExist) {
-				appendFieldSeparator(body);
-				body.append("prevExist=true");
-			}
-			if (mustNotExist) {
-				appendFieldSeparator(body);
-				body.append("prevExist=false");
-			}
-			if (previousValue != null) {
-				appendFieldSeparator(body);
-				body.append("prevValue=").append(urlEncode(previousValue));
-			}
-			if (previousIndex != null) {
-				appendFieldSeparator(body);
-				body.append("prevIndex=").append(previousIndex);
+			final HttpMethod method = inOrder ? HttpMethod.POST : HttpMethod.PUT;
+			// The form is encoded straight into a pooled buffer that is handed to Netty, nothing is copied on the way.
+			// Always direct, without Unsafe ioBuffer() is on the heap and NIO would copy it into a thread-local buffer
+			// that Netty 4.0 can't grow on JDKs that don't export sun.nio.ch
+			final ByteBuf body = PooledByteBufAllocator.DEFAULT.directBuffer();
+			try {
+				if (value != null) {
+					FormUrlEncoder.writeField(body, "value", value);
+				} else if (binaryValue != null) {
+					FormUrlEncoder.writeBase64Field(body, "value", binaryValue);
+				}
+				if (timeToLive != null) {
+					FormUrlEncoder.writeField(body, "ttl", Long.toString(timeToLive.getSeconds()));
+				}
+				if (directory) {
+					FormUrlEncoder.writeField(body, "dir", "true");
+				}
+				if (mustExist) {
+					FormUrlEncoder.writeField(body, "prevExist", "true");
+				}
+				if (mustNotExist) {
+					FormUrlEncoder.writeField(body, "prevExist", "false");
+				}
+				if (previousValue != null) {
+					FormUrlEncoder.writeField(body, "prevValue", previousValue);
+				}
+				if (previousIndex != null) {
+					FormUrlEncoder.writeField(body, "prevIndex", Long.toString(previousIndex));
+				}
+			} catch (RuntimeException e) {
+				body.release();
+				throw e;
 			}
-			final byte[] content = body.toString().getBytes();
-			request.headers().add(HttpHeaders.Names.CONTENT_TYPE, HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED + ";charset=utf-8");
-			request.headers().add(HttpHeaders.Names.CONTENT_LENGTH, content.length);
-			request.content().writeBytes(content);
+			final String uri = newUriBuilder(key).toString();
+			final DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, uri, body);
+			request.headers().add(HttpHeaders.Names.CONTENT_TYPE, FORM_CONTENT_TYPE);
+			HttpHeaders.setContentLength(request, body.readableBytes());
 			return request;
 		}
 
@@ -325,6 +1388,19 @@ class DefaultEtcdClient implements EtcdClient {
 		@Override
 		public SetRequest value(String value) {
 			this.value = value;
+			this.binaryValue = null;
+			return this;
+		}
+
+		@Override
+		public SetRequest value(byte[] value) {
+			return value(ByteBuffer.wrap(value));
+		}
+
+		@Override
+		public SetRequest value(ByteBuffer value) {
+			this.value = null;
+			this.binaryValue = value.duplicate();
 			return this;
 		}
 
@@ -371,18 +1447,13 @@ class DefaultEtcdClient implements EtcdClient {
 		}
 	}
 
-	private void appendQueryStringSeparator(StringBuilder queryString) {
-		if (queryString.length() == 0) {
-			queryString.append('?');
-		} else if (queryString.length() > 0) {
-			queryString.append('&');
-		}
+	private static StringBuilder newUriBuilder(String key) {
+		// Leave enough room for the common query parameters so the builder doesn't need to grow
+		return new StringBuilder(KEYS_PATH.length() + key.length() + 64).append(KEYS_PATH).append(key);
 	}
 
-	private void appendFieldSeparator(StringBuilder body) {
-		if (body.length() > 0) {
-			body.append('&');
-		}
+	private static void appendQueryStringSeparator(StringBuilder uriBuilder, int pathLength) {
+		uriBuilder.append(uriBuilder.length() == pathLength ? '?' : '&');
 	}
 
 	private static String validateKey(String key) {
@@ -401,49 +1472,19 @@ class DefaultEtcdClient implements EtcdClient {
 	}
 
 	private Result marshalResult(FullHttpResponse response) {
+		return marshalResult(response, false);
+	}
+
+	private Result marshalResult(FullHttpResponse response, boolean compact) {
 		try {
-			final EtcdMeta meta = new EtcdMeta(
-					convertLong(response.headers().get("X-Etcd-Index")),
-					convertLong(response.headers().get("X-Raft-Index")),
-					convertLong(response.headers().get("X-Raft-Term"))
-			);
+			final EtcdMeta meta = responseMeta(response);
 
 			final ByteBuf content = response.content();
 			if (content.readableBytes() > 0) {
-				final ByteBufInputStream inputStream = new ByteBufInputStream(content);
-				final JsonResult json = MAPPER.readValue(inputStream, JsonResult.class);
-
-				return new Result() {
-					@Override
-					public EtcdMeta getResponseMeta() {
-						return meta;
-					}
-
-					@Override
-					public Action getAction() {
-						return json.action;
-					}
-
-					@Override
-					public Node getNode() {
-						return json.node;
-					}
-
-					@Override
-					public Optional<Node> getPreviousNode() {
-						return Optional.ofNullable(json.previousNode);
-					}
-
-					@Override
-					public String toString() {
-						return "Result {" +
-								"meta = " + getResponseMeta() +
-								", action = " + getAction() +
-								", node = " + getNode() +
-								", prevNode = " + getPreviousNode().orElse(null) +
-								"}";
-					}
-				};
+				if (SpillingHttpObjectAggregator.isSpilled(response)) {
+					return ResultDecoder.decodeMappedResult(content, meta, compact);
+				}
+				return compact ? ResultDecoder.decodeCompactResult(content, meta) : ResultDecoder.decodeResult(content, meta);
 			} else {
 				throw new EtcdException("Empty response from server.");
 			}
@@ -452,6 +1493,14 @@ class DefaultEtcdClient implements EtcdClient {
 		}
 	}
 
+	private static EtcdMeta responseMeta(HttpResponse response) {
+		return new EtcdMeta(
+				convertLong(response.headers().get("X-Etcd-Index")),
+				convertLong(response.headers().get("X-Raft-Index")),
+				convertLong(response.headers().get("X-Raft-Term"))
+		);
+	}
+
 	private static long convertLong(String value) {
 		if (value == null) {
 			return -1;
@@ -463,129 +1512,4 @@ class DefaultEtcdClient implements EtcdClient {
 		}
 	}
 
-	private static class JsonResult {
-
-		private final Action action;
-		private final Node node;
-		private final Node previousNode;
-
-		@JsonCreator
-		private JsonResult(
-				@JsonProperty("action") String action,
-				@JsonProperty("node") JsonNode node,
-				@JsonProperty("prevNode") JsonNode previousNode) {
-			this.action = Action.valueOf(action.toUpperCase());
-			this.node = node;
-			this.previousNode = previousNode;
-		}
-	}
-
-	private static class JsonNode implements Node {
-
-		private final long createdIndex;
-		private final Long modifiedIndex;
-		private final String key;
-		private final String value;
-		private final Instant expiration;
-		private final Duration timeToLive;
-		private final boolean directory;
-		private final List<? extends Node> nodes;
-
-		@JsonCreator
-		private JsonNode(
-				@JsonProperty("createdIndex") long createdIndex,
-				@JsonProperty("modifiedIndex") Long modifiedIndex,
-				@JsonProperty("key") String key,
-				@JsonProperty("value") String value,
-				@JsonProperty("expiration") String expiration,
-				@JsonProperty("ttl") Long timeToLive,
-				@JsonProperty("dir") boolean directory,
-				@JsonProperty("nodes") List<JsonNode> nodes) {
-			this.createdIndex = createdIndex;
-			this.modifiedIndex = modifiedIndex;
-			this.key = key;
-			this.value = value;
-			this.expiration = expiration == null ? null : parseDate(expiration);
-			this.timeToLive = timeToLive == null ? null : Duration.ofSeconds(timeToLive);
-			this.directory = directory;
-			this.nodes = nodes == null ? Collections.emptyList() : nodes;
-		}
-
-		private Instant parseDate(String expiration) {
-			return DateTimeFormatter.ISO_OFFSET_DATE_TIME.parse(expiration, Instant::from);
-		}
-
-		@Override
-		public long getCreatedIndex() {
-			return createdIndex;
-		}
-
-		@Override
-		public Optional<Long> getModifiedIndex() {
-			return Optional.ofNullable(modifiedIndex);
-		}
-
-		@Override
-		public String getKey() {
-			return key;
-		}
-
-		@Override
-		public Optional<String> getValue() {
-			return Optional.ofNullable(value);
-		}
-
-		@Override
-		public Optional<Instant> getExpiration() {
-			return Optional.ofNullable(expiration);
-		}
-
-		@Override
-		public Optional<Duration> getTimetoLive() {
-			return Optional.ofNullable(timeToLive);
-		}
-
-		@Override
-		public boolean isDirectory() {
-			return directory;
-		}
-
-		@Override
-		public List<? extends Node> getNodes() {
-			return nodes;
-		}
-
-		@Override
-		public String toString() {
-			return "JsonNode{" +
-					"createdIndex=" + createdIndex +
-					", modifiedIndex=" + modifiedIndex +
-					", key='" + key + '\'' +
-					", value='" + value + '\'' +
-					", expiration=" + expiration +
-					", timeToLive=" + timeToLive +
-					", directory=" + directory +
-					", nodes=" + nodes +
-					'}';
-		}
-	}
-
-	private static class ErrorBody {
-		private final int errorCode;
-		private final String cause;
-		private final String message;
-		private final Long index;
-
-		private ErrorBody(
-				@JsonProperty("errorCode") int errorCode,
-				@JsonProperty("cause") String cause,
-				@JsonProperty("message") String message,
-				@JsonProperty("index") Long index) {
-			this.errorCode = errorCode;
-			this.cause = cause;
-			this.message = message;
-			this.index = index;
-		}
-	}
-
 }
@@ -26,7 +26,22 @@ public interface EtcdClient extends AutoCloseable {
 
 	SetRequest prepareSet(String key);
 
-	WatchRequest watch(String Key);
+	WatchRequest watch(String key);
+
+	/**
+	 * Returns the hub that watches a directory on behalf of any number of subscribers, with a single long poll however
+	 * many of them there are. Every call for the same directory returns the same hub.
+	 *
+	 * <p>The hub watches the whole directory whichever keys are subscribed to, and reads all of it recursively each
+	 * time it starts watching and each time it catches up after falling behind, see {@link WatchHub}. Each read costs
+	 * the server a walk of the directory and sends every node in it, streamed rather than buffered. For a large
+	 * directory where only a few keys are of interest, a hub on a smaller directory that holds them, or a
+	 * {@link #watch(String) watch} of each key, reads less.
+	 *
+	 * @param directory the key of the directory to watch.
+	 * @return the hub for the directory.
+	 */
+	WatchHub watchHub(String directory);
 
 	@Override
 	void close();
@@ -19,15 +19,30 @@ package etcd.client;
 import io.netty.channel.EventLoopGroup;
 
 import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.concurrent.Executor;
 
 public class EtcdClientBuilder {
 
 	final ServerList servers = new ServerList();
 	boolean retryOnConnectFailure = true;
-	int connectTimeout = 2000;
+	Duration connectTimeout = ChannelPool.Limits.DEFAULT_CONNECT_TIMEOUT;
 	EventLoopGroup eventLoopGroup;
+	boolean nativeTransport = false;
 	Executor executor = Runnable::run;
+	int maxConnectionsPerServer = ChannelPool.Limits.DEFAULT_MAX_CONNECTIONS;
+	int maxPendingConnectionRequests = ChannelPool.Limits.DEFAULT_MAX_PENDING_ACQUIRES;
+	Duration connectionIdleTimeout = ChannelPool.Limits.DEFAULT_IDLE_TIMEOUT;
+	int pipeliningDepth = ChannelPool.Limits.DEFAULT_PIPELINING_DEPTH;
+	int maxLongPollConnectionsPerServer = ChannelPool.Limits.DEFAULT_LONG_POLL_MAX_CONNECTIONS;
+	int maxPendingLongPollRequests = ChannelPool.Limits.DEFAULT_LONG_POLL_MAX_PENDING_ACQUIRES;
+	Duration longPollIdleTimeout = ChannelPool.Limits.DEFAULT_LONG_POLL_IDLE_TIMEOUT;
+	boolean stacklessExceptions = false;
+	boolean compression = false;
+	int maxResponseSize = HttpClient.DEFAULT_MAX_RESPONSE_SIZE;
+	int spillThreshold = HttpClient.NO_SPILL;
+	Path spillDirectory;
 
 	public static EtcdClientBuilder create() {
 		return new EtcdClientBuilder();
@@ -51,6 +66,189 @@ public class EtcdClientBuilder {
 		return this;
 	}
 
+	/**
+	 * Sets how long to wait for a connection to an etcd server to be established before trying the next server.
+	 *
+	 * @param connectTimeout the connect timeout.
+	 * @return this build instance
+	 */
+	public EtcdClientBuilder connectTimeout(Duration connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of keep-alive connections the client will hold open to each etcd server.
+	 *
+	 * @param maxConnectionsPerServer the maximum number of connections per server, must be at least 1.
+	 * @return this build instance
+	 */
+	public EtcdClientBuilder maxConnectionsPerServer(int maxConnectionsPerServer) {
+		this.maxConnectionsPerServer = maxConnectionsPerServer;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of requests that may wait for a connection to a server once that server has reached
+	 * {@link #maxConnectionsPerServer(int)} busy connections. Requests beyond this limit fail immediately.
+	 *
+	 * @param maxPendingConnectionRequests the maximum number of requests waiting for a connection per server.
+	 * @return this build instance
+	 */
+	public EtcdClientBuilder maxPendingConnectionRequests(int maxPendingConnectionRequests) {
+		this.maxPendingConnectionRequests = maxPendingConnectionRequests;
+		return this;
+	}
+
+	/**
+	 * Sets how long an unused connection is kept open before it is closed. {@link Duration#ZERO} keeps idle
+	 * connections open until the server closes them.
+	 *
+	 * @param connectionIdleTimeout how long to keep idle connections open.
+	 * @return this build instance
+	 */
+	public EtcdClientBuilder connectionIdleTimeout(Duration connectionIdleTimeout) {
+		this.connectionIdleTimeout = connectionIdleTimeout;
+		return this;
+	}
+
+	/**
+	 * Sets how many requests may be outstanding on a single connection using HTTP/1.1 pipelining. The default of 1
+	 * disables pipelining. Pipelining is only used once every connection to a server is busy, so it trades head of
+	 * line blocking behind slow responses for fewer connections.
+	 *
+	 * @param pipeliningDepth the maximum number of requests in flight on each connection, must be at least 1.
+	 * @return this build instance
+	 */
+	public EtcdClientBuilder pipeliningDepth(int pipeliningDepth) {
+		this.pipeliningDepth = pipeliningDepth;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of connections per server used for requests that wait for a change. These
+	 * connections are kept separate from the connections used by other requests so that watches can't starve them.
+	 *
+	 * @param maxLongPollConnectionsPerServer the maximum number of long poll connections per server, must be at
+	 *                                        least 1.
+	 * @return this build instance
+	 */
+	public EtcdClientBuilder maxLongPollConnectionsPerServer(int maxLongPollConnectionsPerServer) {
+		this.maxLongPollConnectionsPerServer = maxLongPollConnectionsPerServer;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of requests that may wait for a long poll connection to a server once that server has
+	 * reached {@link #maxLongPollConnectionsPerServer(int)} connections.
+	 *
+	 * @param maxPendingLongPollRequests the maximum number of waits queued for a connection per server.
+	 * @return this build instance
+	 */
+	public EtcdClientBuilder maxPendingLongPollRequests(int maxPendingLongPollRequests) {
+		this.maxPendingLongPollRequests = maxPendingLongPollRequests;
+		return this;
+	}
+
+	/**
+	 * Sets how long an unused long poll connection is kept open before it is closed.
+	 *
+	 * @param longPollIdleTimeout how long to keep idle long poll connections open.
+	 * @return this build instance
+	 */
+	public EtcdClientBuilder longPollIdleTimeout(Duration longPollIdleTimeout) {
+		this.longPollIdleTimeout = longPollIdleTimeout;
+		return this;
+	}
+
+	/**
+	 * Sets the Netty event loop group used for network I/O. The client does not shut down a supplied event loop
+	 * group when it is closed. If the group is an {@link io.netty.channel.epoll.EpollEventLoopGroup} the native epoll
+	 * transport is used, otherwise NIO is used.
+	 *
+	 * @param eventLoopGroup the event loop group to use.
+	 * @return this build instance
+	 */
+	public EtcdClientBuilder eventLoopGroup(EventLoopGroup eventLoopGroup) {
+		this.eventLoopGroup = eventLoopGroup;
+		return this;
+	}
+
+	/**
+	 * Indicates if the client should use Netty's native epoll transport when it creates its own event loop group.
+	 * If the native library can't be loaded on this platform, or Netty can't use {@code sun.misc.Unsafe} to reach the
+	 * memory of direct buffers as the transport needs, the client falls back to NIO.
+	 *
+	 * @param nativeTransport {@code true} to use the epoll transport when available, {@code false} to always use
+	 *                        NIO.
+	 * @return this build instance
+	 */
+	public EtcdClientBuilder nativeTransport(boolean nativeTransport) {
+		this.nativeTransport = nativeTransport;
+		return this;
+	}
+
+	/**
+	 * Indicates if errors returned by etcd, such as {@link KeyNotFoundException}, should be thrown without a stack
+	 * trace. Capturing the stack trace is most of the cost of an exception, and these exceptions are created on an I/O
+	 * thread so their stack trace says little about the request anyway. Worth enabling when errors are an expected
+	 * outcome, for example when reading keys that often don't exist.
+	 *
+	 * @param stacklessExceptions {@code true} to throw etcd errors without a stack trace, {@code false} otherwise.
+	 * @return this build instance
+	 */
+	public EtcdClientBuilder stacklessExceptions(boolean stacklessExceptions) {
+		this.stacklessExceptions = stacklessExceptions;
+		return this;
+	}
+
+	/**
+	 * Indicates if the client should ask for gzip or deflate compressed responses. JSON listings of large directories
+	 * repeat the same field names over and over and shrink several times over, which pays off when bandwidth rather
+	 * than CPU is the bottleneck. The server, or a proxy in front of it, decides whether a response is actually
+	 * compressed. Responses are decompressed before the response size limit is applied.
+	 *
+	 * @param compression {@code true} to accept compressed responses, {@code false} otherwise.
+	 * @return this build instance
+	 */
+	public EtcdClientBuilder compression(boolean compression) {
+		this.compression = compression;
+		return this;
+	}
+
+	/**
+	 * Sets the largest response body the client will accept, responses that are any bigger fail. Defaults to 1 MiB.
+	 *
+	 * @param maxResponseSize the maximum size of a response body in bytes, must be at least 1.
+	 * @return this build instance
+	 * @see #spillResponsesToDisk(int, Path)
+	 */
+	public EtcdClientBuilder maxResponseSize(int maxResponseSize) {
+		this.maxResponseSize = maxResponseSize;
+		return this;
+	}
+
+	/**
+	 * Writes response bodies larger than {@code threshold} bytes to a temporary file instead of holding them on the
+	 * heap. The file is memory-mapped to decode the result, and deleted once it has been mapped. Together with a large
+	 * {@link #maxResponseSize(int)} this lets a client with a small heap read the occasional very large directory.
+	 * The nodes of a spilled result read their keys and values from the mapped file, compact results included, so only
+	 * the shape of the tree is held on the heap. The file is created and written on the I/O thread that reads the
+	 * response, which blocks that thread, and any other connection it serves, for as long as the disk takes.
+	 *
+	 * @param threshold the size in bytes above which a response body is written to disk.
+	 * @param directory where to create the temporary files, or {@code null} for the system's temporary directory.
+	 * @return this build instance
+	 */
+	public EtcdClientBuilder spillResponsesToDisk(int threshold, Path directory) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("threshold can not be negative");
+		}
+		this.spillThreshold = threshold;
+		this.spillDirectory = directory;
+		return this;
+	}
+
 	public EtcdClient build() {
 		return new DefaultEtcdClient(this);
 	}
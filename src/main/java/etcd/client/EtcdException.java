@@ -29,4 +29,12 @@ public class EtcdException extends RuntimeException {
 	public EtcdException(String message) {
 		super(message);
 	}
+
+	/**
+	 * @param writableStackTrace {@code false} to skip filling in the stack trace, which is most of the cost of
+	 *                           creating an exception.
+	 */
+	protected EtcdException(String message, boolean writableStackTrace) {
+		super(message, null, true, writableStackTrace);
+	}
 }
@@ -26,7 +26,15 @@ public class EtcdRequestException extends EtcdException {
 	private final String cause;
 
 	public EtcdRequestException(String message, int errorCode, Long index, String cause) {
-		super(message + (cause == null ? "" : " (" + cause + ")"));
+		this(message, errorCode, index, cause, true);
+	}
+
+	/**
+	 * @param writableStackTrace {@code false} to create the exception without a stack trace, see
+	 *                           {@link EtcdClientBuilder#stacklessExceptions(boolean)}.
+	 */
+	public EtcdRequestException(String message, int errorCode, Long index, String cause, boolean writableStackTrace) {
+		super(message + (cause == null ? "" : " (" + cause + ")"), writableStackTrace);
 		this.errorCode = errorCode;
 		this.index = index;
 		this.cause = cause;
@@ -0,0 +1,131 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes {@code application/x-www-form-urlencoded} data straight into a {@link ByteBuf}. The output matches
+ * {@link java.net.URLEncoder} using UTF-8 but avoids building intermediate strings and byte arrays.
+ */
+final class FormUrlEncoder {
+
+	private static final byte[] HEX = {
+			'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+	};
+
+	// The URL and filename safe alphabet of RFC 4648, none of which needs escaping in a form
+	private static final byte[] BASE64_URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+			.getBytes(StandardCharsets.US_ASCII);
+
+	private FormUrlEncoder() {
+	}
+
+	/**
+	 * Writes a {@code name=value} pair, preceded by a {@code &} separator if the buffer already holds a field.
+	 * The name must not need encoding.
+	 */
+	static void writeField(ByteBuf out, String name, CharSequence value) {
+		if (out.isReadable()) {
+			out.writeByte('&');
+		}
+		writeAscii(out, name);
+		out.writeByte('=');
+		encode(out, value);
+	}
+
+	/**
+	 * Writes a {@code name=value} pair with the remaining bytes of {@code value} Base64 encoded, without padding.
+	 */
+	static void writeBase64Field(ByteBuf out, String name, ByteBuffer value) {
+		if (out.isReadable()) {
+			out.writeByte('&');
+		}
+		writeAscii(out, name);
+		out.writeByte('=');
+		final int end = value.limit();
+		int i = value.position();
+		out.ensureWritable((value.remaining() + 2) / 3 * 4);
+		for (; i + 2 < end; i += 3) {
+			final int bits = (value.get(i) & 0xff) << 16 | (value.get(i + 1) & 0xff) << 8 | (value.get(i + 2) & 0xff);
+			out.writeByte(BASE64_URL[bits >>> 18]);
+			out.writeByte(BASE64_URL[(bits >>> 12) & 0x3f]);
+			out.writeByte(BASE64_URL[(bits >>> 6) & 0x3f]);
+			out.writeByte(BASE64_URL[bits & 0x3f]);
+		}
+		if (i + 1 == end) {
+			final int bits = (value.get(i) & 0xff) << 16;
+			out.writeByte(BASE64_URL[bits >>> 18]);
+			out.writeByte(BASE64_URL[(bits >>> 12) & 0x3f]);
+		} else if (i + 2 == end) {
+			final int bits = (value.get(i) & 0xff) << 16 | (value.get(i + 1) & 0xff) << 8;
+			out.writeByte(BASE64_URL[bits >>> 18]);
+			out.writeByte(BASE64_URL[(bits >>> 12) & 0x3f]);
+			out.writeByte(BASE64_URL[(bits >>> 6) & 0x3f]);
+		}
+	}
+
+	static void writeAscii(ByteBuf out, CharSequence value) {
+		for (int i = 0; i < value.length(); i++) {
+			out.writeByte(value.charAt(i));
+		}
+	}
+
+	static void encode(ByteBuf out, CharSequence value) {
+		final int length = value.length();
+		for (int i = 0; i < length; i++) {
+			final char c = value.charAt(i);
+			if (isUnreserved(c)) {
+				out.writeByte(c);
+			} else if (c == ' ') {
+				out.writeByte('+');
+			} else if (c < 0x80) {
+				writeEscaped(out, c);
+			} else if (c < 0x800) {
+				writeEscaped(out, 0xc0 | (c >> 6));
+				writeEscaped(out, 0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				writeEscaped(out, 0xf0 | (codePoint >> 18));
+				writeEscaped(out, 0x80 | ((codePoint >> 12) & 0x3f));
+				writeEscaped(out, 0x80 | ((codePoint >> 6) & 0x3f));
+				writeEscaped(out, 0x80 | (codePoint & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogates can't be represented in UTF-8, the JDK encoder substitutes '?'
+				writeEscaped(out, '?');
+			} else {
+				writeEscaped(out, 0xe0 | (c >> 12));
+				writeEscaped(out, 0x80 | ((c >> 6) & 0x3f));
+				writeEscaped(out, 0x80 | (c & 0x3f));
+			}
+		}
+	}
+
+	private static boolean isUnreserved(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+				|| c == '.' || c == '-' || c == '*' || c == '_';
+	}
+
+	private static void writeEscaped(ByteBuf out, int b) {
+		out.writeByte('%');
+		out.writeByte(HEX[(b >> 4) & 0xf]);
+		out.writeByte(HEX[b & 0xf]);
+	}
+}
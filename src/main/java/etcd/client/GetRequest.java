@@ -16,6 +16,10 @@
  */
 package etcd.client;
 
+import java.time.Duration;
+import java.util.Optional;
+import java.util.stream.Stream;
+
 public interface GetRequest extends Request {
 
 	/**
@@ -31,8 +35,63 @@ public interface GetRequest extends Request {
 
 	GetRequest sorted();
 
+	/**
+	 * Stores the nodes of the result in a handful of primitive arrays instead of one object per node. The strings of
+	 * every node stay in a single copy of the response body until they are read, and the {@link Node} instances
+	 * returned by the result are views that are created as the tree is navigated. This takes a fraction of the memory
+	 * of a regular result, which makes it well suited to holding on to large recursive reads.
+	 *
+	 * <p>Nodes returned by a compact result are not cached, so reading the same field twice decodes it twice.
+	 *
+	 * @return this {@code GetRequest} instance.
+	 */
+	GetRequest compact();
+
 	GetRequest waitForChange();
 
 	GetRequest waitIndex(long index);
 
+	/**
+	 * Sends the request like {@link #send()}, except that a key that doesn't exist results in an empty {@code Optional}
+	 * rather than a {@link KeyNotFoundException}. A missing key costs no more than one that is found.
+	 *
+	 * @return the result of the request, or an empty {@code Optional} if the key doesn't exist.
+	 */
+	Optional<Result> sendIfPresent();
+
+	/**
+	 * Sends the request like {@link #send(Duration)}, except that a key that doesn't exist results in an empty
+	 * {@code Optional} rather than a {@link KeyNotFoundException}.
+	 *
+	 * @param timeout how long to wait for the response.
+	 * @return the result of the request, or an empty {@code Optional} if the key doesn't exist.
+	 * @throws EtcdTimeoutException if the response isn't received before the timeout expires.
+	 */
+	Optional<Result> sendIfPresent(Duration timeout);
+
+	/**
+	 * Recursively reads the requested key and returns its nodes as they arrive from the server, rather than waiting
+	 * for the whole response. Only a small part of the response is held in memory at any time, so this can read
+	 * directories far bigger than {@link #send()} can handle. The server is held back while the stream isn't being
+	 * consumed.
+	 *
+	 * <p>Each node is returned once its own fields have been read, which for a directory is after all of its children.
+	 * Directories are returned without their children. The stream holds a connection open until it has been consumed
+	 * or closed. This method blocks until the server has started responding.
+	 *
+	 * @return the nodes of the directory tree, the requested node last.
+	 * @throws KeyNotFoundException if the key doesn't exist.
+	 */
+	Stream<Node> streamNodes();
+
+	/**
+	 * Like {@link #streamNodes()}, giving up if the server hasn't started responding before the timeout expires.
+	 *
+	 * @param timeout the longest to wait for the server to start responding.
+	 * @return the nodes of the directory tree, the requested node last.
+	 * @throws KeyNotFoundException if the key doesn't exist.
+	 * @throws EtcdTimeoutException if the server didn't start responding in time.
+	 */
+	Stream<Node> streamNodes(Duration timeout);
+
 }
@@ -19,181 +19,782 @@ package etcd.client;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ConnectTimeoutException;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.PrematureChannelClosureException;
+import io.netty.handler.codec.compression.JdkZlibDecoder;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpContentDecompressor;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
 import io.netty.util.AttributeKey;
-import io.netty.util.ReferenceCounted;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.net.URI;
-import java.util.Collections;
-import java.util.Iterator;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 /**
  * Light HTTP client wrapper around Netty.
  */
-// TODO Remove bad hosts from selection pool after error, return after timeout
 class HttpClient {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(HttpClient.class);
 
-	private static AttributeKey<Consumer<Response>> ATTRIBUTE_KEY = AttributeKey.valueOf(HttpClient.class.getName() + "-attribute");
-	private static AttributeKey<FullHttpRequest> REQUEST_KEY = AttributeKey.valueOf(HttpClient.class.getName() + "-request");
+	/**
+	 * A cheap request used to check that a failed server is healthy again.
+	 */
+	private static final String PROBE_PATH = "/version";
+	private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(5);
+	private static final int MAX_REDIRECTS = 5;
+
+	static final int DEFAULT_MAX_RESPONSE_SIZE = 1024 * 1024;
+	static final int NO_SPILL = -1;
+
+	private static final String ACCEPT_COMPRESSED = HttpHeaders.Values.GZIP + ", " + HttpHeaders.Values.DEFLATE;
+
+	private static final AttributeKey<Queue<InFlightRequest>> IN_FLIGHT_KEY = AttributeKey.valueOf(HttpClient.class.getName() + "-inFlight");
 
 	private final EventLoopGroup eventLoopGroup;
 	private final Bootstrap bootstrap;
 	private final Executor executor;
+	private final HashedWheelTimer timer = new HashedWheelTimer(new DefaultThreadFactory("etcd-timer", true), 10, TimeUnit.MILLISECONDS);
 
 	private final ServerList servers;
 	private final boolean autoReconnect;
-//	private final List<Channel> channelPool = new ArrayList<>();
-//
-//	private final Object lock = new Object();
+	// Ask for compressed responses, they are decompressed before anything else in the pipeline sees them
+	private final boolean compression;
+	private final ChannelPool.Limits poolLimits;
+	// Keyed by server rather than by address, so that finding the pool for a request allocates nothing
+	private final ConcurrentMap<ServerList.Server, ChannelPool> channelPools = new ConcurrentHashMap<>();
+
+	// Long polls hold their connection until something changes so they get their own pools, otherwise a large number
+	// of watches would use up every connection and starve ordinary requests.
+	private final Bootstrap longPollBootstrap;
+	private final ChannelPool.Limits longPollPoolLimits;
+	private final ConcurrentMap<ServerList.Server, ChannelPool> longPollChannelPools = new ConcurrentHashMap<>();
+
+	// Streamed responses are read incrementally over a connection of their own, see openStream
+	private final Bootstrap streamBootstrap;
+
+	// Only the leader can handle writes and consistent reads, followers redirect them. The last redirect target is
+	// remembered so that later requests of that kind can skip the extra round trip.
+	private final AtomicReference<ServerList.Server> leader = new AtomicReference<>();
+
+	private volatile boolean closed;
 
 	public HttpClient(EventLoopGroup eventLoopGroup, Executor executor, ServerList servers, boolean autoReconnect) {
+		this(eventLoopGroup, executor, servers, autoReconnect, ChannelPool.Limits.defaults(), ChannelPool.Limits.longPollDefaults(),
+				false, DEFAULT_MAX_RESPONSE_SIZE, NO_SPILL, null);
+	}
+
+	/**
+	 * @param maxResponseSize the largest response body that will be accepted, in bytes.
+	 * @param spillThreshold response bodies larger than this many bytes are written to a temporary file in
+	 *                       {@code spillDirectory} rather than held on the heap, or {@link #NO_SPILL}.
+	 */
+	public HttpClient(EventLoopGroup eventLoopGroup, Executor executor, ServerList servers, boolean autoReconnect,
+	                  ChannelPool.Limits poolLimits, ChannelPool.Limits longPollPoolLimits, boolean compression,
+	                  int maxResponseSize, int spillThreshold, Path spillDirectory) {
+		if (longPollPoolLimits.getPipeliningDepth() != 1) {
+			throw new IllegalArgumentException("Long poll requests can not be pipelined");
+		}
+		if (maxResponseSize < 1) {
+			throw new IllegalArgumentException("maxResponseSize must be at least 1");
+		}
 		this.eventLoopGroup = eventLoopGroup;
 		this.executor = executor;
 		this.servers = servers;
 		this.autoReconnect = autoReconnect;
+		this.compression = compression;
+		this.poolLimits = poolLimits;
+		this.longPollPoolLimits = longPollPoolLimits;
+		servers.onServerOpened(this::scheduleProbe);
 		bootstrap = new Bootstrap()
 				.group(eventLoopGroup)
-				.channel(NioSocketChannel.class)
+				.channel(channelClass(eventLoopGroup))
 				.option(ChannelOption.SO_REUSEADDR, true)
+				.option(ChannelOption.TCP_NODELAY, true)
 				.handler(new ChannelInitializer<SocketChannel>() {
 					@Override
 					protected void initChannel(SocketChannel channel) throws Exception {
+						channel.attr(IN_FLIGHT_KEY).set(new ArrayDeque<>());
 						final ChannelPipeline pipeline = channel.pipeline();
 
+						pipeline.addLast(new HttpClientCodec(4096, 8192, 8192, true));
+						if (compression) {
+							// Ahead of the aggregator so that its limit applies to the decompressed size
+							pipeline.addLast(new JdkHttpContentDecompressor());
+						}
 						pipeline.addLast(
-								new HttpClientCodec(4096, 8192, 8192, true),
-								new HttpObjectAggregator(1024 * 1024),
+								spillThreshold == NO_SPILL
+										? new HttpObjectAggregator(maxResponseSize)
+										: new SpillingHttpObjectAggregator(maxResponseSize, spillThreshold, spillDirectory),
 								new HttpClientHandler());
 					}
 				})
 				.validate();
+		// A long poll may sit on an otherwise silent connection indefinitely, let TCP notice if the server goes away
+		longPollBootstrap = bootstrap.clone()
+				.option(ChannelOption.SO_KEEPALIVE, true);
+		streamBootstrap = bootstrap.clone()
+				.option(ChannelOption.AUTO_READ, false)
+				.option(ChannelOption.MAX_MESSAGES_PER_READ, 1)
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) Math.min(Integer.MAX_VALUE, poolLimits.getConnectTimeout().toMillis()))
+				.handler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel channel) throws Exception {
+						channel.pipeline().addLast(new HttpClientCodec(4096, 8192, 8192));
+						if (compression) {
+							channel.pipeline().addLast(new JdkHttpContentDecompressor());
+						}
+					}
+				});
+	}
+
+	private void acceptCompressed(FullHttpRequest request) {
+		if (compression) {
+			request.headers().set(HttpHeaders.Names.ACCEPT_ENCODING, ACCEPT_COMPRESSED);
+		}
+	}
+
+	/**
+	 * Picks the channel implementation that matches the transport of the event loop group.
+	 */
+	private static Class<? extends SocketChannel> channelClass(EventLoopGroup eventLoopGroup) {
+		if (eventLoopGroup instanceof EpollEventLoopGroup) {
+			return EpollSocketChannel.class;
+		}
+		return NioSocketChannel.class;
 	}
 
-	public void send(FullHttpRequest request, Consumer<Response> completionHandler) {
+	public Runnable send(FullHttpRequest request, Consumer<Response> completionHandler) {
+		return send(request, false, null, completionHandler);
+	}
+
+	/**
+	 * Sends a request to the etcd cluster.
+	 *
+	 * @param request the request to send.
+	 * @param longPoll {@code true} if the server may hold the request open waiting for a change, long polls are sent
+	 *                 over a separate set of connections.
+	 * @param timeout how long to wait for the response, or {@code null} to wait indefinitely. When the timeout expires
+	 *                the completion handler is invoked with an {@link EtcdTimeoutException} and the connection the
+	 *                request was sent on is closed.
+	 * @param completionHandler invoked with the response.
+	 * @return cancels the request when run. The completion handler is invoked with an {@link EtcdException} and the
+	 *         connection the request was sent on is closed, which is the only way to abandon a long poll.
+	 */
+	public Runnable send(FullHttpRequest request, boolean longPoll, Duration timeout, Consumer<Response> completionHandler) {
 		// TODO Add support for TLS
 		// TODO Add support for TLS client authentication
-		send(servers.serverIterator(), request, completionHandler);
+		acceptCompressed(request);
+		final InFlightRequest inFlightRequest = new InFlightRequest(request, longPoll, completionHandler);
+		if (timeout != null) {
+			inFlightRequest.timeout = newTimeout(t -> inFlightRequest.timedOut(timeout), timeout);
+		}
+		if (closed) {
+			request.release();
+			inFlightRequest.complete(new Response(null, new EtcdException("Client has been closed")));
+			return inFlightRequest::cancel;
+		}
+		final ServerList.Snapshot snapshot = servers.snapshot();
+		inFlightRequest.snapshot = snapshot;
+		inFlightRequest.selection = servers.select(snapshot);
+		if (requiresLeader(request)) {
+			// Try the leader first, fall back to the rest of the cluster if it can't be reached
+			final ServerList.Server leader = this.leader.get();
+			if (leader != null && leader.isAvailable()) {
+				inFlightRequest.leader = leader;
+			}
+		}
+		send(inFlightRequest);
+		return inFlightRequest::cancel;
+	}
+
+	/**
+	 * Returns {@code true} if a follower would redirect the request to the leader, that is for any write and for a
+	 * consistent read.
+	 */
+	private static boolean requiresLeader(FullHttpRequest request) {
+		return !HttpMethod.GET.equals(request.getMethod()) || request.getUri().contains("consistent=true");
+	}
+
+	/**
+	 * Remembers the server a follower redirected a request to, reusing the cached leader if it hasn't changed.
+	 */
+	private ServerList.Server redirectedTo(URI serverUri) {
+		final ServerList.Server current = leader.get();
+		if (current != null && current.getAddress().equals(serverUri)) {
+			return current;
+		}
+		final ServerList.Server server = servers.server(serverUri);
+		leader.set(server);
+		return server;
+	}
+
+	/**
+	 * Forgets the cached leader if it is the server that couldn't be reached.
+	 */
+	private void serverFailed(ServerList.Server server) {
+		if (server != null) {
+			leader.compareAndSet(server, null);
+		}
+	}
+
+	/**
+	 * Sends the request to the next server that hasn't been tried yet.
+	 */
+	private void send(InFlightRequest inFlightRequest) {
+		final ServerList.Server server = inFlightRequest.nextServer();
+		if (server == null) {
+			inFlightRequest.request.release();
+			inFlightRequest.complete(new Response(null, new EtcdException("No etcd servers available")));
+		} else {
+			send(server, inFlightRequest);
+		}
 	}
 
-	private void send(Iterator<ServerList.Server> serverIterator, FullHttpRequest request, Consumer<Response> completionHandler) {
-		final ServerList.Server server = serverIterator.next();
+	private void send(ServerList.Server server, InFlightRequest inFlightRequest) {
+		final FullHttpRequest request = inFlightRequest.request;
 		final URI address = server.getAddress();
-		request.headers().add(HttpHeaders.Names.HOST, address.getHost());
-		final ChannelFuture connectFuture = bootstrap.connect(address.getHost(), address.getPort());
-		final FullHttpRequest requestCopy = request.copy();
-		requestCopy.retain();
-		final Channel channel = connectFuture.channel();
-		channel.attr(REQUEST_KEY).set(requestCopy);
-		channel.attr(ATTRIBUTE_KEY).set(completionHandler);
-		connectFuture.addListener((future) -> {
-			if (future.isSuccess()) {
-				channel.writeAndFlush(request);
+		request.headers().set(HttpHeaders.Names.HOST, address.getHost());
+		final ChannelPool pool = getChannelPool(server, inFlightRequest.longPoll);
+		final Future<Channel> acquire = pool.acquire();
+		inFlightRequest.acquire = acquire;
+		acquire.addListener((FutureListener<Channel>) future -> {
+			if (future.isCancelled()) {
+				// Timed out or cancelled while waiting for a connection
+				request.release();
+			} else if (future.isSuccess()) {
+				final Channel channel = future.getNow();
+				inFlightRequest.server = server;
+				// Queueing the request and writing it must happen together on the event loop so that the order of the
+				// in flight queue matches the order of the pipelined responses.
+				if (channel.eventLoop().inEventLoop()) {
+					write(channel, inFlightRequest);
+				} else {
+					channel.eventLoop().execute(() -> write(channel, inFlightRequest));
+				}
+			} else if (closed) {
+				// Not the server's fault, the pool was closed with the client
+				request.release();
+				inFlightRequest.complete(new Response(null, new EtcdException("Client has been closed")));
 			} else {
 				server.connectionFailed();
-				if (autoReconnect && serverIterator.hasNext()) {
-					send(serverIterator, request, completionHandler);
+				serverFailed(server);
+				if (autoReconnect && inFlightRequest.hasNextServer() && !inFlightRequest.isCompleted()) {
+					send(inFlightRequest);
 				} else {
-					invokeCompletionHandler(completionHandler, new Response(null, new EtcdException(future.cause())));
+					request.release();
+					inFlightRequest.complete(new Response(null, new EtcdException(future.cause())));
 				}
 			}
 		});
 	}
 
-	private void invokeCompletionHandler(Consumer<Response> completionHandler, Response response) {
-		executor.execute(() -> completionHandler.accept(response));
+	private void write(Channel channel, InFlightRequest inFlightRequest) {
+		final FullHttpRequest request = inFlightRequest.request;
+		// Set before checking for completion, so that a request aborted from another thread either sees the channel
+		// and closes it or is seen as completed here
+		inFlightRequest.channel = channel;
+		if (inFlightRequest.isCompleted()) {
+			// Timed out or cancelled while waiting for a connection
+			inFlightRequest.channel = null;
+			request.release();
+			releaseChannel(channel);
+			return;
+		}
+		if (!channel.isActive()) {
+			// The channel closed before we got a chance to use it, channelInactive has already run
+			inFlightRequest.channel = null;
+			request.release();
+			inFlightRequest.complete(new Response(null, new EtcdException("Connection closed unexpectedly")));
+			return;
+		}
+		channel.attr(IN_FLIGHT_KEY).get().add(inFlightRequest);
+		inFlightRequest.recordSent();
+		// The in flight request keeps its own reference so that it can be sent again if the server redirects it. Writing
+		// a duplicate shares the content buffer, the encoder's release only gives back the reference taken here.
+		request.retain();
+		channel.writeAndFlush(request.duplicate()).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+	}
+
+	private ChannelPool getChannelPool(ServerList.Server server, boolean longPoll) {
+		final ConcurrentMap<ServerList.Server, ChannelPool> pools = longPoll ? longPollChannelPools : channelPools;
+		ChannelPool pool = pools.get(server);
+		if (pool == null) {
+			final URI address = server.getAddress();
+			final InetSocketAddress socketAddress = InetSocketAddress.createUnresolved(address.getHost(), address.getPort());
+			pool = pools.computeIfAbsent(server, key -> longPoll
+					? new ChannelPool(longPollBootstrap, socketAddress, longPollPoolLimits)
+					: new ChannelPool(bootstrap, socketAddress, poolLimits));
+		}
+		if (closed) {
+			// A pool created while the client was closing may have been missed by close(), closing it again is harmless
+			pool.close();
+		}
+		return pool;
+	}
+
+	/**
+	 * Schedules a task on the timer, once the client has been closed the timer is stopped and the task never runs.
+	 */
+	private Timeout newTimeout(TimerTask task, Duration delay) {
+		try {
+			return timer.newTimeout(task, delay.toNanos(), TimeUnit.NANOSECONDS);
+		} catch (IllegalStateException e) {
+			// Closed concurrently
+			return null;
+		}
+	}
+
+	private static void releaseChannel(Channel channel) {
+		final ChannelPool pool = channel.attr(ChannelPool.POOL_KEY).get();
+		if (pool == null) {
+			channel.close();
+		} else {
+			pool.release(channel);
+		}
+	}
+
+	/**
+	 * Sends a request over a new connection and returns its response without buffering it, so that responses too big
+	 * to hold in memory can be processed as they arrive. This blocks until the response headers have been received
+	 * and must not be called from an event loop thread.
+	 *
+	 * @param request the request to send, it is released by this method.
+	 * @param timeout how long to wait for the response headers, including any redirects, or {@code null} to wait
+	 *                indefinitely. Each connection attempt is also limited by the pool's connect timeout.
+	 * @return the response, which must be closed once it has been read.
+	 * @throws EtcdTimeoutException if the server didn't respond in time.
+	 * @throws EtcdException if the thread was interrupted while waiting, the thread's interrupt status is kept.
+	 */
+	public ResponseStream openStream(FullHttpRequest request, Duration timeout) {
+		acceptCompressed(request);
+		final long deadline = timeout == null ? 0 : System.nanoTime() + timeout.toNanos();
+		try {
+			if (closed) {
+				throw new EtcdException("Client has been closed");
+			}
+			final ServerList.Snapshot snapshot = servers.snapshot();
+			final long selection = servers.select(snapshot);
+			ServerList.Server server = requiresLeader(request) ? leader.get() : null;
+			int attempt = 0;
+			int redirects = 0;
+			while (true) {
+				if (server == null) {
+					if (attempt >= snapshot.size()) {
+						throw new EtcdException("No etcd servers available");
+					}
+					server = snapshot.server(selection, attempt++);
+				}
+				final URI address = server.getAddress();
+				final ChannelFuture connectFuture = streamBootstrap.connect(address.getHost(), address.getPort());
+				try {
+					connectFuture.await();
+				} catch (InterruptedException e) {
+					connectFuture.channel().close();
+					Thread.currentThread().interrupt();
+					throw new EtcdException(e);
+				}
+				if (!connectFuture.isSuccess()) {
+					server.connectionFailed();
+					serverFailed(server);
+					if (!autoReconnect || attempt >= snapshot.size()) {
+						final Throwable cause = connectFuture.cause();
+						if (cause instanceof ConnectTimeoutException) {
+							throw new EtcdTimeoutException(poolLimits.getConnectTimeout());
+						}
+						throw cause instanceof EtcdException ? (EtcdException) cause : new EtcdException(cause);
+					}
+					server = null;
+					continue;
+				}
+				final Channel channel = connectFuture.channel();
+				final ResponseStream stream = new ResponseStream(channel);
+				request.headers().set(HttpHeaders.Names.HOST, address.getHost());
+				// Keep our reference in case the request has to be sent again after a redirect
+				request.retain();
+				channel.writeAndFlush(request.duplicate()).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+				channel.read();
+				final HttpResponse response;
+				try {
+					response = stream.awaitResponse(timeout == null ? Long.MAX_VALUE : deadline - System.nanoTime());
+				} catch (TimeoutException e) {
+					throw new EtcdTimeoutException(timeout);
+				}
+				if (!isRedirect(response.getStatus()) || redirects++ == MAX_REDIRECTS) {
+					return stream;
+				}
+				stream.close();
+				final URI locationUri = URI.create(response.headers().get(HttpHeaders.Names.LOCATION));
+				if (locationUri.isAbsolute()) {
+					server = redirectedTo(URI.create(locationUri.getScheme() + "://" + locationUri.getRawAuthority()));
+				}
+				request.setUri(locationUri.getRawPath() + (locationUri.getRawQuery() == null ? "" : "?" + locationUri.getRawQuery()));
+			}
+		} finally {
+			request.release();
+		}
+	}
+
+	private static boolean isRedirect(HttpResponseStatus status) {
+		return status.equals(HttpResponseStatus.MOVED_PERMANENTLY) || status.equals(HttpResponseStatus.TEMPORARY_REDIRECT);
+	}
+
+	private void scheduleProbe(ServerList.Server server) {
+		if (!closed) {
+			newTimeout(timeout -> probe(server), Duration.ofMillis(server.getProbeDelay()));
+		}
+	}
+
+	/**
+	 * Checks whether a server whose circuit breaker is open can be readmitted, so that ordinary requests never have to
+	 * find out whether it is still down.
+	 */
+	private void probe(ServerList.Server server) {
+		final FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, PROBE_PATH);
+		final InFlightRequest inFlightRequest = new InFlightRequest(request, false, response -> {
+			boolean healthy = false;
+			try {
+				final FullHttpResponse httpResponse = response.getHttpResponse();
+				healthy = httpResponse.getStatus().equals(HttpResponseStatus.OK);
+				httpResponse.release();
+			} catch (EtcdException e) {
+				LOGGER.debug("Probe of {} failed", server, e);
+			}
+			if (healthy) {
+				server.probeSucceeded();
+			} else {
+				server.probeFailed();
+				scheduleProbe(server);
+			}
+		});
+		inFlightRequest.timeout = newTimeout(t -> inFlightRequest.timedOut(PROBE_TIMEOUT), PROBE_TIMEOUT);
+		send(server, inFlightRequest);
 	}
 
 	public EventLoopGroup getEventLoopGroup() {
 		return eventLoopGroup;
 	}
 
+	public void close() {
+		closed = true;
+		timer.stop();
+		// The pools stay in their maps so that later requests find them closed rather than open new connections
+		channelPools.values().forEach(ChannelPool::close);
+		longPollChannelPools.values().forEach(ChannelPool::close);
+	}
+
 	class HttpClientHandler extends ChannelInboundHandlerAdapter {
 		@Override
 		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-			final FullHttpRequest request = ctx.channel().attr(REQUEST_KEY).getAndRemove();
+			final InFlightRequest inFlightRequest = ctx.channel().attr(IN_FLIGHT_KEY).get().poll();
+			if (inFlightRequest == null) {
+				ReferenceCountUtil.release(msg);
+				throw new IllegalStateException("Received a response with nothing to handle it.");
+			}
+			inFlightRequest.channel = null;
+			final FullHttpRequest request = inFlightRequest.request;
 			try {
-				final Consumer<Response> completionCallbackHandler = ctx.channel().attr(ATTRIBUTE_KEY).getAndRemove();
-				if (completionCallbackHandler == null) {
-					throw new IllegalStateException("Received a response with nothing to handle it.");
-				}
 				final FullHttpResponse response = (FullHttpResponse) msg;
+				inFlightRequest.recordResponse(response.getStatus().code() >= 500);
+				if (HttpHeaders.isKeepAlive(response)) {
+					releaseChannel(ctx.channel());
+				} else {
+					ctx.close();
+				}
 
-				if (response.getStatus().equals(HttpResponseStatus.MOVED_PERMANENTLY) ||
-						response.getStatus().equals(HttpResponseStatus.TEMPORARY_REDIRECT)
-						) {
+				if (inFlightRequest.isCompleted()) {
+					// The request timed out, nobody is waiting for the response anymore
+					request.release();
+				} else if (isRedirect(response.getStatus()) && inFlightRequest.redirects++ == MAX_REDIRECTS) {
+					request.release();
+					inFlightRequest.complete(new Response(null, new EtcdException("Too many redirects, last redirected to "
+							+ response.headers().get(HttpHeaders.Names.LOCATION))));
+				} else if (isRedirect(response.getStatus())) {
 					final URI locationUri = URI.create(response.headers().get(HttpHeaders.Names.LOCATION));
-					final URI serverUri;
+					final ServerList.Server server;
 					if (locationUri.isAbsolute()) {
-						serverUri = locationUri;
-						request.headers().set(HttpHeaders.Names.HOST, serverUri.getHost());
+						server = redirectedTo(URI.create(locationUri.getScheme() + "://" + locationUri.getRawAuthority()));
 					} else {
 						final InetSocketAddress address = (InetSocketAddress) ctx.channel().remoteAddress();
-						serverUri = URI.create("http://" + address.getHostString() + ":" + address.getPort());
+						server = servers.server(URI.create("http://" + address.getHostString() + ":" + address.getPort()));
 					}
-					request.setUri(locationUri.getPath() + (locationUri.getQuery() == null ? "" : locationUri.getQuery()));
-					final Iterator<ServerList.Server> serverIterator = Collections.singleton(new ServerList.Server(serverUri)).iterator();
-					request.retain();
-					send(serverIterator, request, completionCallbackHandler);
+					request.setUri(locationUri.getRawPath() + (locationUri.getRawQuery() == null ? "" : "?" + locationUri.getRawQuery()));
+					// The redirected request keeps our reference to the request, it isn't retried elsewhere if the
+					// server it was redirected to can't be reached
+					inFlightRequest.snapshot = null;
+					send(server, inFlightRequest);
 				} else {
+					request.release();
 					response.retain();
-					invokeCompletionHandler(completionCallbackHandler, new Response(response, null));
+					inFlightRequest.complete(new Response(response, null));
 				}
-			} finally {
+			} catch (RuntimeException e) {
 				request.release();
-				if (msg instanceof ReferenceCounted) {
-					((ReferenceCounted)msg).release();
-				}
+				throw e;
+			} finally {
+				ReferenceCountUtil.release(msg);
 			}
-			ctx.close();
 		}
 
 		@Override
 		public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-//			synchronized (lock) {
-//				channelPool.remove(ctx.channel());
-//			}
-			final Consumer<Response> completionCallbackHandler = ctx.channel().attr(ATTRIBUTE_KEY).getAndRemove();
-			if (completionCallbackHandler != null) {
-				invokeCompletionHandler(completionCallbackHandler, new Response(null, new EtcdException("Connection closed unexpectedly")));
-			}
+			failInFlightRequests(ctx, new EtcdException("Connection closed unexpectedly"));
 		}
 
 		@Override
 		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-			final Consumer<Response> completionCallbackHandler = ctx.channel().attr(ATTRIBUTE_KEY).getAndRemove();
-			if (completionCallbackHandler != null) {
-				final Response response;
-				if (cause instanceof EtcdException) {
-					response = new Response(null, (EtcdException)cause);
+			final EtcdException exception = cause instanceof EtcdException ? (EtcdException) cause : new EtcdException(cause);
+			if (!failInFlightRequests(ctx, exception)) {
+				if (cause instanceof PrematureChannelClosureException) {
+					// The codec reports requests that were failed when the channel went inactive
+					LOGGER.debug("Connection closed with requests outstanding", cause);
 				} else {
-					response = new Response(null, new EtcdException(cause));
+					LOGGER.error("Error processing server request", cause);
 				}
-				invokeCompletionHandler(completionCallbackHandler, response);
-			} else {
-				LOGGER.error("Error processing server request", cause);
 			}
 			ctx.channel().close();
 		}
+
+		/**
+		 * Fails every request waiting for a response on the channel. Once the connection is broken none of the
+		 * pipelined responses can arrive, so each request is failed in the order it was sent.
+		 *
+		 * @return {@code true} if any requests were failed.
+		 */
+		private boolean failInFlightRequests(ChannelHandlerContext ctx, EtcdException exception) {
+			final Queue<InFlightRequest> inFlightRequests = ctx.channel().attr(IN_FLIGHT_KEY).get();
+			boolean failed = false;
+			InFlightRequest inFlightRequest;
+			while ((inFlightRequest = inFlightRequests.poll()) != null) {
+				inFlightRequest.channel = null;
+				if (inFlightRequest.isCompleted()) {
+					// The request timed out and the connection was closed on purpose, count the wait as its response time
+					inFlightRequest.recordTimeout();
+				} else {
+					inFlightRequest.recordFailure();
+					serverFailed(inFlightRequest.server);
+				}
+				inFlightRequest.request.release();
+				inFlightRequest.complete(new Response(null, exception));
+				failed = true;
+			}
+			return failed;
+		}
+	}
+
+	/**
+	 * Tracks a request from the time it is sent until its completion handler is invoked, across redirects and
+	 * reconnects.
+	 */
+	private class InFlightRequest {
+		private final FullHttpRequest request;
+		private final boolean longPoll;
+		private final Consumer<Response> completionHandler;
+		private final AtomicBoolean completed = new AtomicBoolean();
+
+		// The channel the request is waiting for a response on, only changed on that channel's event loop
+		private volatile Channel channel;
+		// The connection the request is waiting for, if it hasn't got one yet
+		private volatile Future<Channel> acquire;
+		private volatile Timeout timeout;
+		// The server the request was last sent to
+		private volatile ServerList.Server server;
+		private long startTime;
+
+		// The servers left to try, only changed by whoever is currently sending the request
+		private ServerList.Server leader;
+		private ServerList.Snapshot snapshot;
+		private long selection;
+		private int attempt;
+		private int redirects;
+
+		private InFlightRequest(FullHttpRequest request, boolean longPoll, Consumer<Response> completionHandler) {
+			this.request = request;
+			this.longPoll = longPoll;
+			this.completionHandler = completionHandler;
+		}
+
+		boolean isCompleted() {
+			return completed.get();
+		}
+
+		boolean hasNextServer() {
+			return leader != null || (snapshot != null && attempt < snapshot.size());
+		}
+
+		ServerList.Server nextServer() {
+			final ServerList.Server leader = this.leader;
+			if (leader != null) {
+				this.leader = null;
+				return leader;
+			}
+			if (snapshot == null || attempt >= snapshot.size()) {
+				return null;
+			}
+			return snapshot.server(selection, attempt++);
+		}
+
+		/**
+		 * Records that the request was written to {@link #server}. Long polls are left out of the server's statistics
+		 * as their response time depends on when the watched key changes.
+		 */
+		void recordSent() {
+			if (!longPoll) {
+				startTime = System.nanoTime();
+				server.requestStarted();
+			}
+		}
+
+		void recordResponse(boolean serverError) {
+			if (!longPoll) {
+				server.responseReceived(startTime, serverError);
+			}
+		}
+
+		void recordTimeout() {
+			if (!longPoll) {
+				server.requestTimedOut(startTime);
+			}
+		}
+
+		void recordFailure() {
+			if (!longPoll) {
+				server.requestFailed();
+			}
+		}
+
+		void recordAbandoned() {
+			if (!longPoll) {
+				server.requestAbandoned();
+			}
+		}
+
+		/**
+		 * Indicates if the request can be sent again after it may already have reached the server.
+		 */
+		boolean isIdempotent() {
+			final HttpMethod method = request.getMethod();
+			return HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method);
+		}
+
+		/**
+		 * Invokes the completion handler unless the request has already been completed, by a timeout for example.
+		 */
+		void complete(Response response) {
+			if (completed.compareAndSet(false, true)) {
+				final Timeout timeout = this.timeout;
+				if (timeout != null) {
+					timeout.cancel();
+				}
+				executor.execute(() -> completionHandler.accept(response));
+			} else if (response.response != null) {
+				response.response.release();
+			}
+		}
+
+		void timedOut(Duration duration) {
+			abort(new EtcdTimeoutException(duration));
+		}
+
+		void cancel() {
+			abort(new EtcdException("Request cancelled"));
+		}
+
+		/**
+		 * Completes the request with an exception without waiting for the response.
+		 */
+		private void abort(EtcdException exception) {
+			if (!completed.compareAndSet(false, true)) {
+				return;
+			}
+			final Timeout timeout = this.timeout;
+			if (timeout != null) {
+				timeout.cancel();
+			}
+			executor.execute(() -> completionHandler.accept(new Response(null, exception)));
+			final Future<Channel> acquire = this.acquire;
+			if (acquire != null) {
+				acquire.cancel(false);
+			}
+			final Channel channel = this.channel;
+			if (channel != null) {
+				// Only close the connection if the request is still waiting on it, it may have moved on in the meantime
+				channel.eventLoop().execute(() -> {
+					if (channel.attr(IN_FLIGHT_KEY).get().contains(this)) {
+						abandon(channel);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Closes a connection whose responses are no longer worth waiting for, because a request timed out or was
+	 * cancelled. The other requests pipelined on the connection did nothing wrong, those that can safely be sent
+	 * twice are sent again over another connection and the rest fail. Must be called on the channel's event loop.
+	 */
+	private void abandon(Channel channel) {
+		final List<InFlightRequest> inFlightRequests = new ArrayList<>(channel.attr(IN_FLIGHT_KEY).get());
+		channel.attr(IN_FLIGHT_KEY).get().clear();
+		channel.close();
+		for (InFlightRequest inFlightRequest : inFlightRequests) {
+			inFlightRequest.channel = null;
+			if (inFlightRequest.isCompleted()) {
+				inFlightRequest.recordTimeout();
+				inFlightRequest.request.release();
+			} else if (inFlightRequest.isIdempotent()) {
+				inFlightRequest.recordAbandoned();
+				send(inFlightRequest.server, inFlightRequest);
+			} else {
+				inFlightRequest.recordFailure();
+				inFlightRequest.request.release();
+				inFlightRequest.complete(new Response(null, new EtcdException("Connection closed unexpectedly")));
+			}
+		}
 	}
 
 	class Response {
@@ -213,4 +814,20 @@ class HttpClient {
 		}
 	}
 
+
+	/**
+	 * Decompresses responses with the JDK's zlib support. Netty otherwise expects JZlib to be on the class path.
+	 */
+	private static class JdkHttpContentDecompressor extends HttpContentDecompressor {
+		@Override
+		protected EmbeddedChannel newContentDecoder(String contentEncoding) throws Exception {
+			if (HttpHeaders.Values.GZIP.equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+				return new EmbeddedChannel(new JdkZlibDecoder(ZlibWrapper.GZIP));
+			}
+			if (HttpHeaders.Values.DEFLATE.equalsIgnoreCase(contentEncoding) || "x-deflate".equalsIgnoreCase(contentEncoding)) {
+				return new EmbeddedChannel(new JdkZlibDecoder(ZlibWrapper.ZLIB));
+			}
+			return null;
+		}
+	}
 }
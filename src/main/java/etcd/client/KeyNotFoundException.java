@@ -20,4 +20,8 @@ public class KeyNotFoundException extends EtcdRequestException {
 	public KeyNotFoundException(String message, int errorCode, Long index, String cause) {
 		super(message, errorCode, index, cause);
 	}
+
+	public KeyNotFoundException(String message, int errorCode, Long index, String cause, boolean writableStackTrace) {
+		super(message, errorCode, index, cause, writableStackTrace);
+	}
 }
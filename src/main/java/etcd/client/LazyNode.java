@@ -0,0 +1,154 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A node that keeps the offsets of its string fields into the response body and only decodes them when they are read.
+ * Most callers only look at the key and value of a node, so the expiration, for example, is usually never parsed.
+ * Decoded values, and the {@code Optional}s wrapping them, are cached.
+ *
+ * <p>The body is the only copy of the keys of a result until they are read, so however deep a listing is each key
+ * costs an offset rather than a string of its own.
+ *
+ * <p>Unsynchronized caching is safe because decoding is idempotent and the cached objects are immutable.
+ */
+class LazyNode implements Node {
+
+	static final int ABSENT = -1;
+	static final long NO_NUMBER = Long.MIN_VALUE;
+
+	private final ByteBuffer body;
+	private final long createdIndex;
+	private final long modifiedIndex;
+	// Offsets of the first character of each string, after the opening quote, or ABSENT
+	private final int keyOffset;
+	private final int valueOffset;
+	private final int expirationOffset;
+	private final long timeToLive;
+	private final boolean directory;
+	private final List<? extends Node> nodes;
+
+	private String key;
+	private Optional<Long> modifiedIndexOptional;
+	private Optional<String> value;
+	private Optional<Instant> expiration;
+	private Optional<Duration> timeToLiveOptional;
+
+	LazyNode(ByteBuffer body, long createdIndex, long modifiedIndex, int keyOffset, int valueOffset, int expirationOffset,
+	         long timeToLive, boolean directory, List<? extends Node> nodes) {
+		this.body = body;
+		this.createdIndex = createdIndex;
+		this.modifiedIndex = modifiedIndex;
+		this.keyOffset = keyOffset;
+		this.valueOffset = valueOffset;
+		this.expirationOffset = expirationOffset;
+		this.timeToLive = timeToLive;
+		this.directory = directory;
+		this.nodes = nodes == null ? Collections.emptyList() : nodes;
+	}
+
+	@Override
+	public long getCreatedIndex() {
+		return createdIndex;
+	}
+
+	@Override
+	public Optional<Long> getModifiedIndex() {
+		Optional<Long> modifiedIndex = modifiedIndexOptional;
+		if (modifiedIndex == null) {
+			modifiedIndexOptional = modifiedIndex = this.modifiedIndex == NO_NUMBER ? Optional.empty() : Optional.of(this.modifiedIndex);
+		}
+		return modifiedIndex;
+	}
+
+	@Override
+	public String getKey() {
+		String key = this.key;
+		if (key == null && keyOffset != ABSENT) {
+			this.key = key = ResultDecoder.decodeString(body, keyOffset);
+		}
+		return key;
+	}
+
+	@Override
+	public Optional<String> getValue() {
+		Optional<String> value = this.value;
+		if (value == null) {
+			this.value = value = valueOffset == ABSENT ? Optional.empty() : Optional.of(ResultDecoder.decodeString(body, valueOffset));
+		}
+		return value;
+	}
+
+	/**
+	 * Decodes the value straight from the response body, Base64 never needs escaping so no string is needed.
+	 */
+	@Override
+	public Optional<byte[]> getValueBytes() {
+		return valueOffset == ABSENT ? Optional.empty() : Optional.of(ResultDecoder.decodeBase64(body, valueOffset));
+	}
+
+	@Override
+	public Optional<Instant> getExpiration() {
+		Optional<Instant> expiration = this.expiration;
+		if (expiration == null) {
+			this.expiration = expiration = expirationOffset == ABSENT ? Optional.empty()
+					: Optional.of(DateTimeFormatter.ISO_OFFSET_DATE_TIME.parse(ResultDecoder.decodeString(body, expirationOffset), Instant::from));
+		}
+		return expiration;
+	}
+
+	@Override
+	public Optional<Duration> getTimetoLive() {
+		Optional<Duration> timeToLive = timeToLiveOptional;
+		if (timeToLive == null) {
+			timeToLiveOptional = timeToLive = this.timeToLive == NO_NUMBER ? Optional.empty() : Optional.of(Duration.ofSeconds(this.timeToLive));
+		}
+		return timeToLive;
+	}
+
+	@Override
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	@Override
+	public List<? extends Node> getNodes() {
+		return nodes;
+	}
+
+	@Override
+	public String toString() {
+		return "JsonNode{" +
+				"createdIndex=" + createdIndex +
+				", modifiedIndex=" + getModifiedIndex().orElse(null) +
+				", key='" + getKey() + '\'' +
+				", value='" + getValue().orElse(null) + '\'' +
+				", expiration=" + getExpiration().orElse(null) +
+				", timeToLive=" + getTimetoLive().orElse(null) +
+				", directory=" + directory +
+				", nodes=" + nodes +
+				'}';
+	}
+}
@@ -16,8 +16,10 @@
  */
 package etcd.client;
 
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Base64;
 import java.util.List;
 import java.util.Optional;
 
@@ -31,6 +33,27 @@ public interface Node {
 
 	Optional<String> getValue();
 
+	/**
+	 * Returns a binary value set with {@link SetRequest#value(byte[])}, decoding it from the URL and filename safe
+	 * Base64 alphabet.
+	 *
+	 * @return the decoded value.
+	 * @throws IllegalArgumentException if the value isn't Base64 encoded.
+	 */
+	default Optional<byte[]> getValueBytes() {
+		return getValue().map(Base64.getUrlDecoder()::decode);
+	}
+
+	/**
+	 * Returns a binary value set with {@link SetRequest#value(byte[])} as a read-only buffer, see
+	 * {@link #getValueBytes()}.
+	 *
+	 * @return the decoded value.
+	 */
+	default Optional<ByteBuffer> getValueBuffer() {
+		return getValueBytes().map(bytes -> ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+	}
+
 	Optional<Instant> getExpiration();
 
 	Optional<Duration> getTimetoLive();
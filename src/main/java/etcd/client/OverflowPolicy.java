@@ -0,0 +1,40 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+/**
+ * What a subscriber to {@link WatchRequest#publisher(int, OverflowPolicy)} gets when changes arrive faster than it
+ * requests them and its buffer is full.
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * The oldest change in the buffer is dropped to make room.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * The change in the buffer to the same key is dropped, so that only the latest change to each key is kept. If no
+	 * buffered change is to the same key the oldest change is dropped.
+	 */
+	CONFLATE,
+
+	/**
+	 * The subscription is cancelled and the subscriber is sent an {@link EtcdException}.
+	 */
+	ERROR
+}
@@ -16,13 +16,13 @@
  */
 package etcd.client;
 
+import java.time.Duration;
+
 /**
  * Represents a request to the etcd cluster.
  */
 public interface Request {
 
-	// TODO Add a send method that has a timeout.
-
 	/**
 	 * Sends the request to the etcd cluster and blocks until the response is received. This method may be invoked
 	 * multiple times and will send multiple requests to the etcd cluster.
@@ -31,6 +31,16 @@ public interface Request {
 	 */
 	Result send();
 
+	/**
+	 * Sends the request to the etcd cluster and blocks until the response is received or the timeout expires. This
+	 * method may be invoked multiple times and will send multiple requests to the etcd cluster.
+	 *
+	 * @param timeout how long to wait for the response.
+	 * @return the result of the request.
+	 * @throws EtcdTimeoutException if the response isn't received before the timeout expires.
+	 */
+	Result send(Duration timeout);
+
 	/**
 	 * Sends the request to the etcd cluster and invokes the {@code consumer} callback when the response is received.
 	 * This method does not block. This method may be invoked multiple times and will send multiple requests to the
@@ -40,4 +50,14 @@ public interface Request {
 	 */
 	EtcdFuture sendAsync(EtcdListener... listeners);
 
+	/**
+	 * Sends the request to the etcd cluster and invokes the {@code consumer} callback when the response is received.
+	 * If the response doesn't arrive before the timeout expires the returned future fails with an
+	 * {@link EtcdTimeoutException} and the connection the request was sent on is closed. This method does not block.
+	 *
+	 * @param timeout how long to wait for the response.
+	 * @param listeners optional list of listeners that will be invoked when the request completes.
+	 */
+	EtcdFuture sendAsync(Duration timeout, EtcdListener... listeners);
+
 }
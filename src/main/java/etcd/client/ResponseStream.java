@@ -0,0 +1,250 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The body of an HTTP response read incrementally, as a blocking {@link InputStream}, from a connection dedicated to
+ * the response.
+ *
+ * <p>The connection doesn't read automatically. Another read is only requested from the socket while fewer than
+ * {@link #MAX_QUEUED_CHUNKS} chunks are waiting to be consumed, so a slow reader holds back the server rather than
+ * letting the response pile up in memory.
+ */
+class ResponseStream extends InputStream {
+
+	static final int MAX_QUEUED_CHUNKS = 16;
+
+	private static final Object END = new Object();
+
+	private final Channel channel;
+	private final CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+	// Holds ByteBufs, END or the Throwable that broke the stream
+	private final BlockingQueue<Object> chunks = new LinkedBlockingQueue<>();
+
+	private ByteBuf current;
+	private boolean ended;
+	private volatile boolean closed;
+
+	ResponseStream(Channel channel) {
+		this.channel = channel;
+		channel.pipeline().addLast(new ResponseStreamHandler());
+	}
+
+	/**
+	 * Blocks until the status line and headers of the response have been received.
+	 */
+	HttpResponse awaitResponse() {
+		try {
+			return awaitResponse(Long.MAX_VALUE);
+		} catch (TimeoutException e) {
+			// Not going to happen
+			throw new EtcdException(e);
+		}
+	}
+
+	/**
+	 * Blocks until the status line and headers of the response have been received, or the timeout expires. The
+	 * connection is closed if no response is received.
+	 *
+	 * @param timeout the longest to wait in nanoseconds, {@link Long#MAX_VALUE} to wait indefinitely.
+	 * @throws TimeoutException if the timeout expired before the server responded.
+	 */
+	HttpResponse awaitResponse(long timeout) throws TimeoutException {
+		try {
+			return timeout == Long.MAX_VALUE ? response.get() : response.get(timeout, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			close();
+			Thread.currentThread().interrupt();
+			throw new EtcdException(e);
+		} catch (ExecutionException e) {
+			close();
+			throw e.getCause() instanceof EtcdException ? (EtcdException) e.getCause() : new EtcdException(e.getCause());
+		} catch (TimeoutException e) {
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextChunk()) {
+			return -1;
+		}
+		return current.readByte() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!nextChunk()) {
+			return -1;
+		}
+		final int count = Math.min(len, current.readableBytes());
+		current.readBytes(b, off, count);
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return current == null ? 0 : current.readableBytes();
+	}
+
+	/**
+	 * Makes sure {@link #current} has something to read, blocking for the next chunk if necessary.
+	 *
+	 * @return {@code false} at the end of the response.
+	 */
+	private boolean nextChunk() throws IOException {
+		while (current == null || !current.isReadable()) {
+			if (current != null) {
+				current.release();
+				current = null;
+			}
+			if (ended) {
+				return false;
+			}
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			final Object chunk;
+			try {
+				chunk = chunks.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			if (chunks.size() < MAX_QUEUED_CHUNKS) {
+				channel.read();
+			}
+			if (chunk == END) {
+				ended = true;
+				// Nothing else will be sent on the connection
+				channel.close();
+			} else if (chunk instanceof Throwable) {
+				ended = true;
+				throw new IOException((Throwable) chunk);
+			} else {
+				current = (ByteBuf) chunk;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the connection and discards any part of the response that hasn't been read.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		channel.close();
+		if (current != null) {
+			current.release();
+			current = null;
+		}
+		discardChunks();
+	}
+
+	private void discardChunks() {
+		Object chunk;
+		while ((chunk = chunks.poll()) != null) {
+			ReferenceCountUtil.release(chunk);
+		}
+	}
+
+	private void fail(Throwable cause) {
+		final EtcdException exception = cause instanceof EtcdException ? (EtcdException) cause : new EtcdException(cause);
+		if (!response.completeExceptionally(exception)) {
+			chunks.add(exception);
+		}
+	}
+
+	private class ResponseStreamHandler extends ChannelInboundHandlerAdapter {
+		private boolean complete;
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+			if (msg instanceof HttpResponse) {
+				response.complete((HttpResponse) msg);
+			}
+			if (msg instanceof HttpContent) {
+				final ByteBuf content = ((HttpContent) msg).content();
+				if (content.isReadable()) {
+					chunks.add(content.retain());
+				}
+				if (msg instanceof LastHttpContent) {
+					complete = true;
+					chunks.add(END);
+				}
+			}
+			ReferenceCountUtil.release(msg);
+			if (closed) {
+				// The reader gave up, don't hold on to anything it won't consume
+				discardChunks();
+			}
+		}
+
+		/**
+		 * Asks for more once everything read from the socket has been handled. Doing it here rather than for each
+		 * message keeps reading when a decoder, such as a decompressor, consumes a read without producing anything.
+		 */
+		@Override
+		public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+			if (!closed && !complete && chunks.size() < MAX_QUEUED_CHUNKS) {
+				ctx.read();
+			}
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+			if (!complete) {
+				fail(new EtcdException("Connection closed before the response was complete"));
+			}
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+			if (!complete) {
+				complete = true;
+				fail(cause);
+			}
+			ctx.close();
+		}
+	}
+}
@@ -18,6 +18,7 @@ package etcd.client;
 
 import java.util.Optional;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public interface Result {
 
@@ -34,15 +35,14 @@ public interface Result {
 
 	Optional<Node> getPreviousNode();
 
+	/**
+	 * Returns the node of the result followed by every node below it, depth first with each directory before its
+	 * children. The tree is walked as the stream is consumed, and a parallel stream splits it by subtrees.
+	 *
+	 * @return the nodes of the result, or an empty stream if the result has no node.
+	 */
 	default Stream<Node> streamAllNodes() {
-		final Stream.Builder<Node> builder = Stream.<Node>builder();
-		addNode(builder, getNode());
-		return builder.build();
-	}
-
-	static void addNode(Stream.Builder<Node> builder, Node node) {
-		builder.add(node);
-		node.getNodes().forEach(child -> addNode(builder, child));
+		return StreamSupport.stream(new TreeSpliterator(getNode()), false);
 	}
 
 }
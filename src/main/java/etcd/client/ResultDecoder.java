@@ -0,0 +1,749 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Decodes etcd responses with Jackson's streaming parser.
+ *
+ * <p>The parser reads straight from the response buffer and field names are matched against the parser's canonical
+ * (interned) names, so apart from the values themselves nothing is allocated while decoding. Nodes are built with
+ * plain constructors rather than through data binding.
+ *
+ * <p>Buffered results are decoded into {@link LazyNode}s, which only note where their strings are in a copy of the
+ * response body and decode them when they are read. Compact results go one step further and keep the whole node tree
+ * in a {@link CompactTree}.
+ */
+final class ResultDecoder {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private static final Action[] ACTIONS = Action.values();
+
+	/**
+	 * Lazy nodes rely on the parser reporting the position of a string value before reading it, which isn't part of
+	 * Jackson's contract. Check that it does, and fall back to decoding everything up front if it doesn't.
+	 */
+	private static final boolean LAZY_NODES = canLocateStrings();
+
+	private ResultDecoder() {
+	}
+
+	static Result decodeResult(ByteBuf content, EtcdMeta meta) throws IOException {
+		return decodeResult(content, meta, false);
+	}
+
+	/**
+	 * Decodes a result whose node tree is stored in a {@link CompactTree}, see {@link GetRequest#compact()}.
+	 */
+	static Result decodeCompactResult(ByteBuf content, EtcdMeta meta) throws IOException {
+		return decodeResult(content, meta, true);
+	}
+
+	/**
+	 * Decodes a result straight from a body that has been spilled to disk and memory-mapped. Lazy and compact nodes
+	 * read their strings from the mapping rather than from a copy of the body, so the body never has to fit on the
+	 * heap. The mapping outlives the response and stays valid for as long as a node refers to it.
+	 */
+	static Result decodeMappedResult(ByteBuf content, EtcdMeta meta, boolean compact) throws IOException {
+		if (!LAZY_NODES) {
+			return decodeResult(createParser(content), null, meta, false);
+		}
+		final ByteBuffer body = content.nioBuffer().slice();
+		return decodeResult(JSON_FACTORY.createParser(new ByteBufInputStream(content.duplicate())), body, meta, compact);
+	}
+
+	private static Result decodeResult(ByteBuf content, EtcdMeta meta, boolean compact) throws IOException {
+		if (!LAZY_NODES) {
+			return decodeResult(createParser(content), null, meta, false);
+		}
+		// The nodes outlive the response buffer, give them a copy of their own
+		final byte[] body = new byte[content.readableBytes()];
+		content.getBytes(content.readerIndex(), body);
+		return decodeResult(JSON_FACTORY.createParser(body), ByteBuffer.wrap(body), meta, compact);
+	}
+
+	private static Result decodeResult(JsonParser jsonParser, ByteBuffer body, EtcdMeta meta, boolean compact) throws IOException {
+		try (JsonParser parser = jsonParser) {
+			expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+			Action action = null;
+			Node node = null;
+			Node previousNode = null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String fieldName = parser.getCurrentName();
+				final JsonToken token = parser.nextToken();
+				switch (fieldName) {
+					case "action":
+						action = decodeAction(parser);
+						break;
+					case "node":
+						if (body == null) {
+							node = decodeNode(parser, token);
+						} else if (compact) {
+							node = decodeCompactTree(parser, token, new CompactTree(body));
+						} else {
+							node = decodeLazyNode(parser, token, body);
+						}
+						break;
+					case "prevNode":
+						previousNode = body == null ? decodeNode(parser, token) : decodeLazyNode(parser, token, body);
+						break;
+					default:
+						parser.skipChildren();
+				}
+			}
+			if (action == null) {
+				throw new EtcdException("Response is missing the action.");
+			}
+			return new DecodedResult(meta, action, node, previousNode);
+		}
+	}
+
+	static ErrorBody decodeError(ByteBuf content) throws IOException {
+		try (JsonParser parser = createParser(content)) {
+			expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+			int errorCode = 0;
+			String cause = null;
+			String message = null;
+			Long index = null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String fieldName = parser.getCurrentName();
+				final JsonToken token = parser.nextToken();
+				switch (fieldName) {
+					case "errorCode":
+						errorCode = parser.getValueAsInt();
+						break;
+					case "cause":
+						cause = textOrNull(parser, token);
+						break;
+					case "message":
+						message = textOrNull(parser, token);
+						break;
+					case "index":
+						index = token == JsonToken.VALUE_NULL ? null : parser.getValueAsLong();
+						break;
+					default:
+						parser.skipChildren();
+				}
+			}
+			return new ErrorBody(errorCode, cause, message, index);
+		}
+	}
+
+	private static JsonParser createParser(ByteBuf content) throws IOException {
+		if (content.hasArray()) {
+			return JSON_FACTORY.createParser(content.array(), content.arrayOffset() + content.readerIndex(), content.readableBytes());
+		}
+		return JSON_FACTORY.createParser(new ByteBufInputStream(content));
+	}
+
+	private static Node decodeNode(JsonParser parser, JsonToken token) throws IOException {
+		if (token == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		expect(parser, token, JsonToken.START_OBJECT);
+		final NodeBuilder builder = new NodeBuilder();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final String fieldName = parser.getCurrentName();
+			final JsonToken valueToken = parser.nextToken();
+			if (fieldName.equals("nodes") && valueToken == JsonToken.START_ARRAY) {
+				builder.nodes = new ArrayList<>();
+				JsonToken elementToken;
+				while ((elementToken = parser.nextToken()) != JsonToken.END_ARRAY) {
+					builder.nodes.add(decodeNode(parser, elementToken));
+				}
+			} else {
+				builder.field(parser, fieldName, valueToken);
+			}
+		}
+		return builder.build();
+	}
+
+	private static Node decodeLazyNode(JsonParser parser, JsonToken token, ByteBuffer body) throws IOException {
+		if (token == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		expect(parser, token, JsonToken.START_OBJECT);
+		long createdIndex = 0;
+		long modifiedIndex = LazyNode.NO_NUMBER;
+		int keyOffset = LazyNode.ABSENT;
+		int valueOffset = LazyNode.ABSENT;
+		int expirationOffset = LazyNode.ABSENT;
+		long timeToLive = LazyNode.NO_NUMBER;
+		boolean directory = false;
+		List<Node> nodes = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final String fieldName = parser.getCurrentName();
+			final JsonToken valueToken = parser.nextToken();
+			switch (fieldName) {
+				case "createdIndex":
+					createdIndex = parser.getValueAsLong();
+					break;
+				case "modifiedIndex":
+					modifiedIndex = valueToken == JsonToken.VALUE_NULL ? LazyNode.NO_NUMBER : parser.getValueAsLong();
+					break;
+				case "key":
+					keyOffset = stringOffset(parser, valueToken, body);
+					break;
+				case "value":
+					valueOffset = stringOffset(parser, valueToken, body);
+					break;
+				case "expiration":
+					expirationOffset = stringOffset(parser, valueToken, body);
+					break;
+				case "ttl":
+					timeToLive = valueToken == JsonToken.VALUE_NULL ? LazyNode.NO_NUMBER : parser.getValueAsLong();
+					break;
+				case "dir":
+					directory = valueToken == JsonToken.VALUE_TRUE;
+					break;
+				case "nodes":
+					if (valueToken == JsonToken.START_ARRAY) {
+						nodes = new ArrayList<>();
+						JsonToken elementToken;
+						while ((elementToken = parser.nextToken()) != JsonToken.END_ARRAY) {
+							nodes.add(decodeLazyNode(parser, elementToken, body));
+						}
+					} else {
+						parser.skipChildren();
+					}
+					break;
+				default:
+					parser.skipChildren();
+			}
+		}
+		return new LazyNode(body, createdIndex, modifiedIndex, keyOffset, valueOffset, expirationOffset, timeToLive, directory, nodes);
+	}
+
+	private static Node decodeCompactTree(JsonParser parser, JsonToken token, CompactTree tree) throws IOException {
+		if (token == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		decodeCompactNode(parser, token, tree, -1);
+		return tree.complete();
+	}
+
+	private static void decodeCompactNode(JsonParser parser, JsonToken token, CompactTree tree, int parent) throws IOException {
+		expect(parser, token, JsonToken.START_OBJECT);
+		final int node = tree.add(parent);
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final String fieldName = parser.getCurrentName();
+			final JsonToken valueToken = parser.nextToken();
+			switch (fieldName) {
+				case "createdIndex":
+					tree.setCreatedIndex(node, parser.getValueAsLong());
+					break;
+				case "modifiedIndex":
+					tree.setModifiedIndex(node, valueToken == JsonToken.VALUE_NULL ? LazyNode.NO_NUMBER : parser.getValueAsLong());
+					break;
+				case "key":
+					tree.setKeyOffset(node, stringOffset(parser, valueToken, tree.body()));
+					break;
+				case "value":
+					tree.setValueOffset(node, stringOffset(parser, valueToken, tree.body()));
+					break;
+				case "expiration":
+					tree.setExpirationOffset(node, stringOffset(parser, valueToken, tree.body()));
+					break;
+				case "ttl":
+					tree.setTimeToLive(node, valueToken == JsonToken.VALUE_NULL ? LazyNode.NO_NUMBER : parser.getValueAsLong());
+					break;
+				case "dir":
+					tree.setDirectory(node, valueToken == JsonToken.VALUE_TRUE);
+					break;
+				case "nodes":
+					if (valueToken == JsonToken.START_ARRAY) {
+						JsonToken elementToken;
+						while ((elementToken = parser.nextToken()) != JsonToken.END_ARRAY) {
+							decodeCompactNode(parser, elementToken, tree, node);
+						}
+					} else {
+						parser.skipChildren();
+					}
+					break;
+				default:
+					parser.skipChildren();
+			}
+		}
+	}
+
+	/**
+	 * Returns the offset of the first character of the string the parser is positioned at, without decoding it. The
+	 * parser skips over the string when it moves on.
+	 */
+	private static int stringOffset(JsonParser parser, JsonToken token, ByteBuffer body) throws IOException {
+		if (token == JsonToken.VALUE_NULL) {
+			return LazyNode.ABSENT;
+		}
+		expect(parser, token, JsonToken.VALUE_STRING);
+		final long offset = parser.getCurrentLocation().getByteOffset();
+		if (offset < 1 || offset > body.limit() || body.get((int) offset - 1) != '"') {
+			throw new EtcdException("Unable to locate string at " + parser.getCurrentLocation());
+		}
+		return (int) offset;
+	}
+
+	/**
+	 * Decodes the JSON string starting at {@code offset}, just after its opening quote. Strings without escapes, by far
+	 * the most common, are decoded directly from the UTF-8 bytes.
+	 */
+	static String decodeString(ByteBuffer body, int offset) {
+		final int limit = body.limit();
+		for (int i = offset; i < limit; i++) {
+			final byte b = body.get(i);
+			if (b == '"') {
+				return new String(bytes(body, offset, i), StandardCharsets.UTF_8);
+			}
+			if (b == '\\') {
+				break;
+			}
+		}
+		// Let Jackson deal with the escapes, starting from the opening quote
+		int end = offset;
+		while (end < limit && body.get(end) != '"') {
+			end += body.get(end) == '\\' ? 2 : 1;
+		}
+		try (JsonParser parser = JSON_FACTORY.createParser(bytes(body, offset - 1, Math.min(end + 1, limit)))) {
+			parser.nextToken();
+			return parser.getText();
+		} catch (IOException e) {
+			throw new EtcdException(e);
+		}
+	}
+
+	/**
+	 * Returns the bytes of the body from {@code start} to {@code end}, without copying them off the heap first when
+	 * the body is mapped.
+	 */
+	private static byte[] bytes(ByteBuffer body, int start, int end) {
+		final byte[] bytes = new byte[end - start];
+		if (body.hasArray()) {
+			System.arraycopy(body.array(), body.arrayOffset() + start, bytes, 0, bytes.length);
+		} else {
+			slice(body, start, end).get(bytes);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns a view of part of the body, leaving the body itself untouched so that nodes can share it between threads.
+	 */
+	private static ByteBuffer slice(ByteBuffer body, int start, int end) {
+		final ByteBuffer slice = body.duplicate();
+		// Through Buffer, ByteBuffer only overrides these from Java 9
+		((Buffer) slice).limit(end);
+		((Buffer) slice).position(start);
+		return slice;
+	}
+
+	/**
+	 * Decodes the URL safe Base64 string starting at {@code offset}, see {@link SetRequest#value(byte[])}, without
+	 * creating a string for it.
+	 *
+	 * @throws IllegalArgumentException if the string isn't Base64 encoded.
+	 */
+	static byte[] decodeBase64(ByteBuffer body, int offset) {
+		int end = offset;
+		while (end < body.limit() && body.get(end) != '"') {
+			if (body.get(end) == '\\') {
+				// Can't be Base64, let the decoder report it
+				return Base64.getUrlDecoder().decode(decodeString(body, offset));
+			}
+			end++;
+		}
+		final ByteBuffer decoded = Base64.getUrlDecoder().decode(slice(body, offset, end));
+		final byte[] bytes = decoded.array();
+		return decoded.remaining() == bytes.length ? bytes : Arrays.copyOf(bytes, decoded.remaining());
+	}
+
+	private static boolean canLocateStrings() {
+		final byte[] probe = "{\"key\" : \"value\"}".getBytes(StandardCharsets.UTF_8);
+		try (JsonParser parser = JSON_FACTORY.createParser(probe)) {
+			parser.nextToken();
+			parser.nextToken();
+			parser.nextToken();
+			return parser.getCurrentLocation().getByteOffset() == 10;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the nodes of a result one at a time as they are read from the input, so that the result never has to be
+	 * held in memory. Each node is returned once its own fields have been read, which for a directory is after all of
+	 * its children. Directories are returned without their children.
+	 *
+	 * @param in the response body, closed once the last node has been read.
+	 */
+	static Spliterator<Node> streamNodes(InputStream in) throws IOException {
+		return new NodeSpliterator(JSON_FACTORY.createParser(in));
+	}
+
+	/**
+	 * Matches the action against the {@link Action} constants without creating a string for it.
+	 */
+	private static Action decodeAction(JsonParser parser) throws IOException {
+		final char[] text = parser.getTextCharacters();
+		final int offset = parser.getTextOffset();
+		final int length = parser.getTextLength();
+		for (Action action : ACTIONS) {
+			final String name = action.name();
+			if (name.length() == length && regionMatchesIgnoreCase(name, text, offset)) {
+				return action;
+			}
+		}
+		throw new EtcdException("Unknown action " + parser.getText());
+	}
+
+	private static boolean regionMatchesIgnoreCase(String name, char[] text, int offset) {
+		for (int i = 0; i < name.length(); i++) {
+			if (name.charAt(i) != Character.toUpperCase(text[offset + i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String textOrNull(JsonParser parser, JsonToken token) throws IOException {
+		return token == JsonToken.VALUE_NULL ? null : parser.getText();
+	}
+
+	private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+		if (actual != expected) {
+			throw new EtcdException("Malformed response, expected " + expected + " but found " + actual + " at " + parser.getCurrentLocation());
+		}
+	}
+
+	/**
+	 * The fields of a node as they are read.
+	 */
+	private static class NodeBuilder {
+		private long createdIndex;
+		private Long modifiedIndex;
+		private String key;
+		private String value;
+		private String expiration;
+		private Long timeToLive;
+		private boolean directory;
+		private List<Node> nodes;
+
+		/**
+		 * Reads any field except the children of a directory.
+		 */
+		void field(JsonParser parser, String fieldName, JsonToken token) throws IOException {
+			switch (fieldName) {
+				case "createdIndex":
+					createdIndex = parser.getValueAsLong();
+					break;
+				case "modifiedIndex":
+					modifiedIndex = token == JsonToken.VALUE_NULL ? null : parser.getValueAsLong();
+					break;
+				case "key":
+					key = textOrNull(parser, token);
+					break;
+				case "value":
+					value = textOrNull(parser, token);
+					break;
+				case "expiration":
+					expiration = textOrNull(parser, token);
+					break;
+				case "ttl":
+					timeToLive = token == JsonToken.VALUE_NULL ? null : parser.getValueAsLong();
+					break;
+				case "dir":
+					directory = token == JsonToken.VALUE_TRUE;
+					break;
+				default:
+					parser.skipChildren();
+			}
+		}
+
+		Node build() {
+			return new DecodedNode(createdIndex, modifiedIndex, key, value, expiration, timeToLive, directory, nodes);
+		}
+	}
+
+	private static class NodeSpliterator implements Spliterator<Node> {
+
+		private final JsonParser parser;
+		// The nodes whose fields are being read, innermost first
+		private final Deque<NodeBuilder> builders = new ArrayDeque<>();
+		// For each node being read, whether the parser is inside its list of children
+		private final Deque<Boolean> inChildren = new ArrayDeque<>();
+		private boolean started;
+		private boolean finished;
+
+		private NodeSpliterator(JsonParser parser) {
+			this.parser = parser;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Node> action) {
+			if (finished) {
+				return false;
+			}
+			try {
+				final Node node = next();
+				if (node == null) {
+					finished = true;
+					parser.close();
+					return false;
+				}
+				action.accept(node);
+				return true;
+			} catch (IOException e) {
+				finished = true;
+				throw new EtcdException(e);
+			}
+		}
+
+		private Node next() throws IOException {
+			while (true) {
+				final JsonToken token = parser.nextToken();
+				if (token == null) {
+					throw new EtcdException("Response ended unexpectedly");
+				}
+				final NodeBuilder builder = builders.peek();
+				if (builder == null) {
+					// Reading the fields of the result itself
+					if (!started) {
+						expect(parser, token, JsonToken.START_OBJECT);
+						started = true;
+						continue;
+					}
+					if (token == JsonToken.END_OBJECT) {
+						return null;
+					}
+					expect(parser, token, JsonToken.FIELD_NAME);
+					final String fieldName = parser.getCurrentName();
+					// Move on to the value, skipping the children of a field name does nothing
+					if (parser.nextToken() == JsonToken.START_OBJECT && fieldName.equals("node")) {
+						push();
+					} else {
+						parser.skipChildren();
+					}
+				} else if (inChildren.peek()) {
+					if (token == JsonToken.END_ARRAY) {
+						inChildren.pop();
+						inChildren.push(Boolean.FALSE);
+					} else {
+						expect(parser, token, JsonToken.START_OBJECT);
+						push();
+					}
+				} else if (token == JsonToken.END_OBJECT) {
+					builders.pop();
+					inChildren.pop();
+					return builder.build();
+				} else {
+					final String fieldName = parser.getCurrentName();
+					final JsonToken valueToken = parser.nextToken();
+					if (fieldName.equals("nodes") && valueToken == JsonToken.START_ARRAY) {
+						inChildren.pop();
+						inChildren.push(Boolean.TRUE);
+					} else {
+						builder.field(parser, fieldName, valueToken);
+					}
+				}
+			}
+		}
+
+		private void push() {
+			builders.push(new NodeBuilder());
+			inChildren.push(Boolean.FALSE);
+		}
+
+		@Override
+		public Spliterator<Node> trySplit() {
+			return null;
+		}
+
+		@Override
+		public long estimateSize() {
+			return Long.MAX_VALUE;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | NONNULL;
+		}
+	}
+
+	static final class ErrorBody {
+		final int errorCode;
+		final String cause;
+		final String message;
+		final Long index;
+
+		private ErrorBody(int errorCode, String cause, String message, Long index) {
+			this.errorCode = errorCode;
+			this.cause = cause;
+			this.message = message;
+			this.index = index;
+		}
+	}
+
+	private static class DecodedResult implements Result {
+
+		private final EtcdMeta meta;
+		private final Action action;
+		private final Node node;
+		private final Node previousNode;
+
+		private DecodedResult(EtcdMeta meta, Action action, Node node, Node previousNode) {
+			this.meta = meta;
+			this.action = action;
+			this.node = node;
+			this.previousNode = previousNode;
+		}
+
+		@Override
+		public EtcdMeta getResponseMeta() {
+			return meta;
+		}
+
+		@Override
+		public Action getAction() {
+			return action;
+		}
+
+		@Override
+		public Node getNode() {
+			return node;
+		}
+
+		@Override
+		public Optional<Node> getPreviousNode() {
+			return Optional.ofNullable(previousNode);
+		}
+
+		@Override
+		public String toString() {
+			return "Result {" +
+					"meta = " + getResponseMeta() +
+					", action = " + getAction() +
+					", node = " + getNode() +
+					", prevNode = " + getPreviousNode().orElse(null) +
+					"}";
+		}
+	}
+
+	private static class DecodedNode implements Node {
+
+		private final long createdIndex;
+		private final Long modifiedIndex;
+		private final String key;
+		private final String value;
+		private final Instant expiration;
+		private final Duration timeToLive;
+		private final boolean directory;
+		private final List<? extends Node> nodes;
+
+		private DecodedNode(long createdIndex, Long modifiedIndex, String key, String value, String expiration,
+		                    Long timeToLive, boolean directory, List<Node> nodes) {
+			this.createdIndex = createdIndex;
+			this.modifiedIndex = modifiedIndex;
+			this.key = key;
+			this.value = value;
+			this.expiration = expiration == null ? null : parseDate(expiration);
+			this.timeToLive = timeToLive == null ? null : Duration.ofSeconds(timeToLive);
+			this.directory = directory;
+			this.nodes = nodes == null ? Collections.emptyList() : nodes;
+		}
+
+		private Instant parseDate(String expiration) {
+			return DateTimeFormatter.ISO_OFFSET_DATE_TIME.parse(expiration, Instant::from);
+		}
+
+		@Override
+		public long getCreatedIndex() {
+			return createdIndex;
+		}
+
+		@Override
+		public Optional<Long> getModifiedIndex() {
+			return Optional.ofNullable(modifiedIndex);
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public Optional<String> getValue() {
+			return Optional.ofNullable(value);
+		}
+
+		@Override
+		public Optional<Instant> getExpiration() {
+			return Optional.ofNullable(expiration);
+		}
+
+		@Override
+		public Optional<Duration> getTimetoLive() {
+			return Optional.ofNullable(timeToLive);
+		}
+
+		@Override
+		public boolean isDirectory() {
+			return directory;
+		}
+
+		@Override
+		public List<? extends Node> getNodes() {
+			return nodes;
+		}
+
+		@Override
+		public String toString() {
+			return "JsonNode{" +
+					"createdIndex=" + createdIndex +
+					", modifiedIndex=" + modifiedIndex +
+					", key='" + key + '\'' +
+					", value='" + value + '\'' +
+					", expiration=" + expiration +
+					", timeToLive=" + timeToLive +
+					", directory=" + directory +
+					", nodes=" + nodes +
+					'}';
+		}
+	}
+}
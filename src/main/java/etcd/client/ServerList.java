@@ -2,70 +2,446 @@ package etcd.client;
 
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
+/**
+ * The etcd servers a client may send requests to.
+ *
+ * <p>Primary servers are always tried before secondary servers. Within each tier servers are picked using the power
+ * of two choices: two servers are chosen and the one with the lower expected cost goes first. The cost of a server is
+ * a peak sensitive moving average of its response time, multiplied by the number of requests it is already working
+ * on, so slow or busy servers get less traffic without being starved entirely.
+ *
+ * <p>Each server has a circuit breaker. A server that can't be connected to, or that fails or times out on too many
+ * requests, is taken out of the rotation and the listener registered with {@link #onServerOpened(Consumer)} is told to
+ * probe it. Once a probe succeeds the server is readmitted on trial, the first request it handles decides whether it
+ * stays in the rotation or is taken out again.
+ *
+ * <p>The servers that may currently be used are published as an immutable {@link Snapshot} whenever a server is added
+ * or its circuit breaker changes state, so choosing servers for a request doesn't allocate anything.
+ */
 class ServerList {
 
 	public static final long DEFAULT_FAILURE_BACKOFF_TIME = TimeUnit.SECONDS.toMillis(2);
+	public static final long MAX_FAILURE_BACKOFF_TIME = TimeUnit.SECONDS.toMillis(30);
 
-	private final ArrayList<Server> primaryServers = new ArrayList<>();
-	private final ArrayList<Server> secondaryServers = new ArrayList<>();
+	/**
+	 * The number of recent requests the failure rate of a server is calculated over.
+	 */
+	static final int FAILURE_WINDOW = 32;
+	/**
+	 * The fewest requests in the window that can trip a circuit breaker on their failure rate.
+	 */
+	static final int MIN_FAILURE_SAMPLES = 8;
 
-	private final long failureBackoffTime = DEFAULT_FAILURE_BACKOFF_TIME;
+	private final List<Server> primaryServers = new ArrayList<>();
+	private final List<Server> secondaryServers = new ArrayList<>();
+
+	// Servers that requests were redirected to that aren't in the list, never selected but tracked all the same
+	private final ConcurrentMap<URI, Server> otherServers = new ConcurrentHashMap<>();
+
+	private volatile Snapshot snapshot = new Snapshot(new Server[0], 0);
+	private volatile Consumer<Server> openListener = server -> {};
 
 	public ServerList addServer(URI address, boolean primary) {
-		final Server server = new Server(address);
-		if (primary) {
-			primaryServers.add(server);
-		} else {
-			secondaryServers.add(server);
+		final Server server = new Server(address, this);
+		synchronized (this) {
+			if (primary) {
+				primaryServers.add(server);
+			} else {
+				secondaryServers.add(server);
+			}
+			publish();
 		}
 		return this;
 	}
 
-	public Iterator<Server> serverIterator() {
-		final Iterator<Server> primaryIterator = populateList(primaryServers).iterator();
-		final Iterator<Server> secondaryIterator = populateList(secondaryServers).iterator();
-		return new Iterator<Server>() {
-			@Override
-			public boolean hasNext() {
-				return primaryIterator.hasNext() || secondaryIterator.hasNext();
-			}
+	/**
+	 * Returns a new list of the same servers, in the same tiers, with none of their response times or failures. A list
+	 * has a single open listener and its breakers track the requests of one client, so each client works from a copy of
+	 * the servers it was built with.
+	 */
+	public synchronized ServerList copy() {
+		final ServerList copy = new ServerList();
+		primaryServers.forEach(server -> copy.addServer(server.getAddress(), true));
+		secondaryServers.forEach(server -> copy.addServer(server.getAddress(), false));
+		return copy;
+	}
 
-			@Override
-			public Server next() {
-				return primaryIterator.hasNext() ? primaryIterator.next() : secondaryIterator.next();
+	/**
+	 * Returns the server at an address, the target of a redirect for example. An address that isn't in the list
+	 * always gets the same server, so that its response times and failures are tracked across requests, but it is
+	 * never selected for a request.
+	 */
+	public Server server(URI address) {
+		synchronized (this) {
+			for (Server server : primaryServers) {
+				if (server.getAddress().equals(address)) {
+					return server;
+				}
 			}
-		};
+			for (Server server : secondaryServers) {
+				if (server.getAddress().equals(address)) {
+					return server;
+				}
+			}
+		}
+		return otherServers.computeIfAbsent(address, serverAddress -> new Server(serverAddress, this));
+	}
+
+	/**
+	 * Sets the listener invoked when a server's circuit breaker opens. The listener is expected to probe the server,
+	 * after {@link Server#getProbeDelay()}, and report the result with {@link Server#probeSucceeded()} or
+	 * {@link Server#probeFailed()}. There is only one listener, so a list serves a single client, see {@link #copy()}.
+	 */
+	public void onServerOpened(Consumer<Server> listener) {
+		this.openListener = listener;
+	}
+
+	/**
+	 * Returns the servers that may currently be used.
+	 */
+	public Snapshot snapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Chooses the order in which the servers of a snapshot will be tried for a request. Two servers of each tier are
+	 * picked at random and the cheaper one is tried first, followed by the other one and then the rest of the tier.
+	 *
+	 * @return a selection to pass to {@link Snapshot#server(long, int)}.
+	 */
+	public long select(Snapshot snapshot) {
+		final long now = System.nanoTime();
+		final int primaries = snapshot.choose(0, snapshot.primaryCount, now);
+		final int secondaries = snapshot.choose(snapshot.primaryCount, snapshot.servers.length - snapshot.primaryCount, now);
+		return (long) primaries << 32 | secondaries & 0xFFFFFFFFL;
+	}
+
+	private void stateChanged(Server server, Server.State state) {
+		synchronized (this) {
+			publish();
+		}
+		if (state == Server.State.OPEN) {
+			openListener.accept(server);
+		}
+	}
+
+	/**
+	 * Publishes a new snapshot holding the servers whose circuit breaker isn't open, must be called while holding the
+	 * lock.
+	 */
+	private void publish() {
+		final List<Server> primaries = new ArrayList<>();
+		final List<Server> secondaries = new ArrayList<>();
+		primaryServers.stream().filter(Server::isAvailable).forEach(primaries::add);
+		secondaryServers.stream().filter(Server::isAvailable).forEach(secondaries::add);
+		if (primaries.isEmpty() && secondaries.isEmpty()) {
+			// Every server has failed, trying them anyway is better than failing without trying
+			primaries.addAll(primaryServers);
+			secondaries.addAll(secondaryServers);
+		}
+		final Server[] servers = new Server[primaries.size() + secondaries.size()];
+		primaries.toArray(servers);
+		for (int i = 0; i < secondaries.size(); i++) {
+			servers[primaries.size() + i] = secondaries.get(i);
+		}
+		snapshot = new Snapshot(servers, primaries.size());
 	}
 
-	private List<Server> populateList(ArrayList<Server> servers) {
-		final long time = System.currentTimeMillis();
-		final List<Server> list = servers.stream()
-				.filter(server -> server.failTime + failureBackoffTime < time)
-				.collect(Collectors.toList());
-		Collections.shuffle(list);
-		return list;
+	/**
+	 * An immutable view of the servers that may be used, primaries first.
+	 */
+	static final class Snapshot {
+		private final Server[] servers;
+		private final int primaryCount;
+
+		private Snapshot(Server[] servers, int primaryCount) {
+			this.servers = servers;
+			this.primaryCount = primaryCount;
+		}
+
+		public int size() {
+			return servers.length;
+		}
+
+		/**
+		 * Returns the server to use for an attempt at sending a request. Every server in the snapshot is returned
+		 * exactly once for attempts {@code 0} to {@code size() - 1}.
+		 *
+		 * @param selection the value returned by {@link ServerList#select(Snapshot)} for the request.
+		 * @param attempt the number of servers that have already been tried.
+		 */
+		public Server server(long selection, int attempt) {
+			if (attempt < primaryCount) {
+				return server(0, primaryCount, (int) (selection >>> 32), attempt);
+			}
+			return server(primaryCount, servers.length - primaryCount, (int) selection, attempt - primaryCount);
+		}
+
+		/**
+		 * Returns the server of a tier to try for an attempt. The choice holds the position of the first server in
+		 * the upper half and how far ahead of it the second server is in the lower half, the remaining servers follow
+		 * in order.
+		 */
+		private Server server(int offset, int count, int choice, int attempt) {
+			final int first = choice >>> 16;
+			final int distance = choice & 0xFFFF;
+			final int step;
+			if (attempt == 0) {
+				step = 0;
+			} else if (attempt == 1) {
+				step = distance;
+			} else {
+				// Skip over the second server, it has already been tried
+				step = attempt - 1 < distance ? attempt - 1 : attempt;
+			}
+			return servers[offset + (first + step) % count];
+		}
+
+		/**
+		 * Picks two different servers of a tier at random and puts the cheaper one first.
+		 *
+		 * @return the choice to pass to {@link #server(int, int, int, int)}.
+		 */
+		private int choose(int offset, int count, long now) {
+			if (count < 2) {
+				return 0;
+			}
+			final ThreadLocalRandom random = ThreadLocalRandom.current();
+			int first = random.nextInt(count);
+			int distance = 1 + random.nextInt(count - 1);
+			final int second = (first + distance) % count;
+			if (servers[offset + second].cost(now) < servers[offset + first].cost(now)) {
+				first = second;
+				distance = count - distance;
+			}
+			return first << 16 | distance;
+		}
+
+		@Override
+		public String toString() {
+			return Arrays.toString(servers);
+		}
 	}
 
 	static class Server {
+
+		enum State {
+			/**
+			 * The server is healthy and in the rotation.
+			 */
+			CLOSED,
+			/**
+			 * The server has failed and is out of the rotation until a probe succeeds.
+			 */
+			OPEN,
+			/**
+			 * A probe succeeded and the server is back in the rotation, the next request decides whether it stays.
+			 */
+			HALF_OPEN
+		}
+
+		/**
+		 * How quickly the response time average forgets a slow response.
+		 */
+		private static final double DECAY_TIME = TimeUnit.SECONDS.toNanos(10);
+
 		private final URI address;
-		private volatile long failTime;
+		private final ServerList serverList;
+
+		private final AtomicInteger pendingRequests = new AtomicInteger();
+		// Written while holding the lock, read without it when choosing a server
+		private volatile double latency;
+		private volatile long latencyTime = System.nanoTime();
+		private volatile State state = State.CLOSED;
+		private long probeDelay = DEFAULT_FAILURE_BACKOFF_TIME;
+		// A bit for each of the last FAILURE_WINDOW requests, set if the request failed
+		private int outcomes;
+		private int outcomeCount;
 
-		Server(URI address) {
+		private Server(URI address, ServerList serverList) {
 			this.address = address;
+			this.serverList = serverList;
 		}
 
 		public URI getAddress() {
 			return address;
 		}
 
+		public State getState() {
+			return state;
+		}
+
+		boolean isAvailable() {
+			return state != State.OPEN;
+		}
+
+		/**
+		 * Opens the circuit breaker, a server that can't be connected to can't serve any requests.
+		 */
 		public void connectionFailed() {
-			failTime = System.currentTimeMillis();
+			synchronized (this) {
+				if (!setState(State.OPEN)) {
+					return;
+				}
+			}
+			stateChanged(State.OPEN);
+		}
+
+		/**
+		 * Records that a request was sent to the server.
+		 */
+		public void requestStarted() {
+			pendingRequests.incrementAndGet();
+		}
+
+		/**
+		 * Records that a response was received for a request started at {@code startTime}.
+		 *
+		 * @param startTime the {@link System#nanoTime()} at which the request was sent.
+		 * @param serverError {@code true} if the response was a server error, which counts as a failed request.
+		 */
+		public void responseReceived(long startTime, boolean serverError) {
+			recordLatency(startTime);
+			recordOutcome(serverError);
+		}
+
+		/**
+		 * Records that a request started at {@code startTime} got no response in time.
+		 */
+		public void requestTimedOut(long startTime) {
+			recordLatency(startTime);
+			recordOutcome(true);
+		}
+
+		/**
+		 * Records that a request ended without a response, the connection failed for example.
+		 */
+		public void requestFailed() {
+			pendingRequests.decrementAndGet();
+			recordOutcome(true);
+		}
+
+		/**
+		 * Records that a request was withdrawn before its response arrived through no fault of the server, so that it
+		 * can be sent again.
+		 */
+		public void requestAbandoned() {
+			pendingRequests.decrementAndGet();
+		}
+
+		/**
+		 * Readmits the server into the rotation on trial after a successful probe.
+		 */
+		public void probeSucceeded() {
+			synchronized (this) {
+				if (state != State.OPEN || !setState(State.HALF_OPEN)) {
+					return;
+				}
+			}
+			stateChanged(State.HALF_OPEN);
+		}
+
+		/**
+		 * Keeps the server out of the rotation after a failed probe and backs off the next probe.
+		 */
+		public synchronized void probeFailed() {
+			probeDelay = Math.min(probeDelay * 2, MAX_FAILURE_BACKOFF_TIME);
+		}
+
+		/**
+		 * How long to wait before probing the server, in milliseconds. The delay doubles for every failed probe.
+		 */
+		public synchronized long getProbeDelay() {
+			return probeDelay;
+		}
+
+		private void recordLatency(long startTime) {
+			pendingRequests.decrementAndGet();
+			final long now = System.nanoTime();
+			final long sample = now - startTime;
+			synchronized (this) {
+				if (sample > latency) {
+					// Jump straight to a slow response so that a struggling server is backed off quickly
+					latency = sample;
+				} else {
+					final double weight = Math.exp(-(now - latencyTime) / DECAY_TIME);
+					latency = latency * weight + sample * (1 - weight);
+				}
+				latencyTime = now;
+			}
+		}
+
+		private void recordOutcome(boolean failed) {
+			final State newState;
+			synchronized (this) {
+				switch (state) {
+					case OPEN:
+						// Requests that were in flight when the breaker opened say nothing new
+						return;
+					case HALF_OPEN:
+						newState = failed ? State.OPEN : State.CLOSED;
+						break;
+					default:
+						outcomes = (outcomes << 1) | (failed ? 1 : 0);
+						outcomeCount = Math.min(outcomeCount + 1, FAILURE_WINDOW);
+						final int failures = Integer.bitCount(outcomeCount == FAILURE_WINDOW ? outcomes : outcomes & ((1 << outcomeCount) - 1));
+						if (outcomeCount < MIN_FAILURE_SAMPLES || failures * 2 < outcomeCount) {
+							return;
+						}
+						newState = State.OPEN;
+				}
+				if (!setState(newState)) {
+					return;
+				}
+			}
+			stateChanged(newState);
+		}
+
+		/**
+		 * Moves the circuit breaker to a new state, must be called while holding the lock.
+		 *
+		 * @return {@code true} if the state changed and the server list needs to know about it.
+		 */
+		private boolean setState(State newState) {
+			if (state == newState) {
+				return false;
+			}
+			state = newState;
+			outcomes = 0;
+			outcomeCount = 0;
+			if (newState == State.CLOSED) {
+				probeDelay = DEFAULT_FAILURE_BACKOFF_TIME;
+			}
+			return true;
+		}
+
+		private void stateChanged(State newState) {
+			serverList.stateChanged(this, newState);
+		}
+
+		/**
+		 * The expected cost of sending another request to the server. The response time average decays while no
+		 * responses arrive so that a server that was slow for a while eventually gets tried again. This runs twice for
+		 * every request so it takes no lock, and decays hyperbolically rather than calling {@link Math#exp(double)},
+		 * which is close enough for comparing servers.
+		 */
+		double cost(long now) {
+			final double decayedLatency = latency / (1 + Math.max(0, now - latencyTime) / DECAY_TIME);
+			return decayedLatency * (pendingRequests.get() + 1);
+		}
+
+		@Override
+		public String toString() {
+			return address.toString();
 		}
 	}
 
@@ -16,12 +16,31 @@
  */
 package etcd.client;
 
+import java.nio.ByteBuffer;
 import java.time.Duration;
 
 public interface SetRequest extends Request {
 
 	SetRequest value(String value);
 
+	/**
+	 * Sets a binary value. etcd only stores text, so the value is stored in the URL and filename safe Base64 alphabet
+	 * of RFC 4648, without padding, and can be read back with {@link Node#getValueBytes()}.
+	 *
+	 * @param value the value, which is copied when the request is sent.
+	 * @return this {@code SetRequest} instance.
+	 */
+	SetRequest value(byte[] value);
+
+	/**
+	 * Sets a binary value from the remaining bytes of the buffer, see {@link #value(byte[])}. The buffer's position
+	 * is not changed.
+	 *
+	 * @param value the value, which is copied when the request is sent.
+	 * @return this {@code SetRequest} instance.
+	 */
+	SetRequest value(ByteBuffer value);
+
 	SetRequest timeToLive(Duration duration);
 
 	SetRequest directory();
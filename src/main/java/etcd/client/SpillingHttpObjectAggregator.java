@@ -0,0 +1,211 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Aggregates responses like {@link io.netty.handler.codec.http.HttpObjectAggregator}, except that a body that grows
+ * past the spill threshold is written to a temporary file rather than held on the heap. Once the response is complete
+ * the file is memory-mapped and the mapping becomes the content of the aggregated response.
+ *
+ * <p>The file is deleted as soon as it has been mapped. The operating system keeps the data until the mapping goes
+ * away, which happens when the buffer is garbage collected. Where an open file can't be deleted it is deleted when the
+ * JVM exits instead.
+ *
+ * <p>Creating the file and writing to it are blocking calls made on the event loop thread, so a slow disk stalls every
+ * channel that thread serves until the write returns. Handing them to another thread would mean buffering the body on
+ * the heap while it waits to be written, which is what spilling avoids, so spill to a local disk.
+ */
+class SpillingHttpObjectAggregator extends MessageToMessageDecoder<HttpObject> {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SpillingHttpObjectAggregator.class);
+
+	private final int maxContentLength;
+	private final int spillThreshold;
+	private final Path directory;
+
+	private HttpResponse response;
+	private CompositeByteBuf content;
+	private Path file;
+	private FileChannel fileChannel;
+	private long contentLength;
+
+	/**
+	 * @param maxContentLength the largest body that will be accepted, in bytes.
+	 * @param spillThreshold bodies larger than this many bytes are written to disk.
+	 * @param directory where to create the temporary files, or {@code null} for the default temporary directory.
+	 */
+	SpillingHttpObjectAggregator(int maxContentLength, int spillThreshold, Path directory) {
+		if (maxContentLength < 1) {
+			throw new IllegalArgumentException("maxContentLength must be at least 1");
+		}
+		if (spillThreshold < 0) {
+			throw new IllegalArgumentException("spillThreshold can not be negative");
+		}
+		this.maxContentLength = maxContentLength;
+		this.spillThreshold = spillThreshold;
+		this.directory = directory;
+	}
+
+	/**
+	 * Indicates if the body of a response was spilled to disk, in which case its content is a memory-mapped file that
+	 * should be read in place rather than copied onto the heap.
+	 */
+	static boolean isSpilled(FullHttpResponse response) {
+		return response instanceof SpilledHttpResponse;
+	}
+
+	@Override
+	protected void decode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out) throws Exception {
+		if (msg instanceof HttpResponse) {
+			reset();
+			if (msg instanceof FullHttpResponse) {
+				out.add(((FullHttpResponse) msg).retain());
+				return;
+			}
+			response = (HttpResponse) msg;
+			content = ctx.alloc().compositeBuffer();
+		}
+		if (msg instanceof HttpContent && response != null) {
+			final ByteBuf chunk = ((HttpContent) msg).content();
+			contentLength += chunk.readableBytes();
+			if (contentLength > maxContentLength) {
+				reset();
+				throw new TooLongFrameException("HTTP content length exceeded " + maxContentLength + " bytes.");
+			}
+			if (fileChannel == null && contentLength > spillThreshold) {
+				spill();
+			}
+			if (fileChannel == null) {
+				if (chunk.isReadable()) {
+					content.addComponent(chunk.retain());
+					content.writerIndex(content.writerIndex() + chunk.readableBytes());
+				}
+			} else {
+				write(chunk);
+			}
+			if (msg instanceof LastHttpContent) {
+				final FullHttpResponse aggregated = fileChannel == null
+						? new DefaultFullHttpResponse(response.getProtocolVersion(), response.getStatus(), content)
+						: new SpilledHttpResponse(response, map());
+				content = null;
+				aggregated.headers().set(response.headers());
+				aggregated.headers().set(((LastHttpContent) msg).trailingHeaders());
+				HttpHeaders.setContentLength(aggregated, aggregated.content().readableBytes());
+				reset();
+				out.add(aggregated);
+			}
+		}
+	}
+
+	/**
+	 * Moves what has been received so far to a new temporary file, the rest of the body is appended to it.
+	 */
+	private void spill() throws IOException {
+		file = directory == null ? Files.createTempFile("etcd-response", ".json") : Files.createTempFile(directory, "etcd-response", ".json");
+		fileChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		write(content);
+		content.release();
+		content = null;
+	}
+
+	private void write(ByteBuf chunk) throws IOException {
+		int index = chunk.readerIndex();
+		final int end = chunk.writerIndex();
+		while (index < end) {
+			index += chunk.getBytes(index, fileChannel, end - index);
+		}
+	}
+
+	private ByteBuf map() throws IOException {
+		final MappedByteBuffer mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+		return Unpooled.wrappedBuffer(mapped);
+	}
+
+	/**
+	 * Discards the response being aggregated, and the file it was being spilled to.
+	 */
+	private void reset() {
+		response = null;
+		contentLength = 0;
+		if (content != null) {
+			content.release();
+			content = null;
+		}
+		if (fileChannel != null) {
+			try {
+				fileChannel.close();
+			} catch (IOException e) {
+				LOGGER.warn("Unable to close {}", file, e);
+			}
+			fileChannel = null;
+		}
+		if (file != null) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				// Most likely still mapped on a platform that doesn't allow deleting mapped files
+				file.toFile().deleteOnExit();
+			}
+			file = null;
+		}
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		try {
+			super.channelInactive(ctx);
+		} finally {
+			reset();
+		}
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		super.handlerRemoved(ctx);
+		reset();
+	}
+
+	private static class SpilledHttpResponse extends DefaultFullHttpResponse {
+		private SpilledHttpResponse(HttpResponse response, ByteBuf content) {
+			super(response.getProtocolVersion(), response.getStatus(), content);
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Subscribers to keys, and to everything below keys, stored by path segment so that the subscribers a change
+ * concerns are found by walking its key once, however many subscribers there are.
+ *
+ * <p>Subscribers are added and removed while holding the trie's lock and found without it, so changes can be routed
+ * from an I/O thread without waiting for subscribers coming and going on other threads.
+ */
+final class SubscriptionTrie<T> {
+
+	private final Node<T> root = new Node<>(null, "");
+
+	/**
+	 * @param key the key to subscribe to.
+	 * @param recursive {@code true} to subscribe to every key below {@code key} as well.
+	 * @param subscriber the subscriber to add.
+	 */
+	synchronized void add(String key, boolean recursive, T subscriber) {
+		Node<T> node = root;
+		for (String segment : key.split("/")) {
+			if (!segment.isEmpty()) {
+				Node<T> child = node.children.get(segment);
+				if (child == null) {
+					child = new Node<>(node, segment);
+					node.children.put(segment, child);
+				}
+				node = child;
+			}
+		}
+		(recursive ? node.recursive : node.exact).add(subscriber);
+	}
+
+	/**
+	 * Removes a subscriber added with the same key and {@code recursive} flag, along with any part of the trie that no
+	 * longer leads to a subscriber.
+	 */
+	synchronized void remove(String key, boolean recursive, T subscriber) {
+		Node<T> node = find(key);
+		if (node == null || !(recursive ? node.recursive : node.exact).remove(subscriber)) {
+			return;
+		}
+		while (node.parent != null && node.isEmpty()) {
+			node.parent.children.remove(node.segment);
+			node = node.parent;
+		}
+	}
+
+	/**
+	 * Passes every subscriber a change to {@code key} concerns to {@code action}: the subscribers to the key itself
+	 * and to everything below any of the directories it is in.
+	 *
+	 * @param key the key that changed.
+	 * @param descendants {@code true} if every key below {@code key} changed too, as they do when a directory is
+	 *                    deleted, in which case their subscribers are included.
+	 * @param action invoked once with each subscriber.
+	 */
+	void forEachSubscriber(String key, boolean descendants, Consumer<? super T> action) {
+		Node<T> node = root;
+		int start = 0;
+		while (node != null) {
+			node.recursive.forEach(action);
+			while (start < key.length() && key.charAt(start) == '/') {
+				start++;
+			}
+			if (start == key.length()) {
+				break;
+			}
+			int end = key.indexOf('/', start);
+			if (end < 0) {
+				end = key.length();
+			}
+			node = node.children.get(key.substring(start, end));
+			start = end;
+		}
+		if (node != null) {
+			node.exact.forEach(action);
+			if (descendants) {
+				node.children.values().forEach(child -> child.forEachSubscriber(action));
+			}
+		}
+	}
+
+	private Node<T> find(String key) {
+		Node<T> node = root;
+		for (String segment : key.split("/")) {
+			if (!segment.isEmpty()) {
+				node = node.children.get(segment);
+				if (node == null) {
+					return null;
+				}
+			}
+		}
+		return node;
+	}
+
+	private static final class Node<T> {
+		private final Node<T> parent;
+		private final String segment;
+		private final Map<String, Node<T>> children = new ConcurrentHashMap<>(4);
+		private final List<T> exact = new CopyOnWriteArrayList<>();
+		private final List<T> recursive = new CopyOnWriteArrayList<>();
+
+		private Node(Node<T> parent, String segment) {
+			this.parent = parent;
+			this.segment = segment;
+		}
+
+		private boolean isEmpty() {
+			return children.isEmpty() && exact.isEmpty() && recursive.isEmpty();
+		}
+
+		private void forEachSubscriber(Consumer<? super T> action) {
+			exact.forEach(action);
+			recursive.forEach(action);
+			children.values().forEach(child -> child.forEachSubscriber(action));
+		}
+	}
+}
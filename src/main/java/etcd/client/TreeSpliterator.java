@@ -0,0 +1,145 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * Walks a node tree depth first, returning each node before its children, see {@link Result#streamAllNodes()}.
+ *
+ * <p>The walk keeps an explicit stack of the lists of children it is part way through, innermost on top, so deep trees
+ * don't use up the thread's stack and nothing is copied up front. Everything left to walk is the remainder of those
+ * lists in stack order, which makes splitting easy: the remainder of the outermost list that has more than one node
+ * left is cut in half, and the first half goes to the new spliterator along with every list above it.
+ */
+final class TreeSpliterator implements Spliterator<Node> {
+
+	private static final int CHARACTERISTICS = ORDERED | NONNULL | IMMUTABLE;
+
+	// The lists of children being walked, innermost first
+	private final Deque<Level> levels;
+	private long estimatedSize;
+
+	TreeSpliterator(Node root) {
+		this.levels = new ArrayDeque<>();
+		if (root != null) {
+			levels.push(new Level(Collections.singletonList(root), 0, 1));
+		}
+		// There is no telling how big the tree is without walking it
+		this.estimatedSize = root == null ? 0 : Long.MAX_VALUE;
+	}
+
+	private TreeSpliterator(Deque<Level> levels, long estimatedSize) {
+		this.levels = levels;
+		this.estimatedSize = estimatedSize;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super Node> action) {
+		final Level level = levels.peek();
+		if (level == null) {
+			return false;
+		}
+		final Node node = level.nodes.get(level.next++);
+		if (level.next == level.end) {
+			levels.pop();
+		}
+		final List<? extends Node> children = node.getNodes();
+		if (!children.isEmpty()) {
+			levels.push(new Level(children, 0, children.size()));
+		}
+		action.accept(node);
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super Node> action) {
+		while (tryAdvance(action)) {
+			// Keep going
+		}
+	}
+
+	@Override
+	public Spliterator<Node> trySplit() {
+		final Level top = levels.peek();
+		if (top == null) {
+			return null;
+		}
+		// Find the outermost list worth splitting
+		Level split = null;
+		final Iterator<Level> outermostFirst = levels.descendingIterator();
+		while (split == null && outermostFirst.hasNext()) {
+			final Level level = outermostFirst.next();
+			if (level.end - level.next > 1) {
+				split = level;
+			}
+		}
+		if (split == null) {
+			// Every list is down to its last node, hand out the next node on its own and keep its children
+			final Node node = top.nodes.get(top.next);
+			final List<? extends Node> children = node.getNodes();
+			if (children.isEmpty()) {
+				return null;
+			}
+			levels.pop();
+			levels.push(new Level(children, 0, children.size()));
+			return Spliterators.spliterator(new Object[]{node}, CHARACTERISTICS);
+		}
+		// Everything inside the list being split is walked before it, so it all goes to the prefix
+		final Deque<Level> prefix = new ArrayDeque<>();
+		while (levels.peek() != split) {
+			prefix.addLast(levels.pop());
+		}
+		final int middle = split.next + (split.end - split.next) / 2;
+		prefix.addLast(new Level(split.nodes, split.next, middle));
+		split.next = middle;
+		estimatedSize >>>= 1;
+		return new TreeSpliterator(prefix, estimatedSize);
+	}
+
+	@Override
+	public long estimateSize() {
+		return levels.isEmpty() ? 0 : estimatedSize;
+	}
+
+	@Override
+	public int characteristics() {
+		return CHARACTERISTICS;
+	}
+
+	/**
+	 * The part of a list of children that hasn't been walked yet.
+	 */
+	private static final class Level {
+		private final List<? extends Node> nodes;
+		private int next;
+		private final int end;
+
+		private Level(List<? extends Node> nodes, int next, int end) {
+			this.nodes = nodes;
+			this.next = next;
+			this.end = end;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import java.util.function.Consumer;
+
+/**
+ * Shares a single recursive watch of a directory between any number of subscribers to the keys in it, see
+ * {@link EtcdClient#watchHub(String)}.
+ *
+ * <p>The directory is watched while it has at least one subscriber. Each change is passed to the subscribers of the
+ * changed key and to the recursive subscribers of the directories it is in, so subscribing to more keys costs nothing
+ * on the cluster. Subscribers are invoked on an I/O thread and the next poll waits for them, so they must not block.
+ *
+ * <p>The hub's watch {@link WatchRequest#resynchronize() resynchronizes}. When the hub starts watching it streams a
+ * snapshot of the directory, and from then on it keeps track of the keys in it. If etcd ends the watch, most likely
+ * because the hub fell further behind than etcd's history goes back, the hub loads the directory again and passes
+ * subscribers the difference as changes of its own making: keys created since are created, other keys modified since
+ * are set and keys that disappeared are deleted, none of them with a previous node. It then watches on from the index
+ * of the snapshot. Changes that were made and undone in the meantime are lost.
+ *
+ * <p>If the directory can't be loaded the failure listeners are told, and the hub tries again after a random delay
+ * that doubles with each failure in a row, up to a minute. The hub doesn't watch until it has loaded the directory.
+ */
+public interface WatchHub {
+
+	/**
+	 * Returns the directory being watched.
+	 *
+	 * @return the key of the directory being watched.
+	 */
+	String getDirectory();
+
+	/**
+	 * Returns the index subscribers have been brought up to, or {@code 0} if the hub hasn't started watching.
+	 *
+	 * @return the index of the last change received.
+	 */
+	long getCurrentIndex();
+
+	/**
+	 * Subscribes to changes to a key.
+	 *
+	 * @param key the key to subscribe to, which must be the watched directory or a key below it.
+	 * @param listener invoked with each change to the key.
+	 * @return the subscription, which must be closed to stop receiving changes.
+	 */
+	Subscription subscribe(String key, Consumer<? super Result> listener);
+
+	/**
+	 * Subscribes to changes to a key and to every key below it.
+	 *
+	 * @param key the key to subscribe to, which must be the watched directory or a key below it.
+	 * @param listener invoked with each change to the key or below it.
+	 * @return the subscription, which must be closed to stop receiving changes.
+	 */
+	Subscription subscribeRecursive(String key, Consumer<? super Result> listener);
+
+	/**
+	 * Adds a listener that is told each time the hub fails to load its directory, to start watching or to catch up.
+	 * Listeners are invoked on the thread that loads the directory, and must not block.
+	 *
+	 * @param listener invoked with the reason the directory couldn't be loaded.
+	 * @return this hub.
+	 */
+	WatchHub addFailureListener(Consumer<? super EtcdException> listener);
+
+	/**
+	 * A subscription to changes from a {@link WatchHub}.
+	 */
+	interface Subscription extends AutoCloseable {
+
+		/**
+		 * Stops passing changes to the subscriber. The hub stops watching once its last subscription is closed.
+		 */
+		@Override
+		void close();
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the changes received by a watch to any number of subscribers, see
+ * {@link WatchRequest#publisher(int, OverflowPolicy)}.
+ *
+ * <p>The watch asks {@link #hasDemand()} before each poll and only polls while a subscriber has requested more changes
+ * than it has buffered, and the publisher runs the watch's resume callback whenever a subscriber requests more. Changes
+ * are handed to subscribers on the thread that offers them, the I/O thread the poll completed on, unless the subscriber
+ * hasn't requested them yet. Each subscriber then buffers them, up to the buffer size, after which the overflow policy
+ * applies.
+ */
+final class WatchPublisher implements Publisher<Result> {
+
+	private final int bufferSize;
+	private final OverflowPolicy overflowPolicy;
+	private final Runnable resume;
+	private final List<WatchSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+	private volatile boolean terminated;
+	private volatile Throwable failure;
+
+	/**
+	 * @param bufferSize how many changes each subscriber buffers ahead of its demand.
+	 * @param overflowPolicy what happens to changes that don't fit in a subscriber's buffer.
+	 * @param resume invoked when a subscriber requests more changes, to resume polling.
+	 */
+	WatchPublisher(int bufferSize, OverflowPolicy overflowPolicy, Runnable resume) {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("bufferSize must be at least 1");
+		}
+		this.bufferSize = bufferSize;
+		this.overflowPolicy = Objects.requireNonNull(overflowPolicy, "overflowPolicy can not be null");
+		this.resume = resume;
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super Result> subscriber) {
+		Objects.requireNonNull(subscriber, "subscriber can not be null");
+		final WatchSubscription subscription = new WatchSubscription(subscriber);
+		// Nothing else can signal the subscriber before onSubscribe returns, see rule 1.9
+		subscriber.onSubscribe(subscription);
+		if (!subscription.cancelled) {
+			subscriptions.add(subscription);
+			if (subscription.cancelled) {
+				// Cancelled while it was being added
+				subscriptions.remove(subscription);
+			} else if (subscription.hasDemand()) {
+				// Requested from onSubscribe, while the watch couldn't see the subscription yet
+				resume.run();
+			}
+		}
+		if (terminated) {
+			// The publisher may have ended before the subscription was added
+			subscription.drain();
+		}
+	}
+
+	/**
+	 * Indicates if any subscriber has requested changes it hasn't got yet.
+	 */
+	boolean hasDemand() {
+		for (WatchSubscription subscription : subscriptions) {
+			if (subscription.hasDemand()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Passes a change to every subscriber.
+	 */
+	void offer(Result result) {
+		for (WatchSubscription subscription : subscriptions) {
+			subscription.offer(result);
+		}
+	}
+
+	/**
+	 * Ends every subscription once its buffer has been drained.
+	 *
+	 * @param cause why the watch ended, or {@code null} if it was closed.
+	 */
+	void terminate(Throwable cause) {
+		failure = cause;
+		terminated = true;
+		for (WatchSubscription subscription : subscriptions) {
+			subscription.drain();
+		}
+	}
+
+	private final class WatchSubscription implements Subscription {
+		private final Subscriber<? super Result> subscriber;
+		// Guarded by itself
+		private final ArrayDeque<Result> buffer = new ArrayDeque<>();
+		private final AtomicLong requested = new AtomicLong();
+		// Counts calls to drain() so only one runs at a time and none is missed
+		private final AtomicInteger drains = new AtomicInteger();
+
+		private volatile boolean cancelled;
+		// Set when the subscription must end with an error straight away
+		private volatile Throwable error;
+
+		private WatchSubscription(Subscriber<? super Result> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				fail(new IllegalArgumentException("Non-positive request of " + n + " changes, see rule 3.9"));
+				return;
+			}
+			long current;
+			long updated;
+			do {
+				current = requested.get();
+				updated = current + n < 0 ? Long.MAX_VALUE : current + n;
+			} while (!requested.compareAndSet(current, updated));
+			drain();
+			resume.run();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			subscriptions.remove(this);
+			synchronized (buffer) {
+				buffer.clear();
+			}
+		}
+
+		private boolean hasDemand() {
+			synchronized (buffer) {
+				return !cancelled && requested.get() > buffer.size();
+			}
+		}
+
+		private void offer(Result result) {
+			synchronized (buffer) {
+				if (buffer.size() >= bufferSize) {
+					switch (overflowPolicy) {
+						case DROP_OLDEST:
+							buffer.poll();
+							break;
+						case CONFLATE:
+							if (!removeSameKey(result)) {
+								buffer.poll();
+							}
+							break;
+						case ERROR:
+							error = new EtcdException("Subscriber fell more than " + bufferSize + " changes behind");
+							break;
+					}
+				}
+				if (error == null) {
+					buffer.add(result);
+				}
+			}
+			drain();
+		}
+
+		private boolean removeSameKey(Result result) {
+			final String key = result.getNode() == null ? null : result.getNode().getKey();
+			if (key != null) {
+				for (Iterator<Result> i = buffer.iterator(); i.hasNext(); ) {
+					final Node node = i.next().getNode();
+					if (node != null && key.equals(node.getKey())) {
+						i.remove();
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		private void fail(Throwable error) {
+			this.error = error;
+			drain();
+		}
+
+		/**
+		 * Passes the subscriber as many buffered changes as it has requested, followed by the end of the publisher
+		 * if there are none left.
+		 */
+		private void drain() {
+			if (drains.getAndIncrement() != 0) {
+				// The thread draining will go round again
+				return;
+			}
+			int missed = 1;
+			do {
+				if (cancelled) {
+					return;
+				}
+				if (error != null) {
+					cancel();
+					subscriber.onError(error);
+					return;
+				}
+				final long demand = requested.get();
+				long delivered = 0;
+				while (delivered != demand && !cancelled) {
+					final Result next;
+					synchronized (buffer) {
+						next = buffer.poll();
+					}
+					if (next == null) {
+						break;
+					}
+					try {
+						subscriber.onNext(next);
+					} catch (RuntimeException e) {
+						// Breaks rule 2.13, end the subscription rather than the watch
+						cancel();
+						subscriber.onError(e);
+						return;
+					}
+					delivered++;
+				}
+				if (delivered != 0 && demand != Long.MAX_VALUE) {
+					requested.addAndGet(-delivered);
+				}
+				if (terminated && !cancelled) {
+					final boolean empty;
+					synchronized (buffer) {
+						empty = buffer.isEmpty();
+					}
+					if (empty) {
+						cancel();
+						if (failure == null) {
+							subscriber.onComplete();
+						} else {
+							subscriber.onError(failure);
+						}
+						return;
+					}
+				}
+				missed = drains.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+}
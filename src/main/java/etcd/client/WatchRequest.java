@@ -16,14 +16,139 @@
  */
 package etcd.client;
 
+import org.reactivestreams.Publisher;
+
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
+/**
+ * Watches a key, or a directory with {@link #recursive()}, for changes until it is closed.
+ *
+ * <p>The watch is a chain of long polls. Each poll waits for the change after the last one received, so no change is
+ * missed between polls, and polls are sent over the client's keep-alive long poll connections. Changes are delivered in
+ * the order they happened to every listener and to the {@link #stream()}, if there is one. The stream buffers a limited
+ * number of changes. Once the buffer is full polling stops until the stream is read again, rather than dropping changes.
+ *
+ * <p>Polls that fail to reach the cluster are retried after a short delay. An error returned by etcd, for example when
+ * the change after the current index has dropped out of etcd's history, ends the watch, unless it was made to
+ * {@link #resynchronize()}. Closing the client closes every watch that has been started.
+ */
 public interface WatchRequest extends GetRequest, AutoCloseable {
 
-	int getCurrentIndex();
+	/**
+	 * Returns the modified index of the last change received, or of the snapshot the watch last caught up from, or
+	 * {@code 0} if neither has been received yet.
+	 *
+	 * @return the index of the last change received.
+	 */
+	long getCurrentIndex();
+
+	/**
+	 * Adds a listener that is invoked with every change, in order, once the watch is started. Listeners are invoked on
+	 * an I/O thread and the next poll waits for them, so they must not block.
+	 *
+	 * @param listener the listener to invoke with each change.
+	 * @return this {@code WatchRequest} instance.
+	 */
+	WatchRequest addListener(Consumer<? super Result> listener);
+
+	/**
+	 * Makes the watch catch up from a snapshot of the key when etcd ends it, rather than end. etcd ends a watch with an
+	 * error, usually 401, once the change it waits for has dropped out of etcd's history of the last thousand events.
+	 * The watch then reads the key again and passes on the difference from what it has told of, as changes of its own
+	 * making: keys created since are created, other keys modified since are set and keys that are gone are deleted,
+	 * none of them with a previous node. It then watches on from the index of the snapshot. Changes that were made and
+	 * undone in the meantime are lost.
+	 *
+	 * <p>To tell which keys are gone the watch keeps the names of the keys it covers, though not their values. It reads
+	 * the key when it starts, before the first poll, to learn them. For a {@link #recursive()} watch of a directory
+	 * each of these reads is a recursive read of the whole directory. Snapshots are streamed, so a directory of any size
+	 * can be read. They are loaded on a thread the client's watches share, after a random delay of up to a second when
+	 * catching up, so that watches falling behind together don't all read at once. A snapshot that fails to load is
+	 * tried again after a delay that doubles with each failure in a row, up to a minute.
+	 *
+	 * @return this {@code WatchRequest} instance.
+	 * @throws IllegalStateException if the watch has already started.
+	 */
+	WatchRequest resynchronize();
 
+	/**
+	 * Starts watching for changes, if the watch isn't started already.
+	 *
+	 * @return this {@code WatchRequest} instance.
+	 */
+	WatchRequest start();
+
+	/**
+	 * Starts watching for changes, if the watch isn't started already, and returns the changes as they happen. The
+	 * stream blocks waiting for the next change and ends once the watch is closed. Closing the stream closes the
+	 * watch.
+	 *
+	 * @return the changes to the watched key.
+	 * @throws EtcdException from the stream's terminal operation if the watch ends because of an error.
+	 */
 	Stream<Result> stream();
 
+	/**
+	 * Starts watching for changes, if the watch isn't started already, and publishes the changes to any number of
+	 * Reactive Streams subscribers.
+	 *
+	 * <p>From then on the watch only polls while a subscriber has requested more changes than it holds, so a single
+	 * subscriber sets the pace of the watch and never misses a change. When there are several subscribers, the watch
+	 * goes at the pace of the fastest one. Changes are passed to each subscriber on the I/O thread that received them,
+	 * as soon as it has requested them. Until then they are held in the subscriber's buffer, and changes that don't fit
+	 * are dealt with according to the overflow policy. Subscribers must not block.
+	 *
+	 * <p>Subscribers complete once the watch is closed, or get the {@link EtcdException} that ended the watch.
+	 *
+	 * @param bufferSize how many changes each subscriber can hold ahead of its demand.
+	 * @param overflowPolicy what to do with changes that don't fit in a subscriber's buffer.
+	 * @return the publisher of the changes to the watched key.
+	 */
+	Publisher<Result> publisher(int bufferSize, OverflowPolicy overflowPolicy);
+
+	/**
+	 * Starts watching for changes, if the watch isn't started already, and keeps only the latest change to each key
+	 * until the changes are drained. The watch doesn't wait for the changes to be drained, and no more than one change
+	 * per key is held however far behind the consumer falls. Values are only decoded for the changes that are drained.
+	 *
+	 * <p>When the changes are only conflated, with no listener, stream or publisher, the watch skips ahead rather than
+	 * poll for every change once it falls more than a hundred indexes behind etcd, or behind etcd's history. It then
+	 * reads the current state of the key and passes on the keys modified since as created or set, and the keys it has
+	 * told of that are gone as deleted, none of them with a previous node. However fast the keys change, the watch
+	 * then costs about one read per round trip.
+	 *
+	 * @return the conflated changes to the watched key.
+	 */
+	ConflatedChanges conflate();
+
+	@Override
+	WatchRequest consistent();
+
+	@Override
+	WatchRequest recursive();
+
+	@Override
+	WatchRequest sorted();
+
+	@Override
+	WatchRequest compact();
+
+	@Override
+	WatchRequest waitForChange();
+
+	/**
+	 * Sets the index of the first change to watch for, changes since then are replayed from etcd's history.
+	 *
+	 * @param index the index to start watching from.
+	 * @return this {@code WatchRequest} instance.
+	 */
+	@Override
+	WatchRequest waitIndex(long index);
+
+	/**
+	 * Stops watching, abandoning the poll in progress. The stream ends once it has returned the changes it holds.
+	 */
 	@Override
 	void close();
 }
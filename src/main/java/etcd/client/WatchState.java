@@ -0,0 +1,324 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The keys in a watched directory, kept up to date from the changes received so that a watch that fell behind can
+ * catch up from a snapshot of the directory, see {@link #resync(Snapshot, EtcdMeta)}.
+ *
+ * <p>Only what the difference needs is kept: the index the state is current at, which tells the keys that changed
+ * since apart from those that didn't, and the names of the keys, which are needed to report the keys that are gone.
+ * The keys of the last snapshot are held in a sorted array, and only the keys added and removed since then go in sets.
+ * Directories aren't tracked, only the keys in them.
+ */
+final class WatchState {
+
+	private static final String[] NO_KEYS = new String[0];
+
+	// The keys of the last snapshot, sorted
+	private String[] snapshotKeys = NO_KEYS;
+	// The keys created and removed since the last snapshot
+	private final Set<String> added = new HashSet<>();
+	private final Set<String> removed = new HashSet<>();
+	private long index;
+	private boolean seeded;
+
+	/**
+	 * Forgets every key, the next snapshot seeds the state again.
+	 */
+	void clear() {
+		snapshotKeys = NO_KEYS;
+		added.clear();
+		removed.clear();
+		index = 0;
+		seeded = false;
+	}
+
+	/**
+	 * Seeds the state without a snapshot, knowing of no key, for a consumer that only needs to hear of the keys it has
+	 * been told of.
+	 *
+	 * @param index the index the state is current at.
+	 */
+	void seed(long index) {
+		clear();
+		this.index = index;
+		seeded = true;
+	}
+
+	/**
+	 * Indicates if the state has been seeded, by a snapshot or by {@link #seed(long)}, so that a resync reports changes.
+	 */
+	boolean isSeeded() {
+		return seeded;
+	}
+
+	/**
+	 * Applies a change received from the watch.
+	 */
+	void update(Result result) {
+		final Node node = result.getNode();
+		if (node == null || node.getKey() == null) {
+			return;
+		}
+		index = Math.max(index, node.getModifiedIndex().orElse(result.getResponseMeta().getEtcdIndex()));
+		final String key = node.getKey();
+		switch (result.getAction()) {
+			case DELETE:
+			case EXPIRE:
+			case COMPAREANDDELETE:
+				remove(key);
+				if (node.isDirectory()) {
+					removeKeysIn(key.endsWith("/") ? key : key + "/");
+				}
+				break;
+			default:
+				if (!node.isDirectory()) {
+					removed.remove(key);
+					if (Arrays.binarySearch(snapshotKeys, key) < 0) {
+						added.add(key);
+					}
+				}
+		}
+		if (added.size() + removed.size() > snapshotKeys.length / 4 + 64) {
+			// Fold the changes into the array before the sets cost more than it does
+			snapshotKeys = knownKeys();
+			added.clear();
+			removed.clear();
+		}
+	}
+
+	private void remove(String key) {
+		if (!added.remove(key) && Arrays.binarySearch(snapshotKeys, key) >= 0) {
+			removed.add(key);
+		}
+	}
+
+	private void removeKeysIn(String prefix) {
+		added.removeIf(key -> key.startsWith(prefix));
+		int i = Arrays.binarySearch(snapshotKeys, prefix);
+		for (i = i < 0 ? -i - 1 : i; i < snapshotKeys.length && snapshotKeys[i].startsWith(prefix); i++) {
+			removed.add(snapshotKeys[i]);
+		}
+	}
+
+	/**
+	 * Returns the keys the state knows about, sorted.
+	 */
+	private String[] knownKeys() {
+		final List<String> keys = new ArrayList<>(snapshotKeys.length + added.size());
+		for (String key : snapshotKeys) {
+			if (!removed.contains(key)) {
+				keys.add(key);
+			}
+		}
+		keys.addAll(added);
+		final String[] sorted = keys.toArray(new String[keys.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Starts a snapshot of the directory, to be filled in as its nodes are read and passed to
+	 * {@link #resync(Snapshot, EtcdMeta)}.
+	 */
+	Snapshot newSnapshot() {
+		return new Snapshot(index);
+	}
+
+	/**
+	 * Replaces the state with a snapshot of the directory and returns the changes that make up the difference, in
+	 * the order of the keys in the snapshot followed by the keys that are gone. Keys created since the state's index
+	 * are reported as created, other keys modified since as set and keys that are gone as deleted at the snapshot's
+	 * index. The previous versions of the keys aren't known, so the changes have no previous node, and the node of a
+	 * deleted key has a created index of {@code 0}. Changes made and undone while the watch was behind can't be seen in
+	 * the snapshot and aren't reported.
+	 *
+	 * <p>The first snapshot after the state is created or cleared only seeds it, and no changes are reported.
+	 *
+	 * @param snapshot the keys in the watched directory, which has none if it doesn't exist.
+	 * @param meta the meta-data of the response the snapshot came from.
+	 * @return the changes since the state was last updated.
+	 */
+	List<Result> resync(Snapshot snapshot, EtcdMeta meta) {
+		final String[] keys = snapshot.keys.toArray(new String[snapshot.keys.size()]);
+		Arrays.sort(keys);
+		final List<Result> changes = new ArrayList<>();
+		if (seeded) {
+			for (Node node : snapshot.changed) {
+				// Changes the watch delivered while the snapshot was read are already known
+				if (node.getModifiedIndex().orElse(node.getCreatedIndex()) > index) {
+					changes.add(new Change(meta, node.getCreatedIndex() > index ? Action.CREATE : Action.SET, node));
+				}
+			}
+			for (String key : knownKeys()) {
+				if (Arrays.binarySearch(keys, key) < 0) {
+					changes.add(new Change(meta, Action.DELETE, new DeletedNode(key, meta.getEtcdIndex())));
+				}
+			}
+		}
+		snapshotKeys = keys;
+		added.clear();
+		removed.clear();
+		index = meta.getEtcdIndex();
+		seeded = true;
+		return changes;
+	}
+
+	/**
+	 * What a resync needs from a snapshot of the directory: the key of every node in it, and the nodes that changed
+	 * after the state's index. Nodes are added one at a time as they are read, so the snapshot never has to be held
+	 * as a tree.
+	 */
+	static final class Snapshot {
+		private final long index;
+		private final List<String> keys = new ArrayList<>();
+		private final List<Node> changed = new ArrayList<>();
+
+		private Snapshot(long index) {
+			this.index = index;
+		}
+
+		/**
+		 * Adds a node of the directory, directories are ignored.
+		 */
+		void add(Node node) {
+			if (node.isDirectory() || node.getKey() == null) {
+				return;
+			}
+			keys.add(node.getKey());
+			if (node.getModifiedIndex().orElse(node.getCreatedIndex()) > index) {
+				changed.add(node);
+			}
+		}
+	}
+
+	/**
+	 * A change made up from the difference between the state and a snapshot.
+	 */
+	private static final class Change implements Result {
+		private final EtcdMeta meta;
+		private final Action action;
+		private final Node node;
+
+		private Change(EtcdMeta meta, Action action, Node node) {
+			this.meta = meta;
+			this.action = action;
+			this.node = node;
+		}
+
+		@Override
+		public EtcdMeta getResponseMeta() {
+			return meta;
+		}
+
+		@Override
+		public Action getAction() {
+			return action;
+		}
+
+		@Override
+		public Node getNode() {
+			return node;
+		}
+
+		@Override
+		public Optional<Node> getPreviousNode() {
+			return Optional.empty();
+		}
+
+		@Override
+		public String toString() {
+			return "Change {" +
+					"meta = " + getResponseMeta() +
+					", action = " + getAction() +
+					", node = " + getNode() +
+					"}";
+		}
+	}
+
+	/**
+	 * A key that is gone from the directory, all the state knows about it is its name.
+	 */
+	private static final class DeletedNode implements Node {
+		private final String key;
+		private final long modifiedIndex;
+
+		private DeletedNode(String key, long modifiedIndex) {
+			this.key = key;
+			this.modifiedIndex = modifiedIndex;
+		}
+
+		@Override
+		public long getCreatedIndex() {
+			return 0;
+		}
+
+		@Override
+		public Optional<Long> getModifiedIndex() {
+			return Optional.of(modifiedIndex);
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public Optional<String> getValue() {
+			return Optional.empty();
+		}
+
+		@Override
+		public Optional<Instant> getExpiration() {
+			return Optional.empty();
+		}
+
+		@Override
+		public Optional<Duration> getTimetoLive() {
+			return Optional.empty();
+		}
+
+		@Override
+		public boolean isDirectory() {
+			return false;
+		}
+
+		@Override
+		public List<? extends Node> getNodes() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public String toString() {
+			return "DeletedNode{" +
+					"modifiedIndex=" + modifiedIndex +
+					", key='" + key + '\'' +
+					'}';
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class BinaryValueTest {
+
+	private FakeEtcdServer server;
+
+	@BeforeMethod
+	public void startServer() throws Exception {
+		server = new FakeEtcdServer();
+	}
+
+	@AfterMethod
+	public void stopServer() {
+		server.close();
+	}
+
+	private static byte[] allBytes() {
+		final byte[] bytes = new byte[256];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) i;
+		}
+		return bytes;
+	}
+
+	@Test
+	public void roundTrip() {
+		final byte[] value = allBytes();
+		try (EtcdClient client = server.clientBuilder().build()) {
+			final Node set = client.prepareSet("/bin").value(value).send().getNode();
+			assertEquals(set.getValue().get(), Base64.getUrlEncoder().withoutPadding().encodeToString(value));
+			assertEquals(set.getValueBytes().get(), value);
+			assertEquals(client.prepareGet("/bin").send().getNode().getValueBytes().get(), value);
+			assertEquals(client.prepareGet("/bin").compact().send().getNode().getValueBytes().get(), value);
+		}
+	}
+
+	@Test
+	public void emptyAndUnpaddedValues() {
+		try (EtcdClient client = server.clientBuilder().build()) {
+			for (int length = 0; length < 4; length++) {
+				final byte[] value = new byte[length];
+				client.prepareSet("/bin").value(value).send();
+				assertEquals(client.prepareGet("/bin").send().getNode().getValueBytes().get(), value);
+			}
+		}
+	}
+
+	@Test
+	public void bufferValue() {
+		final ByteBuffer value = ByteBuffer.wrap(allBytes());
+		value.position(200);
+		try (EtcdClient client = server.clientBuilder().build()) {
+			client.prepareSet("/bin").value(value).send();
+			assertEquals(value.position(), 200);
+			final ByteBuffer read = client.prepareGet("/bin").send().getNode().getValueBuffer().get();
+			assertTrue(read.isReadOnly());
+			assertEquals(read, value);
+		}
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void textValueIsNotBinary() {
+		server.set("/text", "not base64!");
+		try (EtcdClient client = server.clientBuilder().build()) {
+			client.prepareGet("/text").send().getNode().getValueBytes();
+		}
+	}
+
+	@Test
+	public void absentValue() {
+		server.set("/d/a", "1");
+		try (EtcdClient client = server.clientBuilder().build()) {
+			assertFalse(client.prepareGet("/d").send().getNode().getValueBytes().isPresent());
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import io.netty.buffer.Unpooled;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.RandomAccess;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class CompactTreeTest {
+
+	private static Result decodeCompact(String json) throws Exception {
+		return ResultDecoder.decodeCompactResult(Unpooled.wrappedBuffer(json.getBytes(StandardCharsets.UTF_8)), new EtcdMeta(10, 20, 1));
+	}
+
+	private static void assertSameTree(Node actual, Node expected) {
+		assertEquals(actual.getKey(), expected.getKey());
+		assertEquals(actual.getValue(), expected.getValue());
+		assertEquals(actual.getCreatedIndex(), expected.getCreatedIndex());
+		assertEquals(actual.getModifiedIndex(), expected.getModifiedIndex());
+		assertEquals(actual.getExpiration(), expected.getExpiration());
+		assertEquals(actual.getTimetoLive(), expected.getTimetoLive());
+		assertEquals(actual.isDirectory(), expected.isDirectory(), actual.getKey());
+		assertEquals(actual.getNodes().size(), expected.getNodes().size(), actual.getKey());
+		for (int i = 0; i < expected.getNodes().size(); i++) {
+			assertSameTree(actual.getNodes().get(i), expected.getNodes().get(i));
+		}
+	}
+
+	/**
+	 * Builds a directory {@code depth} levels deep with {@code width} values and a sub-directory at each level.
+	 */
+	private static String tree(String key, int depth, int width) {
+		final StringBuilder json = new StringBuilder("{\"key\":\"").append(key).append("\",\"dir\":true,\"nodes\":[");
+		for (int i = 0; i < width; i++) {
+			json.append("{\"key\":\"").append(key).append("/v").append(i).append("\",\"value\":\"").append(depth * 100 + i)
+					.append("\",\"modifiedIndex\":").append(depth * 100 + i + 1).append(",\"createdIndex\":").append(i + 1).append("},");
+		}
+		if (depth > 0) {
+			json.append(tree(key + "/d", depth - 1, width));
+		} else {
+			json.setLength(json.length() - 1);
+		}
+		return json.append("],\"modifiedIndex\":").append(depth + 1).append(",\"createdIndex\":1}").toString();
+	}
+
+	@Test
+	public void matchesLazyTree() throws Exception {
+		final Result compact = decodeCompact(ResultDecoderTest.TREE);
+		assertEquals(compact.getAction(), Action.GET);
+		assertSameTree(compact.getNode(), ResultDecoderTest.decode(ResultDecoderTest.TREE).getNode());
+	}
+
+	@Test
+	public void matchesLazyTreeBeyondInitialCapacity() throws Exception {
+		final String json = "{\"action\":\"get\",\"node\":" + tree("/t", 8, 5) + "}";
+		final Result compact = decodeCompact(json);
+		assertEquals(compact.streamAllNodes().count(), 9 * 6);
+		assertSameTree(compact.getNode(), ResultDecoderTest.decode(json).getNode());
+	}
+
+	@Test
+	public void decodesEveryField() throws Exception {
+		final String json = "{\"action\":\"get\",\"node\":{\"key\":\"/d\",\"dir\":true,\"nodes\":["
+				+ "{\"key\":\"/d/\\u00e9\",\"value\":\"say \\\"hi\\\"\",\"expiration\":\"2014-05-01T12:00:00.5Z\",\"ttl\":30,"
+				+ "\"modifiedIndex\":8,\"createdIndex\":7},{\"key\":\"/d/empty\",\"dir\":true}]}}";
+		final Node root = decodeCompact(json).getNode();
+		assertSameTree(root, ResultDecoderTest.decode(json).getNode());
+		assertEquals(root.getNodes().get(0).getKey(), "/d/é");
+		assertEquals(root.getNodes().get(0).getValue().get(), "say \"hi\"");
+		assertTrue(root.getNodes().get(1).getNodes().isEmpty());
+	}
+
+	@Test
+	public void childrenAreRandomAccess() throws Exception {
+		final List<? extends Node> children = decodeCompact(ResultDecoderTest.TREE).getNode().getNodes();
+		assertTrue(children instanceof RandomAccess);
+		assertEquals(children.get(1).getNodes().get(0).getKey(), "/d/e/f");
+		try {
+			children.get(2);
+			fail("Got a child past the end");
+		} catch (IndexOutOfBoundsException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void singleNodeAndNullNode() throws Exception {
+		final Node node = decodeCompact("{\"action\":\"set\",\"node\":{\"key\":\"/a\",\"value\":\"1\",\"modifiedIndex\":2,\"createdIndex\":2}}").getNode();
+		assertEquals(node.getKey(), "/a");
+		assertEquals(node.getValue().get(), "1");
+		assertTrue(node.getNodes().isEmpty());
+		assertNull(decodeCompact("{\"action\":\"get\",\"node\":null}").getNode());
+	}
+}
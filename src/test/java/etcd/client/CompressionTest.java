@@ -0,0 +1,108 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class CompressionTest {
+
+	private static final int KEYS = 200;
+
+	private FakeEtcdServer server;
+
+	@BeforeMethod
+	public void startServer() throws Exception {
+		server = new FakeEtcdServer();
+		for (int i = 0; i < KEYS; i++) {
+			server.set("/d/k" + i, "value " + i);
+		}
+	}
+
+	@AfterMethod
+	public void stopServer() {
+		server.close();
+	}
+
+	@Test
+	public void uncompressedByDefault() {
+		try (EtcdClient client = server.clientBuilder().build()) {
+			assertEquals(client.prepareGet("/d").recursive().send().getNode().getNodes().size(), KEYS);
+		}
+		assertEquals(server.getCompressedResponseCount(), 0);
+	}
+
+	@Test
+	public void decompressesResponses() {
+		try (EtcdClient client = server.clientBuilder().compression(true).build()) {
+			assertEquals(client.prepareGet("/d").recursive().send().getNode().getNodes().size(), KEYS);
+			assertEquals(client.prepareGet("/d/k7").send().getNode().getValue().get(), "value 7");
+			assertEquals(client.prepareSet("/d/k7").value("changed").send().getNode().getValue().get(), "changed");
+			assertFalse(client.prepareGet("/missing").sendIfPresent().isPresent());
+			try {
+				client.prepareGet("/missing").send();
+				fail("Got a missing key");
+			} catch (KeyNotFoundException e) {
+				assertEquals(e.getErrorCode(), 100);
+			}
+		}
+		assertEquals(server.getCompressedResponseCount(), server.getRequestCount());
+	}
+
+	@Test
+	public void decompressesLongPolls() throws Exception {
+		try (EtcdClient client = server.clientBuilder().compression(true).build()) {
+			final EtcdFuture poll = client.prepareGet("/d/k1").waitForChange().sendAsync();
+			Thread.sleep(100);
+			server.set("/d/k1", "changed");
+			assertTrue(poll.await(5000), "Long poll didn't complete");
+			assertEquals(poll.getNow().getNode().getValue().get(), "changed");
+		}
+		assertTrue(server.getCompressedResponseCount() > 0);
+	}
+
+	@Test
+	public void decompressesStreamedNodes() {
+		try (EtcdClient client = server.clientBuilder().compression(true).build();
+		     Stream<Node> nodes = client.prepareGet("/d").streamNodes(Duration.ofSeconds(5))) {
+			assertEquals(nodes.filter(node -> !node.isDirectory()).count(), KEYS);
+		}
+		assertEquals(server.getCompressedResponseCount(), 1);
+	}
+
+	@Test
+	public void sizeLimitAppliesToDecompressedBody() {
+		try (EtcdClient client = server.clientBuilder().compression(true).maxResponseSize(4096).build()) {
+			assertEquals(client.prepareGet("/d/k1").send().getNode().getValue().get(), "value 1");
+			try {
+				client.prepareGet("/d").recursive().send();
+				fail("Got a response larger than the limit");
+			} catch (EtcdException e) {
+				// Expected, the compressed body alone would have fit
+			}
+		}
+	}
+}
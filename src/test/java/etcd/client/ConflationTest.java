@@ -0,0 +1,132 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ConflationTest {
+
+	private FakeEtcdServer server;
+
+	@BeforeMethod
+	public void startServer() throws Exception {
+		server = new FakeEtcdServer();
+		server.set("/other", "0");
+	}
+
+	@AfterMethod
+	public void stopServer() {
+		server.close();
+	}
+
+	/**
+	 * Drains changes until one for each of the given keys has arrived, and returns the latest change to each key.
+	 */
+	private static Map<String, Result> drainUntil(ConflatedChanges changes, String... keys) {
+		return drainUntil(changes, latest -> latest.keySet().containsAll(Arrays.asList(keys)));
+	}
+
+	private static Map<String, Result> drainUntil(ConflatedChanges changes, Predicate<Map<String, Result>> done) {
+		final Map<String, Result> latest = new HashMap<>();
+		final long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+		while (!done.test(latest) && System.nanoTime() < deadline) {
+			for (Result change : changes.drain(Duration.ofMillis(100))) {
+				latest.put(change.getNode().getKey(), change);
+			}
+		}
+		return latest;
+	}
+
+	@Test
+	public void keepsLatestChangeToEachKey() throws Exception {
+		try (EtcdClient client = server.clientBuilder().build();
+		     ConflatedChanges changes = client.watch("/d").recursive().addListener(result -> {
+		     }).conflate()) {
+			Thread.sleep(200);
+			for (int i = 0; i < 10; i++) {
+				server.set("/d/a", Integer.toString(i));
+			}
+			server.set("/d/b", "x");
+			final Map<String, Result> latest = drainUntil(changes, "/d/b");
+			assertEquals(latest.get("/d/a").getNode().getValue(), Optional.of("9"));
+		}
+	}
+
+	@Test
+	public void isClosedTellsEndFromTimeout() throws Exception {
+		try (EtcdClient client = server.clientBuilder().build()) {
+			final ConflatedChanges changes = client.watch("/d").conflate();
+			assertTrue(changes.drain(Duration.ofMillis(50)).isEmpty());
+			assertFalse(changes.isClosed());
+			changes.close();
+			assertTrue(changes.drain(Duration.ofMillis(50)).isEmpty());
+			assertTrue(changes.isClosed());
+		}
+	}
+
+	@Test
+	public void skipsAheadWhenFarBehind() throws Exception {
+		try (EtcdClient client = server.clientBuilder().build();
+		     ConflatedChanges changes = client.watch("/d").recursive().conflate()) {
+			Thread.sleep(200);
+			// The waiting poll gets the first change, the next one is held back while the key changes many times
+			server.delay("/d", 300);
+			for (int i = 0; i < 500; i++) {
+				server.set("/d/a", Integer.toString(i));
+			}
+			server.set("/d/done", "x");
+			final Map<String, Result> latest = drainUntil(changes, "/d/done");
+			assertEquals(latest.get("/d/a").getNode().getValue(), Optional.of("499"));
+			assertTrue(server.getRequestCount() < 20, server.getRequestCount() + " requests for 500 changes");
+		}
+	}
+
+	@Test
+	public void skipsAheadWhenBehindHistory() throws Exception {
+		server.setHistorySize(5);
+		try (EtcdClient client = server.clientBuilder().build();
+		     ConflatedChanges changes = client.watch("/d").recursive().conflate()) {
+			Thread.sleep(200);
+			server.set("/d/b", "1");
+			Thread.sleep(100);
+			server.delay("/d", 300);
+			for (int i = 0; i < 50; i++) {
+				server.set("/d/a", Integer.toString(i));
+			}
+			server.delete("/d/b");
+			server.set("/d/done", "x");
+			final Map<String, Result> latest = drainUntil(changes, changed -> changed.containsKey("/d/done")
+					&& changed.containsKey("/d/a") && changed.get("/d/b").getAction() == Action.DELETE);
+			assertFalse(changes.isClosed(), "Watch ended rather than skipping ahead");
+			assertEquals(latest.get("/d/a").getNode().getValue(), Optional.of("49"));
+			assertEquals(latest.get("/d/b").getAction(), Action.DELETE);
+		}
+	}
+}
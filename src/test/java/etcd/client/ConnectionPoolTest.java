@@ -0,0 +1,126 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class ConnectionPoolTest {
+
+	private FakeEtcdServer server;
+
+	@BeforeMethod
+	public void startServer() throws Exception {
+		server = new FakeEtcdServer();
+		server.set("/a", "1");
+	}
+
+	@AfterMethod
+	public void stopServer() {
+		server.close();
+	}
+
+	@Test
+	public void sequentialRequestsReuseConnection() {
+		try (EtcdClient client = server.clientBuilder().build()) {
+			for (int i = 0; i < 10; i++) {
+				assertEquals(client.prepareGet("/a").send().getNode().getValue().get(), "1");
+			}
+		}
+		assertEquals(server.getConnectionCount(), 1);
+	}
+
+	@Test
+	public void concurrentRequestsStayWithinConnectionLimit() throws Exception {
+		server.delay("/a", 100);
+		try (EtcdClient client = server.clientBuilder().maxConnectionsPerServer(2).build()) {
+			final List<EtcdFuture> futures = new ArrayList<>();
+			for (int i = 0; i < 6; i++) {
+				futures.add(client.prepareGet("/a").sendAsync());
+			}
+			for (EtcdFuture future : futures) {
+				assertTrue(future.await(5000), "Request didn't complete");
+				assertTrue(future.isSuccess(), String.valueOf(future.cause()));
+			}
+		}
+		assertEquals(server.getConnectionCount(), 2);
+	}
+
+	@Test
+	public void requestAfterCloseFails() {
+		final NioEventLoopGroup eventLoopGroup = new NioEventLoopGroup(1);
+		try {
+			final EtcdClient client = server.clientBuilder().eventLoopGroup(eventLoopGroup).build();
+			client.prepareGet("/a").send();
+			client.close();
+			final int requests = server.getRequestCount();
+			try {
+				client.prepareGet("/a").send();
+				fail("Request after close succeeded");
+			} catch (EtcdException e) {
+				// Expected
+			}
+			try {
+				client.prepareGet("/a").send(Duration.ofSeconds(1));
+				fail("Request with a timeout after close succeeded");
+			} catch (EtcdException e) {
+				// Expected, rather than the timer's IllegalStateException
+			}
+			assertEquals(server.getRequestCount(), requests);
+		} finally {
+			eventLoopGroup.shutdownGracefully();
+		}
+	}
+
+	@Test
+	public void closeEndsLongPoll() throws Exception {
+		final EtcdClient client = server.clientBuilder().build();
+		final EtcdFuture poll = client.prepareGet("/a").waitForChange().sendAsync();
+		Thread.sleep(200);
+		assertFalse(poll.isDone());
+		client.close();
+		assertTrue(poll.await(2000), "Long poll was still open after close");
+		assertFalse(poll.isSuccess());
+	}
+
+	@Test
+	public void longPollDoesNotHoldRegularConnection() throws Exception {
+		try (EtcdClient client = server.clientBuilder().maxConnectionsPerServer(1).maxLongPollConnectionsPerServer(1).build()) {
+			final EtcdFuture poll = client.prepareGet("/a").waitForChange().sendAsync();
+			Thread.sleep(100);
+			for (int i = 0; i < 3; i++) {
+				assertEquals(client.prepareGet("/a").send(Duration.ofSeconds(2)).getNode().getValue().get(), "1");
+			}
+			assertFalse(poll.isDone());
+			server.set("/a", "2");
+			assertTrue(poll.await(2000), "Long poll didn't complete");
+			assertEquals(poll.getNow().getNode().getValue().get(), "2");
+		}
+		assertEquals(server.getConnectionCount(), 2);
+	}
+}
@@ -0,0 +1,402 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Just enough of the etcd v2 keys API to test the client without an etcd server: keys and directories, recursive
+ * reads, long polls with {@code wait} and {@code waitIndex} over a limited history, and deletes. Requests on the same
+ * connection are answered in order, like etcd does.
+ */
+class FakeEtcdServer implements AutoCloseable {
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final Object lock = new Object();
+	// Guarded by the lock
+	private final TreeMap<String, Entry> store = new TreeMap<>();
+	private final List<Event> history = new ArrayList<>();
+	private long index = 1;
+
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger compressedResponses = new AtomicInteger();
+	private final Map<String, AtomicInteger> requestsByPath = new ConcurrentHashMap<>();
+	private final Map<String, Long> delays = new ConcurrentHashMap<>();
+	private final Map<String, String> redirects = new ConcurrentHashMap<>();
+	private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+	private volatile int historySize = 1000;
+
+	FakeEtcdServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+		server.createContext("/v2/keys", this::handle);
+		server.createContext("/version", exchange -> send(exchange, 200, "etcd 0.4.6"));
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	EtcdClientBuilder clientBuilder() {
+		return EtcdClientBuilder.create().addHost("127.0.0.1", getPort(), true);
+	}
+
+	/**
+	 * Sets how many changes are kept for long polls, a poll for an older change fails with error 401.
+	 */
+	void setHistorySize(int historySize) {
+		this.historySize = historySize;
+	}
+
+	/**
+	 * Holds every request for the key at {@code path} for the given time before answering it.
+	 */
+	void delay(String path, long millis) {
+		delays.put(path, millis);
+	}
+
+	/**
+	 * Answers every request for the key at {@code path} with a temporary redirect to {@code location}, or stops
+	 * redirecting if it is {@code null}.
+	 */
+	void redirect(String path, String location) {
+		if (location == null) {
+			redirects.remove(path);
+		} else {
+			redirects.put(path, location);
+		}
+	}
+
+	void set(String key, String value) {
+		synchronized (lock) {
+			put(key, value);
+		}
+	}
+
+	void delete(String key) {
+		synchronized (lock) {
+			if (store.remove(key) != null) {
+				record("delete", key, null);
+			}
+		}
+	}
+
+	int getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns the number of responses that were sent gzip compressed.
+	 */
+	int getCompressedResponseCount() {
+		return compressedResponses.get();
+	}
+
+	/**
+	 * Returns the number of reads, without {@code wait}, of the key at {@code path}.
+	 */
+	int getReadCount(String path) {
+		final AtomicInteger count = requestsByPath.get(path);
+		return count == null ? 0 : count.get();
+	}
+
+	int getConnectionCount() {
+		return clientPorts.size();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		clientPorts.add(exchange.getRemoteAddress().getPort());
+		try {
+			String path = exchange.getRequestURI().getRawPath().substring("/v2/keys".length());
+			if (path.endsWith("/")) {
+				path = path.substring(0, path.length() - 1);
+			}
+			final Long delay = delays.get(path);
+			if (delay != null) {
+				Thread.sleep(delay);
+			}
+			final String location = redirects.get(path);
+			if (location != null) {
+				exchange.getResponseHeaders().add("Location", location);
+				send(exchange, 307, "");
+				return;
+			}
+			final Map<String, String> query = parse(exchange.getRequestURI().getRawQuery());
+			switch (exchange.getRequestMethod()) {
+				case "GET":
+					if (query.containsKey("wait")) {
+						poll(exchange, path, query);
+					} else {
+						requestsByPath.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+						get(exchange, path, query.containsKey("recursive"));
+					}
+					break;
+				case "PUT":
+				case "POST":
+					final Map<String, String> form = parse(new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8));
+					synchronized (lock) {
+						final Entry previous = store.get(path);
+						final Entry entry = put(path, form.containsKey("value") ? form.get("value") : "");
+						send(exchange, previous == null ? 201 : 200, "{\"action\":\"set\",\"node\":" + entry.toJson()
+								+ (previous == null ? "" : ",\"prevNode\":" + previous.toJson()) + "}");
+					}
+					break;
+				case "DELETE":
+					synchronized (lock) {
+						final Entry previous = store.remove(path);
+						if (previous == null) {
+							notFound(exchange, path);
+							return;
+						}
+						final Event event = record("delete", path, null);
+						send(exchange, 200, "{\"action\":\"delete\",\"node\":" + event.toJson() + ",\"prevNode\":" + previous.toJson() + "}");
+					}
+					break;
+				default:
+					send(exchange, 405, "{}");
+			}
+		} catch (InterruptedException e) {
+			exchange.close();
+		}
+	}
+
+	private void get(HttpExchange exchange, String path, boolean recursive) throws IOException {
+		synchronized (lock) {
+			final Entry entry = store.get(path);
+			if (entry != null) {
+				send(exchange, 200, "{\"action\":\"get\",\"node\":" + entry.toJson() + "}");
+			} else if (path.isEmpty() || isDirectory(path)) {
+				send(exchange, 200, "{\"action\":\"get\",\"node\":" + directoryJson(path, recursive) + "}");
+			} else {
+				notFound(exchange, path);
+			}
+		}
+	}
+
+	private void poll(HttpExchange exchange, String path, Map<String, String> query) throws IOException, InterruptedException {
+		final boolean recursive = query.containsKey("recursive");
+		synchronized (lock) {
+			final long waitIndex = query.containsKey("waitIndex") ? Long.parseLong(query.get("waitIndex")) : index + 1;
+			while (true) {
+				final long oldest = history.isEmpty() ? index + 1 : history.get(0).index;
+				if (waitIndex < oldest && index - waitIndex >= historySize) {
+					send(exchange, 400, "{\"errorCode\":401,\"message\":\"The event in requested index is outdated and cleared\","
+							+ "\"cause\":\"the requested history has been cleared [" + oldest + "/" + waitIndex + "]\",\"index\":" + index + "}");
+					return;
+				}
+				for (Event event : history) {
+					if (event.index >= waitIndex && (event.key.equals(path) || (recursive && event.key.startsWith(path + "/")))) {
+						send(exchange, 200, "{\"action\":\"" + event.action + "\",\"node\":" + event.toJson() + "}");
+						return;
+					}
+				}
+				lock.wait(TimeUnit.SECONDS.toMillis(1));
+			}
+		}
+	}
+
+	private Entry put(String key, String value) {
+		final Event event = record("set", key, value);
+		final Entry previous = store.get(key);
+		final Entry entry = new Entry(key, value, previous == null ? event.index : previous.createdIndex, event.index);
+		store.put(key, entry);
+		return entry;
+	}
+
+	private Event record(String action, String key, String value) {
+		final Event event = new Event(action, key, value, ++index);
+		history.add(event);
+		while (history.size() > historySize) {
+			history.remove(0);
+		}
+		lock.notifyAll();
+		return event;
+	}
+
+	private boolean isDirectory(String path) {
+		final String child = store.ceilingKey(path + "/");
+		return child != null && child.startsWith(path + "/");
+	}
+
+	private String directoryJson(String key, boolean recursive) {
+		final StringBuilder json = new StringBuilder("{");
+		if (!key.isEmpty()) {
+			json.append("\"key\":").append(quote(key)).append(',');
+		}
+		json.append("\"dir\":true,\"nodes\":[");
+		final String prefix = key + "/";
+		final Set<String> children = new TreeSet<>();
+		for (String child : store.tailMap(prefix).keySet()) {
+			if (!child.startsWith(prefix)) {
+				break;
+			}
+			final int slash = child.indexOf('/', prefix.length());
+			children.add(slash < 0 ? child : child.substring(0, slash));
+		}
+		boolean first = true;
+		for (String child : children) {
+			if (!first) {
+				json.append(',');
+			}
+			first = false;
+			if (store.containsKey(child)) {
+				json.append(store.get(child).toJson());
+			} else if (recursive) {
+				json.append(directoryJson(child, true));
+			} else {
+				json.append("{\"key\":").append(quote(child)).append(",\"dir\":true,\"modifiedIndex\":1,\"createdIndex\":1}");
+			}
+		}
+		return json.append("],\"modifiedIndex\":1,\"createdIndex\":1}").toString();
+	}
+
+	private void notFound(HttpExchange exchange, String path) throws IOException {
+		send(exchange, 404, "{\"errorCode\":100,\"message\":\"Key not found\",\"cause\":" + quote(path) + ",\"index\":" + index + "}");
+	}
+
+	private void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		final String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+			final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+				out.write(bytes);
+			}
+			bytes = compressed.toByteArray();
+			exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+			compressedResponses.incrementAndGet();
+		}
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		synchronized (lock) {
+			exchange.getResponseHeaders().add("X-Etcd-Index", Long.toString(index));
+		}
+		exchange.getResponseHeaders().add("X-Raft-Index", "100");
+		exchange.getResponseHeaders().add("X-Raft-Term", "1");
+		exchange.sendResponseHeaders(status, bytes.length);
+		exchange.getResponseBody().write(bytes);
+		exchange.close();
+	}
+
+	private static Map<String, String> parse(String query) throws UnsupportedEncodingException {
+		final Map<String, String> parameters = new HashMap<>();
+		if (query != null && !query.isEmpty()) {
+			for (String parameter : query.split("&")) {
+				final int equals = parameter.indexOf('=');
+				if (equals < 0) {
+					parameters.put(URLDecoder.decode(parameter, "UTF-8"), "");
+				} else {
+					parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+							URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+				}
+			}
+		}
+		return parameters;
+	}
+
+	private static String quote(String value) {
+		final StringBuilder quoted = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private static final class Entry {
+		private final String key;
+		private final String value;
+		private final long createdIndex;
+		private final long modifiedIndex;
+
+		private Entry(String key, String value, long createdIndex, long modifiedIndex) {
+			this.key = key;
+			this.value = value;
+			this.createdIndex = createdIndex;
+			this.modifiedIndex = modifiedIndex;
+		}
+
+		private String toJson() {
+			return "{\"key\":" + quote(key) + ",\"value\":" + quote(value) + ",\"modifiedIndex\":" + modifiedIndex
+					+ ",\"createdIndex\":" + createdIndex + "}";
+		}
+	}
+
+	private static final class Event {
+		private final String action;
+		private final String key;
+		private final String value;
+		private final long index;
+
+		private Event(String action, String key, String value, long index) {
+			this.action = action;
+			this.key = key;
+			this.value = value;
+			this.index = index;
+		}
+
+		private String toJson() {
+			return "{\"key\":" + quote(key) + (value == null ? "" : ",\"value\":" + quote(value))
+					+ ",\"modifiedIndex\":" + index + ",\"createdIndex\":" + index + "}";
+		}
+	}
+}
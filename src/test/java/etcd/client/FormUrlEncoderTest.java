@@ -0,0 +1,115 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Optional;
+
+import static org.testng.Assert.assertEquals;
+
+public class FormUrlEncoderTest {
+
+	private static final String[] VALUES = {
+			"", "plain", "with space", "a+b=c&d", "*-._~!'()", "/key/path?x#y", "café", "€100", "😀 emoji",
+			"line\nbreak\t", "\u0000\u007f"
+	};
+
+	private FakeEtcdServer server;
+
+	@BeforeMethod
+	public void startServer() throws Exception {
+		server = new FakeEtcdServer();
+	}
+
+	@AfterMethod
+	public void stopServer() {
+		server.close();
+	}
+
+	@Test
+	public void matchesUrlEncoder() throws Exception {
+		for (String value : VALUES) {
+			final ByteBuf out = Unpooled.buffer();
+			FormUrlEncoder.writeField(out, "value", value);
+			assertEquals(out.toString(StandardCharsets.UTF_8), "value=" + URLEncoder.encode(value, "UTF-8"), value);
+		}
+	}
+
+	@Test
+	public void separatesFields() {
+		final ByteBuf out = Unpooled.buffer();
+		FormUrlEncoder.writeField(out, "value", "a b");
+		FormUrlEncoder.writeField(out, "ttl", "30");
+		assertEquals(out.toString(StandardCharsets.UTF_8), "value=a+b&ttl=30");
+	}
+
+	@Test
+	public void encodesRemainingBytesAsUrlSafeBase64() {
+		final byte[] bytes = {(byte) 0xfb, (byte) 0xff, 0x00, 0x3e, 0x3f, (byte) 0x80, 0x7f};
+		for (int length = 0; length <= bytes.length - 1; length++) {
+			final ByteBuffer value = ByteBuffer.wrap(bytes, 1, length);
+			final ByteBuf out = Unpooled.buffer();
+			FormUrlEncoder.writeBase64Field(out, "value", value);
+			final byte[] expected = new byte[length];
+			System.arraycopy(bytes, 1, expected, 0, length);
+			assertEquals(out.toString(StandardCharsets.UTF_8), "value=" + Base64.getUrlEncoder().withoutPadding().encodeToString(expected));
+			assertEquals(value.remaining(), length, "The value's position moved");
+		}
+	}
+
+	@Test
+	public void valuesSurviveRoundTrip() {
+		try (EtcdClient client = server.clientBuilder().build()) {
+			for (int i = 0; i < VALUES.length; i++) {
+				client.prepareSet("/k" + i).value(VALUES[i]).send();
+			}
+			for (int i = 0; i < VALUES.length; i++) {
+				assertEquals(client.prepareGet("/k" + i).send().getNode().getValue(), Optional.of(VALUES[i]));
+			}
+		}
+	}
+
+	@Test
+	public void largeValue() {
+		final StringBuilder value = new StringBuilder();
+		while (value.length() < 10000) {
+			value.append("a b&c=d ");
+		}
+		try (EtcdClient client = server.clientBuilder().build()) {
+			client.prepareSet("/large").value(value.toString()).send();
+			assertEquals(client.prepareGet("/large").send().getNode().getValue().get(), value.toString());
+		}
+	}
+
+	@Test
+	public void redirectedSetKeepsItsBody() {
+		server.redirect("/moved", "http://127.0.0.1:" + server.getPort() + "/v2/keys/target");
+		try (EtcdClient client = server.clientBuilder().build()) {
+			client.prepareSet("/moved").value("sent twice").send();
+			assertEquals(client.prepareGet("/target").send().getNode().getValue(), Optional.of("sent twice"));
+		}
+	}
+}
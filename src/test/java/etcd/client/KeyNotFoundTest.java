@@ -0,0 +1,95 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class KeyNotFoundTest {
+
+	private FakeEtcdServer server;
+
+	@BeforeMethod
+	public void startServer() throws Exception {
+		server = new FakeEtcdServer();
+		server.set("/a", "1");
+	}
+
+	@AfterMethod
+	public void stopServer() {
+		server.close();
+	}
+
+	private static KeyNotFoundException sendMissing(EtcdClient client) {
+		try {
+			client.prepareGet("/missing").send();
+			fail("Got a missing key");
+			return null;
+		} catch (KeyNotFoundException e) {
+			return e;
+		}
+	}
+
+	@Test
+	public void sendIfPresent() {
+		try (EtcdClient client = server.clientBuilder().build()) {
+			final Optional<Result> present = client.prepareGet("/a").sendIfPresent();
+			assertEquals(present.get().getNode().getValue().get(), "1");
+			assertFalse(client.prepareGet("/missing").sendIfPresent().isPresent());
+			assertFalse(client.prepareGet("/missing").sendIfPresent(Duration.ofSeconds(5)).isPresent());
+			assertTrue(client.prepareGet("/a").sendIfPresent(Duration.ofSeconds(5)).isPresent());
+		}
+	}
+
+	@Test
+	public void sendThrowsKeyNotFound() {
+		try (EtcdClient client = server.clientBuilder().build()) {
+			final KeyNotFoundException exception = sendMissing(client);
+			assertEquals(exception.getErrorCode(), 100);
+			assertEquals(exception.getCauseMessage(), Optional.of("/missing"));
+			assertTrue(exception.getIndex().isPresent());
+			assertTrue(exception.getStackTrace().length > 0);
+		}
+	}
+
+	@Test
+	public void stacklessExceptions() {
+		try (EtcdClient client = server.clientBuilder().stacklessExceptions(true).build()) {
+			final KeyNotFoundException exception = sendMissing(client);
+			assertEquals(exception.getErrorCode(), 100);
+			assertEquals(exception.getStackTrace().length, 0);
+		}
+	}
+
+	@Test
+	public void asyncSendFailsWithKeyNotFound() throws Exception {
+		try (EtcdClient client = server.clientBuilder().build()) {
+			final EtcdFuture future = client.prepareGet("/missing").sendAsync();
+			assertTrue(future.await(5000));
+			assertTrue(future.cause() instanceof KeyNotFoundException, String.valueOf(future.cause()));
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class LeaderRedirectTest {
+
+	private FakeEtcdServer follower;
+	private FakeEtcdServer leader;
+
+	@BeforeMethod
+	public void startServers() throws Exception {
+		follower = new FakeEtcdServer();
+		leader = new FakeEtcdServer();
+		follower.redirect("/k", "http://127.0.0.1:" + leader.getPort() + "/v2/keys/k");
+	}
+
+	@AfterMethod
+	public void stopServers() {
+		follower.close();
+		leader.close();
+	}
+
+	@Test
+	public void writesGoStraightToLeaderAfterRedirect() {
+		try (EtcdClient client = follower.clientBuilder().build()) {
+			assertEquals(client.prepareSet("/k").value("1").send().getNode().getValue().get(), "1");
+			assertEquals(follower.getRequestCount(), 1);
+			assertEquals(leader.getRequestCount(), 1);
+
+			assertEquals(client.prepareSet("/k").value("2").send().getNode().getValue().get(), "2");
+			assertEquals(follower.getRequestCount(), 1);
+			assertEquals(leader.getRequestCount(), 2);
+
+			// Reads are served by any server
+			client.prepareGet("/other").sendIfPresent();
+			assertEquals(follower.getRequestCount(), 2);
+		}
+	}
+
+	@Test
+	public void unreachableLeaderFallsBackToCluster() throws Exception {
+		try (EtcdClient client = follower.clientBuilder().build()) {
+			client.prepareSet("/k").value("1").send();
+			leader.close();
+			follower.redirect("/k", null);
+			// Let the client see its pooled connection to the leader close, rather than write to it as it closes
+			Thread.sleep(200);
+			assertEquals(client.prepareSet("/k").value("2").send().getNode().getValue().get(), "2");
+		}
+	}
+}
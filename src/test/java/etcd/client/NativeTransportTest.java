@@ -0,0 +1,53 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Optional;
+
+import static org.testng.Assert.assertEquals;
+
+public class NativeTransportTest {
+
+	private FakeEtcdServer server;
+
+	@BeforeMethod
+	public void startServer() throws Exception {
+		server = new FakeEtcdServer();
+	}
+
+	@AfterMethod
+	public void stopServer() {
+		server.close();
+	}
+
+	/**
+	 * Uses epoll where the native library loads, and falls back to NIO elsewhere, either way the client works.
+	 */
+	@Test
+	public void nativeTransportSendsRequests() {
+		try (EtcdClient client = server.clientBuilder().nativeTransport(true).build()) {
+			client.prepareSet("/a").value("1").send();
+			assertEquals(client.prepareGet("/a").send().getNode().getValue(), Optional.of("1"));
+			server.set("/b", "2");
+			assertEquals(client.prepareGet("/b").waitIndex(1).waitForChange().send().getNode().getValue(), Optional.of("2"));
+		}
+	}
+}
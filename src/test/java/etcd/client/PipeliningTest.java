@@ -0,0 +1,90 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class PipeliningTest {
+
+	private FakeEtcdServer server;
+
+	@BeforeMethod
+	public void startServer() throws Exception {
+		server = new FakeEtcdServer();
+		server.set("/slow", "slow");
+		server.set("/a", "1");
+		server.set("/b", "2");
+	}
+
+	@AfterMethod
+	public void stopServer() {
+		server.close();
+	}
+
+	@Test
+	public void pipelinedRequestsShareConnection() throws Exception {
+		server.delay("/slow", 200);
+		try (EtcdClient client = server.clientBuilder().maxConnectionsPerServer(1).pipeliningDepth(3).build()) {
+			// Open the connection first, requests only pipeline on a connection that is already established
+			client.prepareGet("/a").send();
+			final EtcdFuture slow = client.prepareGet("/slow").sendAsync();
+			final EtcdFuture a = client.prepareGet("/a").sendAsync();
+			final EtcdFuture b = client.prepareGet("/b").sendAsync();
+			assertEquals(b.get().getNode().getValue().get(), "2");
+			assertEquals(a.get().getNode().getValue().get(), "1");
+			assertEquals(slow.get().getNode().getValue().get(), "slow");
+		}
+		assertEquals(server.getConnectionCount(), 1);
+	}
+
+	@Test
+	public void timeoutDoesNotFailRequestsPipelinedBehindIt() throws Exception {
+		server.delay("/slow", 500);
+		try (EtcdClient client = server.clientBuilder().maxConnectionsPerServer(1).pipeliningDepth(3).build()) {
+			// Open the connection first, requests only pipeline on a connection that is already established
+			client.prepareGet("/a").send();
+			final EtcdFuture slow = client.prepareGet("/slow").sendAsync(Duration.ofMillis(50));
+			final EtcdFuture a = client.prepareGet("/a").sendAsync(Duration.ofSeconds(5));
+			final EtcdFuture b = client.prepareGet("/b").sendAsync(Duration.ofSeconds(5));
+			assertTrue(slow.await(2000));
+			assertTrue(slow.cause() instanceof EtcdTimeoutException, String.valueOf(slow.cause()));
+			assertEquals(a.get().getNode().getValue().get(), "1");
+			assertEquals(b.get().getNode().getValue().get(), "2");
+		}
+	}
+
+	@Test
+	public void redirectLoopEnds() {
+		server.redirect("/loop", "http://127.0.0.1:" + server.getPort() + "/v2/keys/loop");
+		try (EtcdClient client = server.clientBuilder().build()) {
+			client.prepareGet("/loop").send(Duration.ofSeconds(5));
+			fail("Redirect loop didn't fail");
+		} catch (EtcdException e) {
+			assertTrue(e.getMessage().contains("Too many redirects"), e.getMessage());
+		}
+		// The request and the five redirects it is allowed to follow
+		assertEquals(server.getRequestCount(), 6);
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class RequestTimeoutTest {
+
+	private FakeEtcdServer server;
+
+	@BeforeMethod
+	public void startServer() throws Exception {
+		server = new FakeEtcdServer();
+		server.set("/slow", "slow");
+		server.set("/a", "1");
+	}
+
+	@AfterMethod
+	public void stopServer() {
+		server.close();
+	}
+
+	@Test
+	public void slowResponseTimesOut() {
+		server.delay("/slow", 1000);
+		try (EtcdClient client = server.clientBuilder().build()) {
+			final long start = System.nanoTime();
+			try {
+				client.prepareGet("/slow").send(Duration.ofMillis(100));
+				fail("Request didn't time out");
+			} catch (EtcdTimeoutException e) {
+				assertTrue(System.nanoTime() - start < Duration.ofMillis(900).toNanos());
+			}
+			// The connection was closed, the next request gets a new one
+			assertEquals(client.prepareGet("/a").send(Duration.ofSeconds(5)).getNode().getValue().get(), "1");
+		}
+	}
+
+	@Test
+	public void timedOutWaiterLeavesPendingQueue() throws Exception {
+		server.delay("/slow", 1000);
+		try (EtcdClient client = server.clientBuilder().maxConnectionsPerServer(1).maxPendingConnectionRequests(1).build()) {
+			final EtcdFuture slow = client.prepareGet("/slow").sendAsync();
+			Thread.sleep(100);
+			// Waits for the only connection and gives up
+			final EtcdFuture waiter = client.prepareGet("/a").sendAsync(Duration.ofMillis(50));
+			assertTrue(waiter.await(2000));
+			assertTrue(waiter.cause() instanceof EtcdTimeoutException, String.valueOf(waiter.cause()));
+			Thread.sleep(50);
+			// Takes the place the timed out request left in the queue
+			final EtcdFuture next = client.prepareGet("/a").sendAsync(Duration.ofSeconds(5));
+			assertEquals(next.get().getNode().getValue().get(), "1");
+			assertEquals(slow.get().getNode().getValue().get(), "slow");
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import io.netty.buffer.Unpooled;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class ResultDecoderTest {
+
+	static final String TREE = "{\"action\":\"get\",\"node\":{\"key\":\"/d\",\"dir\":true,\"nodes\":["
+			+ "{\"key\":\"/d/a\",\"value\":\"1\",\"modifiedIndex\":5,\"createdIndex\":4},"
+			+ "{\"key\":\"/d/e\",\"dir\":true,\"nodes\":[{\"key\":\"/d/e/f\",\"value\":\"2\",\"modifiedIndex\":7,\"createdIndex\":7}],"
+			+ "\"modifiedIndex\":6,\"createdIndex\":6}],\"modifiedIndex\":3,\"createdIndex\":3}}";
+
+	static Result decode(String json) throws Exception {
+		return ResultDecoder.decodeResult(Unpooled.wrappedBuffer(json.getBytes(StandardCharsets.UTF_8)), new EtcdMeta(10, 20, 1));
+	}
+
+	@Test
+	public void decodesFieldsLazily() throws Exception {
+		final Result result = decode("{\"action\":\"set\",\"node\":{\"key\":\"/caf\\u00e9\\/x\",\"value\":\"say \\\"hi\\\"\","
+				+ "\"expiration\":\"2014-06-01T10:00:00.5Z\",\"ttl\":30,\"modifiedIndex\":9,\"createdIndex\":8},"
+				+ "\"prevNode\":{\"key\":\"/caf\\u00e9/x\",\"value\":\"old\",\"modifiedIndex\":8,\"createdIndex\":8}}");
+		assertEquals(result.getAction(), Action.SET);
+		final Node node = result.getNode();
+		assertTrue(node instanceof LazyNode);
+		assertEquals(node.getKey(), "/café/x");
+		assertSame(node.getKey(), node.getKey());
+		assertEquals(node.getValue(), Optional.of("say \"hi\""));
+		assertSame(node.getValue(), node.getValue());
+		assertEquals(node.getExpiration(), Optional.of(Instant.parse("2014-06-01T10:00:00.5Z")));
+		assertEquals(node.getTimetoLive(), Optional.of(Duration.ofSeconds(30)));
+		assertEquals(node.getModifiedIndex(), Optional.of(9L));
+		assertEquals(node.getCreatedIndex(), 8);
+		assertFalse(node.isDirectory());
+		assertEquals(result.getPreviousNode().get().getKey(), "/café/x");
+		assertEquals(result.getPreviousNode().get().getValue(), Optional.of("old"));
+	}
+
+	@Test
+	public void absentFields() throws Exception {
+		final Node node = decode("{\"action\":\"get\",\"node\":{\"dir\":true}}").getNode();
+		assertEquals(node.getKey(), null);
+		assertEquals(node.getValue(), Optional.empty());
+		assertEquals(node.getExpiration(), Optional.empty());
+		assertEquals(node.getTimetoLive(), Optional.empty());
+		assertEquals(node.getModifiedIndex(), Optional.empty());
+		assertTrue(node.isDirectory());
+		assertTrue(node.getNodes().isEmpty());
+	}
+
+	@Test
+	public void decodesTree() throws Exception {
+		final Result result = decode(TREE);
+		assertEquals(result.getResponseMeta().getEtcdIndex(), 10);
+		assertEquals(result.streamAllNodes().map(Node::getKey).collect(Collectors.toList()),
+				Arrays.asList("/d", "/d/a", "/d/e", "/d/e/f"));
+		assertEquals(result.getNode().getNodes().get(1).getNodes().get(0).getValue(), Optional.of("2"));
+	}
+
+	@Test
+	public void binaryValues() throws Exception {
+		final Node node = decode("{\"action\":\"get\",\"node\":{\"key\":\"/b\",\"value\":\"AQL_-w\"}}").getNode();
+		assertEquals(node.getValueBytes().get(), new byte[] {1, 2, (byte) 0xff, (byte) 0xfb});
+	}
+
+	@Test
+	public void decodesActionsIgnoringCase() throws Exception {
+		assertEquals(decode("{\"action\":\"compareAndDelete\",\"node\":null}").getAction(), Action.COMPAREANDDELETE);
+		assertEquals(decode("{\"action\":\"expire\"}").getAction(), Action.EXPIRE);
+		assertEquals(decode("{\"node\":null,\"action\":\"DELETE\"}").getAction(), Action.DELETE);
+	}
+
+	@Test(expectedExceptions = EtcdException.class, expectedExceptionsMessageRegExp = "Unknown action frobnicate")
+	public void unknownAction() throws Exception {
+		decode("{\"action\":\"frobnicate\"}");
+	}
+
+	@Test(expectedExceptions = EtcdException.class, expectedExceptionsMessageRegExp = "Response is missing the action.")
+	public void missingAction() throws Exception {
+		decode("{\"node\":{\"key\":\"/a\"}}");
+	}
+
+	@Test(expectedExceptions = EtcdException.class, expectedExceptionsMessageRegExp = "Malformed response.*")
+	public void malformedResponse() throws Exception {
+		decode("[\"action\"]");
+	}
+
+	@Test
+	public void skipsUnknownFields() throws Exception {
+		final Result result = decode("{\"extra\":{\"action\":\"delete\",\"node\":{}},\"action\":\"get\",\"list\":[1,[2],{}],"
+				+ "\"node\":{\"key\":\"/a\",\"future\":{\"nodes\":[{\"key\":\"/x\"}]},\"value\":\"1\"},\"tail\":null}");
+		assertEquals(result.getAction(), Action.GET);
+		assertEquals(result.getNode().getKey(), "/a");
+		assertEquals(result.getNode().getValue(), Optional.of("1"));
+		assertTrue(result.getNode().getNodes().isEmpty());
+	}
+
+	@Test
+	public void decodesFromDirectBuffer() throws Exception {
+		final byte[] json = TREE.getBytes(StandardCharsets.UTF_8);
+		final Result result = ResultDecoder.decodeResult(Unpooled.directBuffer(json.length).writeBytes(json), new EtcdMeta(10, 20, 1));
+		assertEquals(result.streamAllNodes().count(), 4);
+	}
+
+	@Test
+	public void decodesErrors() throws Exception {
+		final ResultDecoder.ErrorBody error = ResultDecoder.decodeError(Unpooled.wrappedBuffer(("{\"errorCode\":100,"
+				+ "\"message\":\"Key not found\",\"extra\":[1],\"cause\":\"/a\",\"index\":42}").getBytes(StandardCharsets.UTF_8)));
+		assertEquals(error.errorCode, 100);
+		assertEquals(error.message, "Key not found");
+		assertEquals(error.cause, "/a");
+		assertEquals(error.index, Long.valueOf(42));
+		final ResultDecoder.ErrorBody bare = ResultDecoder.decodeError(Unpooled.wrappedBuffer(
+				"{\"errorCode\":401,\"cause\":null,\"index\":null}".getBytes(StandardCharsets.UTF_8)));
+		assertEquals(bare.errorCode, 401);
+		assertEquals(bare.cause, null);
+		assertEquals(bare.message, null);
+		assertEquals(bare.index, null);
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ServerListTest {
+
+	private static ServerList serverList(int primaries, int secondaries) {
+		final ServerList serverList = new ServerList();
+		for (int i = 0; i < primaries; i++) {
+			serverList.addServer(URI.create("http://primary" + i + ":2001"), true);
+		}
+		for (int i = 0; i < secondaries; i++) {
+			serverList.addServer(URI.create("http://secondary" + i + ":2001"), false);
+		}
+		return serverList;
+	}
+
+	private static void makeSlow(ServerList.Server server) {
+		server.requestStarted();
+		server.responseReceived(System.nanoTime() - TimeUnit.SECONDS.toNanos(1), false);
+	}
+
+	@Test
+	public void everyServerTriedOncePrimariesFirst() {
+		for (int primaries = 0; primaries <= 5; primaries++) {
+			for (int secondaries = 0; secondaries <= 3; secondaries++) {
+				final ServerList serverList = serverList(primaries, secondaries);
+				final ServerList.Snapshot snapshot = serverList.snapshot();
+				for (int i = 0; i < 50; i++) {
+					final long selection = serverList.select(snapshot);
+					final Set<URI> tried = new HashSet<>();
+					for (int attempt = 0; attempt < snapshot.size(); attempt++) {
+						final URI address = snapshot.server(selection, attempt).getAddress();
+						assertTrue(tried.add(address), "Tried " + address + " twice");
+						assertEquals(address.getHost().startsWith("primary"), attempt < primaries);
+					}
+					assertEquals(tried.size(), primaries + secondaries);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void cheaperOfTwoServersGoesFirst() {
+		final ServerList serverList = serverList(2, 0);
+		final ServerList.Snapshot snapshot = serverList.snapshot();
+		final ServerList.Server slow = snapshot.server(0, 0);
+		makeSlow(slow);
+		for (int i = 0; i < 100; i++) {
+			final long selection = serverList.select(snapshot);
+			assertNotEquals(snapshot.server(selection, 0), slow);
+			assertEquals(snapshot.server(selection, 1), slow);
+		}
+	}
+
+	@Test
+	public void choicesAreSpreadOverServers() {
+		final ServerList serverList = serverList(4, 0);
+		final ServerList.Snapshot snapshot = serverList.snapshot();
+		final ServerList.Server slow = snapshot.server(0, 0);
+		makeSlow(slow);
+		final Map<ServerList.Server, Integer> firsts = new HashMap<>();
+		final int selections = 3000;
+		for (int i = 0; i < selections; i++) {
+			firsts.merge(snapshot.server(serverList.select(snapshot), 0), 1, Integer::sum);
+		}
+		// The slow server is always paired with a cheaper one, the others are chosen equally often
+		assertEquals(firsts.get(slow), null);
+		assertEquals(firsts.size(), 3);
+		for (int count : firsts.values()) {
+			assertTrue(count > selections / 4, "Uneven choices " + firsts);
+		}
+	}
+
+	@Test
+	public void failedServerLeavesSnapshot() {
+		final ServerList serverList = serverList(3, 0);
+		final Set<ServerList.Server> opened = new HashSet<>();
+		serverList.onServerOpened(opened::add);
+		final ServerList.Server failed = serverList.snapshot().server(0, 0);
+		failed.connectionFailed();
+		assertEquals(opened, Collections.singleton(failed));
+		final ServerList.Snapshot snapshot = serverList.snapshot();
+		assertEquals(snapshot.size(), 2);
+		for (int attempt = 0; attempt < snapshot.size(); attempt++) {
+			assertNotEquals(snapshot.server(serverList.select(snapshot), attempt), failed);
+		}
+		failed.probeSucceeded();
+		assertEquals(serverList.snapshot().size(), 3);
+	}
+
+	private static void respond(ServerList.Server server, boolean serverError) {
+		server.requestStarted();
+		server.responseReceived(System.nanoTime(), serverError);
+	}
+
+	@Test
+	public void failureRateOpensBreaker() {
+		final ServerList serverList = serverList(2, 0);
+		final ServerList.Server server = serverList.snapshot().server(0, 0);
+		// Too few requests to judge on, however many fail
+		for (int i = 0; i < ServerList.MIN_FAILURE_SAMPLES - 1; i++) {
+			respond(server, true);
+		}
+		assertEquals(server.getState(), ServerList.Server.State.CLOSED);
+		respond(server, true);
+		assertEquals(server.getState(), ServerList.Server.State.OPEN);
+		assertEquals(serverList.snapshot().size(), 1);
+	}
+
+	@Test
+	public void occasionalFailuresKeepBreakerClosed() {
+		final ServerList serverList = serverList(1, 0);
+		final ServerList.Server server = serverList.snapshot().server(0, 0);
+		for (int i = 0; i < ServerList.FAILURE_WINDOW * 4; i++) {
+			respond(server, i % 3 == 0);
+		}
+		server.requestStarted();
+		server.requestTimedOut(System.nanoTime());
+		assertEquals(server.getState(), ServerList.Server.State.CLOSED);
+	}
+
+	@Test
+	public void trialRequestDecidesHalfOpenServer() {
+		final ServerList serverList = serverList(2, 0);
+		final ServerList.Server server = serverList.snapshot().server(0, 0);
+		server.connectionFailed();
+		server.probeSucceeded();
+		assertEquals(server.getState(), ServerList.Server.State.HALF_OPEN);
+		assertEquals(serverList.snapshot().size(), 2);
+		server.requestStarted();
+		server.requestFailed();
+		assertEquals(server.getState(), ServerList.Server.State.OPEN);
+		assertEquals(serverList.snapshot().size(), 1);
+
+		server.probeSucceeded();
+		respond(server, false);
+		assertEquals(server.getState(), ServerList.Server.State.CLOSED);
+		assertEquals(serverList.snapshot().size(), 2);
+	}
+
+	@Test
+	public void failedProbesBackOff() {
+		final ServerList.Server server = serverList(1, 0).snapshot().server(0, 0);
+		server.connectionFailed();
+		long delay = server.getProbeDelay();
+		assertEquals(delay, ServerList.DEFAULT_FAILURE_BACKOFF_TIME);
+		for (int i = 0; i < 10; i++) {
+			server.probeFailed();
+			assertEquals(server.getProbeDelay(), Math.min(delay * 2, ServerList.MAX_FAILURE_BACKOFF_TIME));
+			delay = server.getProbeDelay();
+		}
+		server.probeSucceeded();
+		respond(server, false);
+		assertEquals(server.getProbeDelay(), ServerList.DEFAULT_FAILURE_BACKOFF_TIME);
+	}
+
+	@Test
+	public void everyServerTriedWhenAllHaveFailed() {
+		final ServerList serverList = serverList(2, 1);
+		final ServerList.Snapshot before = serverList.snapshot();
+		final long selection = serverList.select(before);
+		for (int attempt = 0; attempt < before.size(); attempt++) {
+			before.server(selection, attempt).connectionFailed();
+		}
+		assertEquals(serverList.snapshot().size(), 3);
+	}
+
+	@Test
+	public void snapshotIsReusedUntilStateChanges() {
+		final ServerList serverList = serverList(3, 0);
+		final ServerList.Snapshot snapshot = serverList.snapshot();
+		respond(snapshot.server(0, 0), false);
+		assertTrue(serverList.snapshot() == snapshot);
+		snapshot.server(0, 0).connectionFailed();
+		assertTrue(serverList.snapshot() != snapshot);
+	}
+
+	@Test
+	public void redirectTargetsAreTracked() {
+		final ServerList serverList = serverList(2, 1);
+		final ServerList.Server listed = serverList.snapshot().server(0, 2);
+		assertTrue(serverList.server(listed.getAddress()) == listed);
+
+		final URI address = URI.create("http://leader:2001");
+		final ServerList.Server other = serverList.server(address);
+		assertTrue(serverList.server(address) == other);
+		final Set<ServerList.Server> opened = new HashSet<>();
+		serverList.onServerOpened(opened::add);
+		other.connectionFailed();
+		assertEquals(other.getState(), ServerList.Server.State.OPEN);
+		assertEquals(opened, Collections.singleton(other));
+		// Never selected for a request
+		assertEquals(serverList.snapshot().size(), 3);
+	}
+
+	@Test
+	public void copyHasServersWithoutState() {
+		final ServerList serverList = serverList(2, 1);
+		final ServerList.Server failed = serverList.snapshot().server(0, 0);
+		failed.connectionFailed();
+		final Set<ServerList.Server> opened = new HashSet<>();
+		serverList.onServerOpened(opened::add);
+
+		final ServerList copy = serverList.copy();
+		final ServerList.Snapshot snapshot = copy.snapshot();
+		assertEquals(snapshot.size(), 3);
+		final ServerList.Server copied = copy.server(failed.getAddress());
+		assertTrue(copied != failed);
+		assertEquals(copied.getState(), ServerList.Server.State.CLOSED);
+		assertEquals(snapshot.server(copy.select(snapshot), 2).getAddress().getHost(), "secondary0");
+		// The copy's breakers report to its own listener
+		copied.connectionFailed();
+		assertTrue(opened.isEmpty());
+		assertEquals(copy.snapshot().size(), 2);
+	}
+}
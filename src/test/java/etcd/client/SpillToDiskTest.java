@@ -0,0 +1,101 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class SpillToDiskTest {
+
+	private FakeEtcdServer server;
+	private Path directory;
+
+	@BeforeMethod
+	public void startServer() throws Exception {
+		server = new FakeEtcdServer();
+		directory = Files.createTempDirectory("etcd-spill-test");
+		for (int i = 0; i < 100; i++) {
+			server.set("/d/k" + i, "value \"" + i + "\"");
+		}
+	}
+
+	@AfterMethod
+	public void stopServer() {
+		server.close();
+		final File[] files = directory.toFile().listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.toFile().delete();
+	}
+
+	@Test
+	public void spilledResultIsLazy() throws Exception {
+		try (EtcdClient client = server.clientBuilder().spillResponsesToDisk(256, directory).build()) {
+			final Node directoryNode = client.prepareGet("/d").recursive().send().getNode();
+			assertTrue(directoryNode instanceof LazyNode, directoryNode.getClass().getName());
+			assertSpilledTree(directoryNode);
+		}
+	}
+
+	@Test
+	public void spilledResultHonoursCompact() throws Exception {
+		try (EtcdClient client = server.clientBuilder().spillResponsesToDisk(256, directory).build()) {
+			final Node directoryNode = client.prepareGet("/d").recursive().compact().send().getNode();
+			assertEquals(directoryNode.getClass().getEnclosingClass(), CompactTree.class);
+			assertSpilledTree(directoryNode);
+		}
+	}
+
+	@Test
+	public void mappedBodyIsReadInPlace() throws Exception {
+		final byte[] json = ("{\"action\":\"get\",\"node\":{\"key\":\"/caf\\u00e9\",\"value\":\"say \\\"hi\\\"\","
+				+ "\"modifiedIndex\":2,\"createdIndex\":1}}").getBytes(StandardCharsets.UTF_8);
+		// A direct buffer has no array behind it, like a mapped file
+		final ByteBuf content = Unpooled.directBuffer(json.length).writeBytes(json);
+		final Node node = ResultDecoder.decodeMappedResult(content, new EtcdMeta(10, 20, 1), false).getNode();
+		assertTrue(node instanceof LazyNode);
+		assertEquals(node.getKey(), "/café");
+		assertEquals(node.getValue(), Optional.of("say \"hi\""));
+		assertEquals(node.getModifiedIndex(), Optional.of(2L));
+	}
+
+	private void assertSpilledTree(Node directoryNode) {
+		assertEquals(directoryNode.getKey(), "/d");
+		assertEquals(directoryNode.getNodes().size(), 100);
+		for (Node node : directoryNode.getNodes()) {
+			final String index = node.getKey().substring("/d/k".length());
+			assertEquals(node.getValue(), Optional.of("value \"" + index + "\""));
+		}
+		final String[] files = directory.toFile().list();
+		assertEquals(files == null ? 0 : files.length, 0, "Spill file was not deleted");
+	}
+}
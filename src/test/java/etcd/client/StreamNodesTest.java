@@ -0,0 +1,130 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class StreamNodesTest {
+
+	private FakeEtcdServer server;
+
+	@BeforeMethod
+	public void startServer() throws Exception {
+		server = new FakeEtcdServer();
+	}
+
+	@AfterMethod
+	public void stopServer() {
+		server.close();
+	}
+
+	private static List<String> keys(String json) throws Exception {
+		final Spliterator<Node> nodes = ResultDecoder.streamNodes(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+		return StreamSupport.stream(nodes, false).map(Node::getKey).collect(Collectors.toList());
+	}
+
+	@Test
+	public void skipsFieldsAroundNode() throws Exception {
+		assertEquals(keys("{\"action\":\"get\",\"prevNode\":{\"key\":\"/x\",\"nodes\":[{\"key\":\"/y\"}]},"
+				+ "\"node\":{\"key\":\"/d\",\"dir\":true,\"nodes\":[{\"key\":\"/d/a\",\"value\":\"1\"},"
+				+ "{\"key\":\"/d/e\",\"dir\":true,\"nodes\":[{\"key\":\"/d/e/f\",\"value\":\"2\"}]}]},\"extra\":[1,{\"node\":{}}]}"),
+				Arrays.asList("/d/a", "/d/e/f", "/d/e", "/d"));
+	}
+
+	@Test
+	public void nullNode() throws Exception {
+		assertEquals(keys("{\"action\":\"get\",\"node\":null}"), Arrays.asList());
+	}
+
+	@Test
+	public void streamsDirectoryTree() {
+		server.set("/dir/a", "1");
+		server.set("/dir/sub/b", "2");
+		server.set("/dir/sub/c", "3");
+		server.set("/other", "4");
+		try (EtcdClient client = server.clientBuilder().build();
+		     Stream<Node> nodes = client.prepareGet("/dir").streamNodes(Duration.ofSeconds(5))) {
+			assertEquals(nodes.map(Node::getKey).collect(Collectors.toList()),
+					Arrays.asList("/dir/a", "/dir/sub/b", "/dir/sub/c", "/dir/sub", "/dir"));
+		}
+	}
+
+	@Test(expectedExceptions = KeyNotFoundException.class)
+	public void missingKey() {
+		try (EtcdClient client = server.clientBuilder().build()) {
+			client.prepareGet("/missing").streamNodes();
+		}
+	}
+
+	@Test
+	public void slowServerTimesOut() {
+		server.set("/slow/a", "1");
+		server.delay("/slow", 2000);
+		try (EtcdClient client = server.clientBuilder().build()) {
+			final long start = System.nanoTime();
+			try {
+				client.prepareGet("/slow").streamNodes(Duration.ofMillis(100));
+				fail("Stream didn't time out");
+			} catch (EtcdTimeoutException e) {
+				assertTrue(System.nanoTime() - start < Duration.ofMillis(1500).toNanos());
+			}
+		}
+	}
+
+	@Test
+	public void waitingForResponseCanBeInterrupted() throws Exception {
+		server.set("/slow/a", "1");
+		server.delay("/slow", 5000);
+		try (EtcdClient client = server.clientBuilder().build()) {
+			final AtomicReference<Throwable> failure = new AtomicReference<>();
+			final AtomicReference<Boolean> interrupted = new AtomicReference<>();
+			final Thread thread = new Thread(() -> {
+				try {
+					client.prepareGet("/slow").streamNodes();
+				} catch (EtcdException e) {
+					failure.set(e);
+					interrupted.set(Thread.currentThread().isInterrupted());
+				}
+			});
+			thread.start();
+			Thread.sleep(200);
+			thread.interrupt();
+			thread.join(2000);
+			assertFalse(thread.isAlive(), "Interrupt was ignored");
+			assertTrue(failure.get() != null);
+			assertTrue(interrupted.get());
+		}
+	}
+}
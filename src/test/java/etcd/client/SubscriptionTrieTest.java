@@ -0,0 +1,80 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class SubscriptionTrieTest {
+
+	private static List<String> subscribers(SubscriptionTrie<String> trie, String key, boolean descendants) {
+		final List<String> found = new ArrayList<>();
+		trie.forEachSubscriber(key, descendants, found::add);
+		Collections.sort(found);
+		return found;
+	}
+
+	@Test
+	public void exactAndRecursiveSubscribers() {
+		final SubscriptionTrie<String> trie = new SubscriptionTrie<>();
+		trie.add("/d/a", false, "exact a");
+		trie.add("/d", true, "all of d");
+		trie.add("/", true, "everything");
+		trie.add("/d/ab", false, "exact ab");
+		assertEquals(subscribers(trie, "/d/a", false), Arrays.asList("all of d", "everything", "exact a"));
+		assertEquals(subscribers(trie, "/d/a/b", false), Arrays.asList("all of d", "everything"));
+		assertEquals(subscribers(trie, "/d", false), Arrays.asList("all of d", "everything"));
+		assertEquals(subscribers(trie, "/e", false), Arrays.asList("everything"));
+	}
+
+	@Test
+	public void slashesDontMakeDifferentKeys() {
+		final SubscriptionTrie<String> trie = new SubscriptionTrie<>();
+		trie.add("d//a/", false, "a");
+		assertEquals(subscribers(trie, "/d/a", false), Arrays.asList("a"));
+	}
+
+	@Test
+	public void deletedDirectoryReachesSubscribersBelowIt() {
+		final SubscriptionTrie<String> trie = new SubscriptionTrie<>();
+		trie.add("/d/e/a", false, "a");
+		trie.add("/d/e/f", true, "f");
+		trie.add("/d/x", false, "x");
+		assertEquals(subscribers(trie, "/d/e", false), Arrays.asList());
+		assertEquals(subscribers(trie, "/d/e", true), Arrays.asList("a", "f"));
+	}
+
+	@Test
+	public void removeOnlyRemovesMatchingSubscription() {
+		final SubscriptionTrie<String> trie = new SubscriptionTrie<>();
+		trie.add("/d/a", false, "s");
+		trie.add("/d/a", true, "s");
+		trie.remove("/d/a", true, "s");
+		assertEquals(subscribers(trie, "/d/a/b", false), Arrays.asList());
+		assertEquals(subscribers(trie, "/d/a", false), Arrays.asList("s"));
+		trie.remove("/d/a", false, "s");
+		trie.remove("/d/missing", false, "s");
+		assertTrue(subscribers(trie, "/d/a", true).isEmpty());
+	}
+}
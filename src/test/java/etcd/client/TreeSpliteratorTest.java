@@ -0,0 +1,184 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+
+public class TreeSpliteratorTest {
+
+	private static final class TestNode implements Node {
+		private final String key;
+		private final List<TestNode> nodes = new ArrayList<>();
+
+		private TestNode(String key) {
+			this.key = key;
+		}
+
+		private TestNode add(TestNode child) {
+			nodes.add(child);
+			return this;
+		}
+
+		@Override
+		public long getCreatedIndex() {
+			return 1;
+		}
+
+		@Override
+		public Optional<Long> getModifiedIndex() {
+			return Optional.of(1L);
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public Optional<String> getValue() {
+			return nodes.isEmpty() ? Optional.of(key) : Optional.empty();
+		}
+
+		@Override
+		public Optional<Instant> getExpiration() {
+			return Optional.empty();
+		}
+
+		@Override
+		public Optional<Duration> getTimetoLive() {
+			return Optional.empty();
+		}
+
+		@Override
+		public boolean isDirectory() {
+			return !nodes.isEmpty();
+		}
+
+		@Override
+		public List<? extends Node> getNodes() {
+			return nodes;
+		}
+	}
+
+	/**
+	 * Builds a tree {@code depth} levels deep where every directory has {@code width} children, adding the keys to
+	 * {@code keys} in depth first order.
+	 */
+	private static TestNode tree(String key, int depth, int width, List<String> keys) {
+		final TestNode node = new TestNode(key);
+		keys.add(key);
+		if (depth > 0) {
+			for (int i = 0; i < width; i++) {
+				node.add(tree(key + "/" + i, depth - 1, width, keys));
+			}
+		}
+		return node;
+	}
+
+	private static List<String> keys(Spliterator<Node> nodes) {
+		return StreamSupport.stream(nodes, false).map(Node::getKey).collect(Collectors.toList());
+	}
+
+	/**
+	 * Splits as far as possible, returning the keys of the pieces in encounter order.
+	 */
+	private static List<String> splitKeys(Spliterator<Node> nodes) {
+		final Spliterator<Node> prefix = nodes.trySplit();
+		if (prefix == null) {
+			return keys(nodes);
+		}
+		final List<String> keys = new ArrayList<>(splitKeys(prefix));
+		keys.addAll(splitKeys(nodes));
+		return keys;
+	}
+
+	@Test
+	public void walksDepthFirst() throws Exception {
+		assertEquals(ResultDecoderTest.decode(ResultDecoderTest.TREE).streamAllNodes().map(Node::getKey).collect(Collectors.toList()),
+				Arrays.asList("/d", "/d/a", "/d/e", "/d/e/f"));
+	}
+
+	@Test
+	public void emptyWithoutNode() {
+		final TreeSpliterator nodes = new TreeSpliterator(null);
+		assertEquals(nodes.estimateSize(), 0);
+		assertNull(nodes.trySplit());
+		assertFalse(nodes.tryAdvance(node -> {
+		}));
+	}
+
+	@Test
+	public void splitsKeepEncounterOrder() {
+		final List<String> expected = new ArrayList<>();
+		final TestNode root = tree("", 4, 3, expected);
+		assertEquals(keys(new TreeSpliterator(root)), expected);
+		assertEquals(splitKeys(new TreeSpliterator(root)), expected);
+	}
+
+	@Test
+	public void splitsPartWayThrough() {
+		final List<String> expected = new ArrayList<>();
+		final TestNode root = tree("", 3, 4, expected);
+		for (int walked = 0; walked < expected.size(); walked++) {
+			final Spliterator<Node> nodes = new TreeSpliterator(root);
+			final List<String> keys = new ArrayList<>();
+			for (int i = 0; i < walked; i++) {
+				nodes.tryAdvance(node -> keys.add(node.getKey()));
+			}
+			keys.addAll(splitKeys(nodes));
+			assertEquals(keys, expected, "After " + walked + " nodes");
+		}
+	}
+
+	@Test
+	public void singleChildChainsSplit() {
+		final List<String> expected = new ArrayList<>();
+		final TestNode root = tree("", 5, 1, expected);
+		assertEquals(splitKeys(new TreeSpliterator(root)), expected);
+	}
+
+	@Test
+	public void parallelStream() {
+		final List<String> expected = new ArrayList<>();
+		final TestNode root = tree("", 6, 5, expected);
+		assertEquals(StreamSupport.stream(new TreeSpliterator(root), true).map(Node::getKey).collect(Collectors.toList()), expected);
+		assertEquals(StreamSupport.stream(new TreeSpliterator(root), true).count(), expected.size());
+	}
+
+	@Test
+	public void deepTreeDoesNotOverflowStack() {
+		TestNode node = new TestNode("/leaf");
+		for (int i = 0; i < 100000; i++) {
+			node = new TestNode("/" + i).add(node);
+		}
+		assertEquals(StreamSupport.stream(new TreeSpliterator(node), false).count(), 100001);
+	}
+}
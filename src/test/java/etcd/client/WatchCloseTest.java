@@ -0,0 +1,139 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class WatchCloseTest {
+
+	private FakeEtcdServer server;
+
+	@BeforeMethod
+	public void startServer() throws Exception {
+		server = new FakeEtcdServer();
+		server.set("/a", "1");
+	}
+
+	@AfterMethod
+	public void stopServer() {
+		server.close();
+	}
+
+	@Test
+	public void closingClientEndsStream() throws Exception {
+		final EtcdClient client = server.clientBuilder().build();
+		final WatchRequest watch = client.watch("/a");
+		final AtomicLong count = new AtomicLong(-1);
+		final Thread reader = new Thread(() -> count.set(watch.stream().count()));
+		reader.start();
+		Thread.sleep(200);
+		client.close();
+		reader.join(5000);
+		assertEquals(count.get(), 0, "Stream didn't end when the client was closed");
+	}
+
+	@Test
+	public void closingClientCompletesSubscribers() throws Exception {
+		final EtcdClient client = server.clientBuilder().build();
+		final CountDownLatch completed = new CountDownLatch(1);
+		client.watch("/a").publisher(16, OverflowPolicy.ERROR).subscribe(new Subscriber<Result>() {
+			@Override
+			public void onSubscribe(Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(Result result) {
+			}
+
+			@Override
+			public void onError(Throwable error) {
+			}
+
+			@Override
+			public void onComplete() {
+				completed.countDown();
+			}
+		});
+		Thread.sleep(200);
+		client.close();
+		assertTrue(completed.await(5, TimeUnit.SECONDS), "Subscriber didn't complete when the client was closed");
+	}
+
+	@Test
+	public void watchStartedAfterCloseEndsAtOnce() {
+		final EtcdClient client = server.clientBuilder().build();
+		client.close();
+		assertEquals(client.watch("/a").stream().count(), 0);
+	}
+
+	/**
+	 * Reads the stream to its end, which must come within five seconds, and returns the error it ended with.
+	 */
+	private static Throwable awaitFailure(Stream<Result> changes) throws InterruptedException {
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final Thread reader = new Thread(() -> {
+			try {
+				changes.count();
+			} catch (EtcdException e) {
+				failure.set(e);
+			}
+		});
+		reader.start();
+		reader.join(5000);
+		return failure.get();
+	}
+
+	@Test
+	public void watchEndsWhenEventLoopGroupIsShutDown() throws Exception {
+		final NioEventLoopGroup eventLoopGroup = new NioEventLoopGroup(1);
+		try (EtcdClient client = server.clientBuilder().eventLoopGroup(eventLoopGroup).build()) {
+			final Stream<Result> changes = client.watch("/a").stream();
+			Thread.sleep(200);
+			eventLoopGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).await(5000);
+			// Rather than waiting for a retry that will never happen
+			assertTrue(awaitFailure(changes) instanceof EtcdException, "Watch didn't end");
+		}
+	}
+
+	@Test
+	public void pendingRetryEndsWatchWhenEventLoopGroupIsShutDown() throws Exception {
+		final NioEventLoopGroup eventLoopGroup = new NioEventLoopGroup(1);
+		try (EtcdClient client = server.clientBuilder().eventLoopGroup(eventLoopGroup).build()) {
+			server.close();
+			final Stream<Result> changes = client.watch("/a").stream();
+			// Let the poll fail to connect and schedule its retry
+			Thread.sleep(200);
+			eventLoopGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).await(5000);
+			assertTrue(awaitFailure(changes) instanceof EtcdException, "Watch didn't end");
+		}
+	}
+}
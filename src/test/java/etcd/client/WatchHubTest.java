@@ -0,0 +1,204 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+public class WatchHubTest {
+
+	private FakeEtcdServer server;
+
+	@BeforeMethod
+	public void startServer() throws Exception {
+		server = new FakeEtcdServer();
+	}
+
+	@AfterMethod
+	public void stopServer() {
+		server.close();
+	}
+
+	private static void awaitStarted(WatchHub hub) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (hub.getCurrentIndex() == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(hub.getCurrentIndex() > 0, "Hub didn't start watching");
+		// Give the first poll time to reach the server
+		Thread.sleep(200);
+	}
+
+	private static List<String> take(BlockingQueue<Result> changes, int count) throws InterruptedException {
+		final List<String> taken = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			final Result change = changes.poll(5, TimeUnit.SECONDS);
+			assertNotNull(change, "Only got " + taken);
+			taken.add(change.getAction() + " " + change.getNode().getKey());
+		}
+		return taken;
+	}
+
+	@Test
+	public void startsOnDirectoryLargerThanResponseLimit() throws Exception {
+		for (int i = 0; i < 200; i++) {
+			server.set("/d/k" + i, "value " + i);
+		}
+		try (EtcdClient client = server.clientBuilder().maxResponseSize(1024).build()) {
+			final BlockingQueue<Result> changes = new LinkedBlockingQueue<>();
+			final WatchHub hub = client.watchHub("/d");
+			hub.subscribeRecursive("/d", changes::add);
+			awaitStarted(hub);
+			server.set("/d/k7", "changed");
+			assertEquals(take(changes, 1), Arrays.asList("SET /d/k7"));
+		}
+	}
+
+	@Test
+	public void catchesUpAfterFallingBehind() throws Exception {
+		server.setHistorySize(2);
+		server.set("/d/a", "1");
+		server.set("/d/b", "2");
+		try (EtcdClient client = server.clientBuilder().build()) {
+			final BlockingQueue<Result> changes = new LinkedBlockingQueue<>();
+			final WatchHub hub = client.watchHub("/d");
+			hub.subscribeRecursive("/d", changes::add);
+			awaitStarted(hub);
+			// The poll waiting now gets the first change, the next one is held back while the rest drop out of history
+			server.delay("/d", 500);
+			server.set("/d/a", "3");
+			server.set("/d/c", "4");
+			server.delete("/d/b");
+			server.set("/d/x", "5");
+			server.set("/d/y", "6");
+			assertEquals(take(changes, 5), Arrays.asList("SET /d/a", "CREATE /d/c", "CREATE /d/x", "CREATE /d/y", "DELETE /d/b"));
+		}
+	}
+
+	@Test
+	public void subscribersCanSubscribeWhileResyncIsRouted() throws Exception {
+		server.setHistorySize(2);
+		server.set("/d/a", "1");
+		try (EtcdClient client = server.clientBuilder().build()) {
+			final WatchHub hub = client.watchHub("/d");
+			final BlockingQueue<Result> changes = new LinkedBlockingQueue<>();
+			final BlockingQueue<Result> later = new LinkedBlockingQueue<>();
+			final ExecutorService executor = Executors.newSingleThreadExecutor();
+			final AtomicBoolean subscribed = new AtomicBoolean();
+			hub.subscribeRecursive("/d", result -> {
+				if (result.getNode().getKey().equals("/d/c") && !subscribed.get()) {
+					// Routing a made up change mustn't keep other threads from subscribing
+					try {
+						executor.submit(() -> hub.subscribe("/d/z", later::add)).get(2, TimeUnit.SECONDS);
+						subscribed.set(true);
+					} catch (Exception e) {
+						// Left unset, the assertion below reports it
+					}
+				}
+				changes.add(result);
+			});
+			awaitStarted(hub);
+			server.delay("/d", 500);
+			server.set("/d/a", "2");
+			server.set("/d/b", "3");
+			server.set("/d/c", "4");
+			server.set("/d/x", "5");
+			take(changes, 4);
+			executor.shutdown();
+			assertTrue(subscribed.get(), "Subscribing waited for the resync to be routed");
+			server.set("/d/z", "6");
+			assertEquals(take(later, 1), Arrays.asList("SET /d/z"));
+		}
+	}
+
+	@Test
+	public void failuresAreReportedAndStopWithClient() throws Exception {
+		server.close();
+		final AtomicInteger failures = new AtomicInteger();
+		final EtcdClient client = server.clientBuilder().build();
+		final WatchHub hub = client.watchHub("/d").addFailureListener(cause -> failures.incrementAndGet());
+		hub.subscribe("/d/a", result -> {
+		});
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (failures.get() == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(failures.get() > 0, "Failure wasn't reported");
+		assertEquals(hub.getCurrentIndex(), 0);
+		final List<Thread> resyncThreads = new ArrayList<>();
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("etcd-resync")) {
+				resyncThreads.add(thread);
+			}
+		}
+		assertFalse(resyncThreads.isEmpty());
+		client.close();
+		for (Thread thread : resyncThreads) {
+			thread.join(5000);
+			assertFalse(thread.isAlive(), "Hub kept loading its directory after the client was closed");
+		}
+	}
+
+	@Test
+	public void routesChangesToSubscribers() throws Exception {
+		server.set("/d/a", "1");
+		try (EtcdClient client = server.clientBuilder().build()) {
+			final WatchHub hub = client.watchHub("/d/");
+			assertEquals(hub, client.watchHub("/d"));
+			final BlockingQueue<Result> exact = new LinkedBlockingQueue<>();
+			final BlockingQueue<Result> recursive = new LinkedBlockingQueue<>();
+			final WatchHub.Subscription exactSubscription = hub.subscribe("/d/a", exact::add);
+			hub.subscribeRecursive("/d/e", recursive::add);
+			awaitStarted(hub);
+			server.set("/d/a", "2");
+			server.set("/d/e/f", "3");
+			server.set("/d/b", "4");
+			assertEquals(take(exact, 1), Arrays.asList("SET /d/a"));
+			assertEquals(take(recursive, 1), Arrays.asList("SET /d/e/f"));
+			exactSubscription.close();
+			server.set("/d/a", "5");
+			server.set("/d/e/g", "6");
+			assertEquals(take(recursive, 1), Arrays.asList("SET /d/e/g"));
+			assertTrue(exact.isEmpty());
+		}
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void keysOutsideDirectoryAreRejected() {
+		try (EtcdClient client = server.clientBuilder().build()) {
+			client.watchHub("/d").subscribe("/dx", result -> {
+			});
+		}
+	}
+}
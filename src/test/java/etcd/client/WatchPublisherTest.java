@@ -0,0 +1,132 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class WatchPublisherTest {
+
+	private static Result change(String key, long index) throws Exception {
+		return ResultDecoderTest.decode("{\"action\":\"set\",\"node\":{\"key\":\"" + key + "\",\"value\":\"v\",\"modifiedIndex\":"
+				+ index + ",\"createdIndex\":" + index + "}}");
+	}
+
+	/**
+	 * Records the signals it gets, as strings.
+	 */
+	private static class RecordingSubscriber implements Subscriber<Result> {
+		final List<String> signals = new ArrayList<>();
+		final Consumer<Subscription> onSubscribe;
+		Subscription subscription;
+		boolean inOnSubscribe;
+
+		RecordingSubscriber(Consumer<Subscription> onSubscribe) {
+			this.onSubscribe = onSubscribe;
+		}
+
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			this.subscription = subscription;
+			inOnSubscribe = true;
+			signals.add("subscribe");
+			onSubscribe.accept(subscription);
+			inOnSubscribe = false;
+		}
+
+		@Override
+		public void onNext(Result result) {
+			signals.add("next " + result.getNode().getKey() + (inOnSubscribe ? " early" : ""));
+		}
+
+		@Override
+		public void onError(Throwable error) {
+			signals.add("error " + error.getMessage() + (inOnSubscribe ? " early" : ""));
+		}
+
+		@Override
+		public void onComplete() {
+			signals.add("complete" + (inOnSubscribe ? " early" : ""));
+		}
+	}
+
+	@Test
+	public void nothingIsSignalledBeforeOnSubscribeReturns() {
+		final WatchPublisher publisher = new WatchPublisher(4, OverflowPolicy.ERROR, () -> {
+		});
+		final RecordingSubscriber subscriber = new RecordingSubscriber(subscription -> publisher.terminate(null));
+		publisher.subscribe(subscriber);
+		assertEquals(subscriber.signals, Arrays.asList("subscribe", "complete"));
+	}
+
+	@Test
+	public void requestFromOnSubscribeResumesWatch() {
+		final List<Boolean> demandOnResume = new ArrayList<>();
+		final WatchPublisher[] publisher = new WatchPublisher[1];
+		publisher[0] = new WatchPublisher(4, OverflowPolicy.ERROR, () -> demandOnResume.add(publisher[0].hasDemand()));
+		publisher[0].subscribe(new RecordingSubscriber(subscription -> subscription.request(1)));
+		assertTrue(publisher[0].hasDemand());
+		assertTrue(demandOnResume.contains(true), "The watch was never resumed with the demand visible");
+	}
+
+	@Test
+	public void throwingSubscriberIsCancelledAndOthersCarryOn() throws Exception {
+		final WatchPublisher publisher = new WatchPublisher(4, OverflowPolicy.ERROR, () -> {
+		});
+		final RecordingSubscriber failing = new RecordingSubscriber(subscription -> subscription.request(10)) {
+			@Override
+			public void onNext(Result result) {
+				throw new IllegalStateException("boom");
+			}
+		};
+		final RecordingSubscriber healthy = new RecordingSubscriber(subscription -> subscription.request(10));
+		publisher.subscribe(failing);
+		publisher.subscribe(healthy);
+		publisher.offer(change("/a", 1));
+		publisher.offer(change("/b", 2));
+		assertEquals(failing.signals, Arrays.asList("subscribe", "error boom"));
+		assertEquals(healthy.signals, Arrays.asList("subscribe", "next /a", "next /b"));
+		assertTrue(publisher.hasDemand());
+	}
+
+	@Test
+	public void bufferedChangesWaitForDemand() throws Exception {
+		final WatchPublisher publisher = new WatchPublisher(2, OverflowPolicy.DROP_OLDEST, () -> {
+		});
+		final RecordingSubscriber subscriber = new RecordingSubscriber(subscription -> {
+		});
+		publisher.subscribe(subscriber);
+		assertFalse(publisher.hasDemand());
+		publisher.offer(change("/a", 1));
+		publisher.offer(change("/b", 2));
+		publisher.offer(change("/c", 3));
+		publisher.terminate(null);
+		assertEquals(subscriber.signals, Arrays.asList("subscribe"));
+		subscriber.subscription.request(5);
+		assertEquals(subscriber.signals, Arrays.asList("subscribe", "next /b", "next /c", "complete"));
+	}
+}
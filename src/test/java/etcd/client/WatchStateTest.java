@@ -0,0 +1,134 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class WatchStateTest {
+
+	private static Node node(String key, long createdIndex, long modifiedIndex) throws Exception {
+		return ResultDecoderTest.decode("{\"action\":\"get\",\"node\":{\"key\":\"" + key + "\",\"value\":\"v\",\"modifiedIndex\":"
+				+ modifiedIndex + ",\"createdIndex\":" + createdIndex + "}}").getNode();
+	}
+
+	private static Result change(String action, String key, long index, boolean directory) throws Exception {
+		return ResultDecoderTest.decode("{\"action\":\"" + action + "\",\"node\":{\"key\":\"" + key + "\""
+				+ (directory ? ",\"dir\":true" : "") + ",\"modifiedIndex\":" + index + ",\"createdIndex\":" + index + "}}");
+	}
+
+	private static List<Result> resync(WatchState state, long etcdIndex, Node... nodes) {
+		final WatchState.Snapshot snapshot = state.newSnapshot();
+		for (Node node : nodes) {
+			snapshot.add(node);
+		}
+		return state.resync(snapshot, new EtcdMeta(etcdIndex, -1, -1));
+	}
+
+	private static List<String> describe(List<Result> changes) {
+		return changes.stream()
+				.map(change -> change.getAction() + " " + change.getNode().getKey())
+				.collect(Collectors.toList());
+	}
+
+	@Test
+	public void firstSnapshotOnlySeeds() throws Exception {
+		final WatchState state = new WatchState();
+		assertTrue(resync(state, 10, node("/d/a", 2, 3), node("/d/b", 4, 4)).isEmpty());
+	}
+
+	@Test
+	public void reportsDifferenceFromSnapshot() throws Exception {
+		final WatchState state = new WatchState();
+		resync(state, 10, node("/d/a", 2, 3), node("/d/b", 4, 4), node("/d/c", 5, 5));
+		final List<Result> changes = resync(state, 20, node("/d/a", 2, 3), node("/d/b", 4, 15), node("/d/new", 12, 12));
+		assertEquals(describe(changes), Arrays.asList("SET /d/b", "CREATE /d/new", "DELETE /d/c"));
+		final Result deleted = changes.get(2);
+		assertEquals(deleted.getNode().getModifiedIndex().get().longValue(), 20);
+		assertFalse(deleted.getPreviousNode().isPresent());
+		assertEquals(deleted.getResponseMeta().getEtcdIndex(), 20);
+	}
+
+	@Test
+	public void changesReceivedAreNotReportedAgain() throws Exception {
+		final WatchState state = new WatchState();
+		resync(state, 10, node("/d/a", 2, 3), node("/d/b", 4, 4));
+		state.update(change("set", "/d/a", 11, false));
+		state.update(change("set", "/d/x", 12, false));
+		state.update(change("delete", "/d/b", 13, false));
+		final List<Result> changes = resync(state, 20, node("/d/a", 2, 11), node("/d/x", 12, 12), node("/d/y", 14, 14));
+		assertEquals(describe(changes), Arrays.asList("CREATE /d/y"));
+	}
+
+	@Test
+	public void keysReceivedAndGoneAreDeleted() throws Exception {
+		final WatchState state = new WatchState();
+		resync(state, 10);
+		state.update(change("set", "/d/x", 11, false));
+		assertEquals(describe(resync(state, 20)), Arrays.asList("DELETE /d/x"));
+	}
+
+	@Test
+	public void deletingDirectoryForgetsItsKeys() throws Exception {
+		final WatchState state = new WatchState();
+		resync(state, 10, node("/d/e/a", 2, 2), node("/d/e/b", 3, 3), node("/d/e0", 4, 4));
+		state.update(change("set", "/d/e/c", 11, false));
+		state.update(change("delete", "/d/e", 12, true));
+		assertEquals(describe(resync(state, 20)), Arrays.asList("DELETE /d/e0"));
+	}
+
+	@Test
+	public void manyChangesBetweenSnapshots() throws Exception {
+		final WatchState state = new WatchState();
+		final List<Node> nodes = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			nodes.add(node("/d/k" + i, i + 1, i + 1));
+		}
+		resync(state, 1000, nodes.toArray(new Node[0]));
+		long index = 1000;
+		for (int i = 0; i < 1000; i += 2) {
+			state.update(change("delete", "/d/k" + i, ++index, false));
+			state.update(change("set", "/d/n" + i, ++index, false));
+		}
+		final List<Node> remaining = new ArrayList<>();
+		for (int i = 1; i < 1000; i += 2) {
+			remaining.add(node("/d/k" + i, i + 1, i + 1));
+		}
+		final List<Result> changes = resync(state, index, remaining.toArray(new Node[0]));
+		assertEquals(changes.size(), 500);
+		for (Result change : changes) {
+			assertEquals(change.getAction(), Action.DELETE);
+			assertTrue(change.getNode().getKey().startsWith("/d/n"), change.getNode().getKey());
+		}
+	}
+
+	@Test
+	public void clearedStateSeedsAgain() throws Exception {
+		final WatchState state = new WatchState();
+		resync(state, 10, node("/d/a", 2, 3));
+		state.clear();
+		assertTrue(resync(state, 20, node("/d/b", 15, 15)).isEmpty());
+	}
+}
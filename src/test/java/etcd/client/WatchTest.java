@@ -0,0 +1,162 @@
+/*
+ *   Copyright (c) 2014 Intellectual Reserve, Inc.  All rights reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+package etcd.client;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class WatchTest {
+
+	private FakeEtcdServer server;
+
+	@BeforeMethod
+	public void startServer() throws Exception {
+		server = new FakeEtcdServer();
+		server.set("/a", "0");
+	}
+
+	@AfterMethod
+	public void stopServer() {
+		server.close();
+	}
+
+	private static List<String> take(BlockingQueue<Result> changes, int count) throws InterruptedException {
+		final List<String> values = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			final Result change = changes.poll(5, TimeUnit.SECONDS);
+			assertNotNull(change, "Got " + values + ", expected " + count + " changes");
+			values.add(change.getNode().getKey() + "=" + change.getNode().getValue().orElse(null));
+		}
+		return values;
+	}
+
+	@Test
+	public void noChangeIsMissedBetweenPolls() throws Exception {
+		try (EtcdClient client = server.clientBuilder().build(); WatchRequest watch = client.watch("/a")) {
+			final BlockingQueue<Result> changes = new LinkedBlockingQueue<>();
+			watch.addListener(changes::add).start();
+			Thread.sleep(100);
+			final List<String> expected = new ArrayList<>();
+			long lastIndex = 0;
+			for (int i = 1; i <= 20; i++) {
+				// Faster than the watch can poll, so most changes happen while no poll is waiting
+				lastIndex = client.prepareSet("/a").value(Integer.toString(i)).send().getNode().getModifiedIndex().get();
+				expected.add("/a=" + i);
+			}
+			assertEquals(take(changes, expected.size()), expected);
+			assertEquals(watch.getCurrentIndex(), lastIndex);
+		}
+	}
+
+	@Test
+	public void waitIndexReplaysHistory() throws Exception {
+		try (EtcdClient client = server.clientBuilder().build()) {
+			final long first = client.prepareSet("/a").value("1").send().getNode().getModifiedIndex().get();
+			client.prepareSet("/a").value("2").send();
+			client.prepareSet("/a").value("3").send();
+			try (WatchRequest watch = client.watch("/a").waitIndex(first)) {
+				final BlockingQueue<Result> changes = new LinkedBlockingQueue<>();
+				watch.addListener(changes::add).start();
+				assertEquals(take(changes, 3), Arrays.asList("/a=1", "/a=2", "/a=3"));
+			}
+		}
+	}
+
+	@Test
+	public void recursiveWatchSeesChildren() throws Exception {
+		try (EtcdClient client = server.clientBuilder().build(); WatchRequest watch = client.watch("/d").recursive()) {
+			final BlockingQueue<Result> changes = new LinkedBlockingQueue<>();
+			watch.addListener(changes::add).start();
+			Thread.sleep(100);
+			server.set("/d/x", "1");
+			server.set("/other", "2");
+			server.set("/d/y/z", "3");
+			assertEquals(take(changes, 2), Arrays.asList("/d/x=1", "/d/y/z=3"));
+		}
+	}
+
+	@Test
+	public void streamReturnsChangesInOrder() throws Exception {
+		try (EtcdClient client = server.clientBuilder().build(); WatchRequest watch = client.watch("/a")) {
+			final Iterator<Result> changes = watch.stream().iterator();
+			Thread.sleep(100);
+			for (int i = 1; i <= 5; i++) {
+				server.set("/a", Integer.toString(i));
+			}
+			for (int i = 1; i <= 5; i++) {
+				assertEquals(changes.next().getNode().getValue().get(), Integer.toString(i));
+			}
+		}
+	}
+
+	@Test
+	public void clearedHistoryEndsWatch() throws Exception {
+		server.setHistorySize(2);
+		for (int i = 1; i <= 5; i++) {
+			server.set("/a", Integer.toString(i));
+		}
+		try (EtcdClient client = server.clientBuilder().build(); WatchRequest watch = client.watch("/a").waitIndex(1)) {
+			try {
+				watch.stream().count();
+				fail("Watch went on after its index was cleared");
+			} catch (EtcdException e) {
+				assertTrue(e instanceof EtcdRequestException, String.valueOf(e));
+				assertEquals(((EtcdRequestException) e).getErrorCode(), 401);
+			}
+		}
+	}
+
+	@Test
+	public void resynchronizedWatchCatchesUpFromClearedHistory() throws Exception {
+		server.setHistorySize(2);
+		try (EtcdClient client = server.clientBuilder().build()) {
+			final long first = client.prepareSet("/d/a").value("1").send().getNode().getModifiedIndex().get();
+			server.set("/d/b", "2");
+			server.set("/d/c", "3");
+			server.set("/d/a", "4");
+			try (WatchRequest watch = client.watch("/d").recursive().waitIndex(first).resynchronize()) {
+				final BlockingQueue<Result> changes = new LinkedBlockingQueue<>();
+				watch.addListener(changes::add).start();
+				// The first change has left the history, the watch catches up from a snapshot instead
+				assertEquals(take(changes, 3), Arrays.asList("/d/a=4", "/d/b=2", "/d/c=3"));
+				server.set("/d/b", "5");
+				assertEquals(take(changes, 1), Arrays.asList("/d/b=5"));
+			}
+		}
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void resynchronizeAfterStartIsRejected() {
+		try (EtcdClient client = server.clientBuilder().build(); WatchRequest watch = client.watch("/a")) {
+			watch.start().resynchronize();
+		}
+	}
+}